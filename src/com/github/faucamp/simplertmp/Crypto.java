@@ -3,6 +3,7 @@ package com.github.faucamp.simplertmp;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 import com.github.faucamp.simplertmp.util.L;
 
@@ -18,18 +19,72 @@ import com.github.faucamp.simplertmp.util.L;
  */
 public class Crypto {
 
-    private Mac hmacSHA256;
+    public static final int SHA256_DIGEST_SIZE = 32;
+    /** Per-thread Mac for keys that are not constant (initialized on each use), and a scratch digest */
+    private static final ThreadLocal<HmacState> hmacState = new ThreadLocal<HmacState>() {
 
-    public Crypto() {
+        @Override
+        protected HmacState initialValue() {
+            return new HmacState();
+        }
+    };
+
+    /** A thread's Mac for non-constant keys, and a scratch digest */
+    private static final class HmacState {
+
+        final Mac mac = newMac(null);
+        final byte[] digest = new byte[SHA256_DIGEST_SIZE];
+    }
+
+    /**
+     * A constant HMAC SHA256 key (such as the handshake keys), with a Mac
+     * that is initialized with it once per thread, rather than on each use
+     */
+    public static final class HmacKey {
+
+        private final SecretKeySpec keySpec;
+        private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+
+            @Override
+            protected Mac initialValue() {
+                return newMac(keySpec);
+            }
+        };
+
+        /** @param keyLength the number of bytes of the key array that make up the key */
+        public HmacKey(byte[] key, int keyLength) {
+            keySpec = new SecretKeySpec(key, 0, keyLength, "HmacSHA256");
+        }
+
+        Mac getMac() {
+            return mac.get();
+        }
+    }
+
+    /** @return a new HMAC SHA256 Mac, initialized with the specified key if not <code>null</code> */
+    private static Mac newMac(SecretKeySpec keySpec) {
         try {
-            hmacSHA256 = Mac.getInstance("HmacSHA256");
-        } catch (SecurityException e) {
-            L.e("Security exception when getting HMAC", e);
+            Mac mac = Mac.getInstance("HmacSHA256");
+            if (keySpec != null) {
+                mac.init(keySpec);
+            }
+            return mac;
         } catch (NoSuchAlgorithmException e) {
             L.e("HMAC SHA256 does not exist");
+            throw new IllegalStateException("HMAC SHA256 does not exist", e);
+        } catch (InvalidKeyException e) {
+            L.e("Invalid key", e);
+            throw new IllegalArgumentException("Invalid HMAC SHA256 key", e);
         }
     }
 
+    /** @return this thread's Mac for non-constant keys, initialized with the specified key */
+    private static Mac init(byte[] key, int keyLength) throws InvalidKeyException {
+        Mac mac = hmacState.get().mac;
+        mac.init(new SecretKeySpec(key, 0, keyLength, "HmacSHA256"));
+        return mac;
+    }
+
     /**
      * Calculates an HMAC SHA256 hash using a default key length.
      *
@@ -39,14 +94,7 @@ public class Crypto {
      * @return hmac hashed bytes
      */
     public byte[] calculateHmacSHA256(byte[] input, byte[] key) {
-        byte[] output = null;
-        try {
-            hmacSHA256.init(new SecretKeySpec(key, "HmacSHA256"));
-            output = hmacSHA256.doFinal(input);
-        } catch (InvalidKeyException e) {
-            L.e("Invalid key", e);
-        }
-        return output;
+        return calculateHmacSHA256(input, key, key.length);
     }
 
     /**
@@ -60,11 +108,73 @@ public class Crypto {
     public byte[] calculateHmacSHA256(byte[] input, byte[] key, int length) {
         byte[] output = null;
         try {
-            hmacSHA256.init(new SecretKeySpec(key, 0, length, "HmacSHA256"));
-            output = hmacSHA256.doFinal(input);
+            output = init(key, length).doFinal(input);
         } catch (InvalidKeyException e) {
             L.e("Invalid key", e);
         }
         return output;
     }
+
+    /**
+     * Calculates an HMAC SHA256 hash of a region of the input, excluding a
+     * sub-region (e.g. the location of the digest itself), without copying
+     * the input. The hash is written to the output array at the specified offset.
+     *
+     * @param key the key, of which the first <code>keyLength</code> bytes are used
+     * @param offset start of the hashed region of the input
+     * @param length length of the hashed region of the input
+     * @param excludeOffset start of the excluded sub-region
+     * @param excludeLength length of the excluded sub-region
+     */
+    public void calculateHmacSHA256(byte[] key, int keyLength, byte[] input, int offset, int length, int excludeOffset, int excludeLength, byte[] output, int outputOffset) {
+        try {
+            calculateHmacSHA256(init(key, keyLength), input, offset, length, excludeOffset, excludeLength, output, outputOffset);
+        } catch (InvalidKeyException e) {
+            L.e("Invalid key", e);
+        }
+    }
+
+    /** As above, using a constant key whose (per-thread) Mac is already initialized */
+    public void calculateHmacSHA256(HmacKey key, byte[] input, int offset, int length, int excludeOffset, int excludeLength, byte[] output, int outputOffset) {
+        calculateHmacSHA256(key.getMac(), input, offset, length, excludeOffset, excludeLength, output, outputOffset);
+    }
+
+    private static void calculateHmacSHA256(Mac mac, byte[] input, int offset, int length, int excludeOffset, int excludeLength, byte[] output, int outputOffset) {
+        try {
+            mac.update(input, offset, excludeOffset - offset);
+            mac.update(input, excludeOffset + excludeLength, offset + length - excludeOffset - excludeLength);
+            mac.doFinal(output, outputOffset);
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException("Output buffer too small for HMAC SHA256 digest", e);
+        }
+    }
+
+    /**
+     * Checks an HMAC SHA256 digest that is embedded in the input, by hashing
+     * the region of the input around it; no copies are made.
+     *
+     * @param digestOffset location of the embedded digest
+     * @return <code>true</code> if the digest is valid
+     */
+    public boolean verifyHmacSHA256(byte[] key, int keyLength, byte[] input, int offset, int length, int digestOffset) {
+        final byte[] digest = hmacState.get().digest;
+        calculateHmacSHA256(key, keyLength, input, offset, length, digestOffset, SHA256_DIGEST_SIZE, digest, 0);
+        return digestEquals(digest, input, digestOffset);
+    }
+
+    /** As above, using a constant key whose (per-thread) Mac is already initialized */
+    public boolean verifyHmacSHA256(HmacKey key, byte[] input, int offset, int length, int digestOffset) {
+        final byte[] digest = hmacState.get().digest;
+        calculateHmacSHA256(key.getMac(), input, offset, length, digestOffset, SHA256_DIGEST_SIZE, digest, 0);
+        return digestEquals(digest, input, digestOffset);
+    }
+
+    private static boolean digestEquals(byte[] digest, byte[] input, int digestOffset) {
+        for (int i = 0; i < SHA256_DIGEST_SIZE; i++) {
+            if (digest[i] != input[digestOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -4,8 +4,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.regex.Matcher;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.io.BufferPool;
+import com.github.faucamp.simplertmp.io.NioEventLoopGroup;
 import com.github.faucamp.simplertmp.io.RtmpConnection;
+import com.github.faucamp.simplertmp.io.WriteQueue;
 import com.github.faucamp.simplertmp.output.RtmpStreamWriter;
 
 /**
@@ -47,18 +52,86 @@ public class DefaultRtmpClient implements RtmpClient {
      * @param url a RTMP URL in the format: rtmp://host[:port]/application[?streamName]
      */
     public DefaultRtmpClient(String url) {
+        this(url, (NioEventLoopGroup) null);
+    }
+
+    /** 
+     * Constructor for URLs in the format: rtmp://host[:port]/application[?streamName],
+     * using non-blocking I/O on the specified event loop group instead of
+     * dedicated per-connection threads
+     * 
+     * @param url a RTMP URL in the format: rtmp://host[:port]/application[?streamName]
+     * @param nioEventLoopGroup the event loops to use, or <code>null</code> to use dedicated threads
+     */
+    public DefaultRtmpClient(String url, NioEventLoopGroup nioEventLoopGroup) {
         Matcher matcher = rtmpUrlPattern.matcher(url);
         if (matcher.matches()) {
             String portStr = matcher.group(3);
             int port = portStr != null ? Integer.parseInt(portStr) : 1935;            
             playPath = matcher.group(6);            
-            rtmpConnection = new RtmpConnection(matcher.group(1), port, matcher.group(4));
+            if (nioEventLoopGroup != null) {
+                rtmpConnection = new RtmpConnection(matcher.group(1), port, matcher.group(4), nioEventLoopGroup);
+            } else {
+                rtmpConnection = new RtmpConnection(matcher.group(1), port, matcher.group(4));
+            }
         } else {
             throw new RuntimeException("Invalid RTMP URL. Must be in format: rtmp://host[:port]/application[?streamName]");
         }
     }
 
-   
+    /**
+     * Sets the pool that received audio/video payloads are leased from; this
+     * must be called before <code>connect()</code>
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        ((RtmpConnection) rtmpConnection).setBufferPool(bufferPool);
+    }
+
+    /**
+     * Sets the chunk size to use for messages sent to the server; this must
+     * be called before <code>connect()</code>
+     */
+    public void setOutboundChunkSize(int outboundChunkSize) {
+        ((RtmpConnection) rtmpConnection).setOutboundChunkSize(outboundChunkSize);
+    }
+
+    /**
+     * If set, received packets are passed to the RtmpStreamWriter directly on
+     * the read thread; this must be called before <code>connect()</code>
+     * @see RtmpConnection#setInlineDispatch(boolean)
+     */
+    public void setInlineDispatch(boolean inlineDispatch) {
+        ((RtmpConnection) rtmpConnection).setInlineDispatch(inlineDispatch);
+    }
+
+    /**
+     * Enables fast-start playback; this must be called before <code>connect()</code>
+     * @see RtmpConnection#setFastStart(boolean)
+     */
+    public void setFastStart(boolean fastStart) {
+        ((RtmpConnection) rtmpConnection).setFastStart(fastStart);
+    }
+
+    /**
+     * Sets the factory used to create the connection's threads; this must be called before <code>connect()</code>
+     * @see RtmpConnection#setThreadFactory(ThreadFactory)
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        ((RtmpConnection) rtmpConnection).setThreadFactory(threadFactory);
+    }
+
+    /**
+     * Configures the outgoing packet queue; this must be called before <code>connect()</code>
+     * @see RtmpConnection#setWriteQueue(int, WriteQueue.OverflowPolicy)
+     */
+    public void setWriteQueue(int capacity, WriteQueue.OverflowPolicy overflowPolicy) {
+        ((RtmpConnection) rtmpConnection).setWriteQueue(capacity, overflowPolicy);
+    }
+
+    /** @return the outgoing packet queue (for its metrics), or <code>null</code> if not connected */
+    public WriteQueue getWriteQueue() {
+        return ((RtmpConnection) rtmpConnection).getWriteQueue();
+    }
 
     @Override
     public void connect() throws IOException {
@@ -94,10 +167,40 @@ public class DefaultRtmpClient implements RtmpClient {
         rtmpConnection.playAsync(playPath, rtmpStreamWriter);
     }
 
+    @Override
+    public void playStreamAsync(String playPath, RtmpStreamWriter rtmpStreamWriter) throws IllegalStateException {
+        rtmpConnection.playStreamAsync(playPath, rtmpStreamWriter);
+    }
+
+    @Override
+    public void publish(String streamName, String type) throws IllegalStateException, IOException {
+        rtmpConnection.publish(streamName, type);
+    }
+
+    @Override
+    public void sendAudio(byte[] data, int timestamp) throws IllegalStateException {
+        rtmpConnection.sendAudio(data, timestamp);
+    }
+
+    @Override
+    public void sendVideo(byte[] data, int timestamp) throws IllegalStateException {
+        rtmpConnection.sendVideo(data, timestamp);
+    }
+
+    @Override
+    public void sendMetaData(AmfObject metaData) throws IllegalStateException {
+        rtmpConnection.sendMetaData(metaData);
+    }
+
     @Override
     public void closeStream() throws IllegalStateException {
         rtmpConnection.closeStream();
     }
+
+    @Override
+    public void closeStream(String playPath) throws IllegalStateException {
+        rtmpConnection.closeStream(playPath);
+    }
     
     @Override
     public void pause() throws IllegalStateException {
@@ -3,6 +3,7 @@ package com.github.faucamp.simplertmp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import com.github.faucamp.simplertmp.amf.AmfObject;
 import com.github.faucamp.simplertmp.output.RtmpStreamWriter;
 
 /**
@@ -44,11 +45,68 @@ public interface RtmpClient {
      * @throws IOException if a network/IO error occurs
      */
     void playAsync(String playPath, RtmpStreamWriter rtmpStreamWriter) throws IllegalStateException, IOException;
+
+    /**
+     * Plays the specified stream on a new RTMP message stream, alongside any
+     * other streams that are already playing on this connection. Each stream's
+     * media content packets are written to its own RtmpStreamWriter.
+     * 
+     * This method does not block.
+     * 
+     * @param playPath The logical 'file'/media content name that you wish to play back
+     * @throws IllegalStateException if the client is not connected to a RTMP server
+     */
+    void playStreamAsync(String playPath, RtmpStreamWriter rtmpStreamWriter) throws IllegalStateException;
     
+    /**
+     * Issues an RTMP "publish" command, after which live audio/video can be
+     * sent using <code>sendAudio()</code>, <code>sendVideo()</code> and
+     * <code>sendMetaData()</code>.
+     * 
+     * This method blocks until the server has accepted (or rejected) the stream.
+     * 
+     * @param streamName The name of the stream to publish
+     * @param type The publishing type: "live", "record" or "append"
+     * @throws IllegalStateException if the client is not connected to a RTMP server
+     * @throws IOException if the server rejected the stream, or a network/IO error occurs
+     */
+    void publish(String streamName, String type) throws IllegalStateException, IOException;
+
+    /**
+     * Sends an FLV audio tag body (i.e. including the audio sub-header) on the
+     * published stream. The data array must not be modified after this call.
+     * 
+     * @param timestamp The media timestamp of the audio data, in milliseconds
+     * @throws IllegalStateException if no stream is being published
+     */
+    void sendAudio(byte[] data, int timestamp) throws IllegalStateException;
+
+    /**
+     * Sends an FLV video tag body (i.e. including the video sub-header) on the
+     * published stream. The data array must not be modified after this call.
+     * 
+     * @param timestamp The media timestamp of the video data, in milliseconds
+     * @throws IllegalStateException if no stream is being published
+     */
+    void sendVideo(byte[] data, int timestamp) throws IllegalStateException;
+
+    /**
+     * Sends "onMetaData" (via "@setDataFrame") on the published stream
+     * 
+     * @throws IllegalStateException if no stream is being published
+     */
+    void sendMetaData(AmfObject metaData) throws IllegalStateException;
+
     /**
      * Stops and closes the current RTMP stream
      */
     void closeStream() throws IllegalStateException;
+
+    /**
+     * Stops and closes the specified RTMP stream; other streams on this
+     * connection keep playing
+     */
+    void closeStream(String playPath) throws IllegalStateException;
     
     /**
      * Shuts down the RTMP client and stops all threads associated with it
@@ -3,6 +3,7 @@ package com.github.faucamp.simplertmp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Misc utility method
@@ -31,6 +32,31 @@ public class Util {
         return ((in.read() & 0xff) << 8) | (in.read() & 0xff);
     }
 
+    public static int readUnsignedInt24(ByteBuffer in) {
+        return ((in.get() & 0xff) << 16) | ((in.get() & 0xff) << 8) | (in.get() & 0xff);
+    }
+
+    public static int readUnsignedInt32LittleEndian(ByteBuffer in) {
+        return (in.get() & 0xff) | ((in.get() & 0xff) << 8) | ((in.get() & 0xff) << 16) | ((in.get() & 0xff) << 24);
+    }
+
+    public static int getUnsignedInt16(byte[] bytes, int index) {
+        return ((bytes[index] & 0xff) << 8) | (bytes[index + 1] & 0xff);
+    }
+
+    public static int getUnsignedInt32(byte[] bytes, int index) {
+        return ((bytes[index] & 0xff) << 24) | ((bytes[index + 1] & 0xff) << 16) | ((bytes[index + 2] & 0xff) << 8) | (bytes[index + 3] & 0xff);
+    }
+
+    public static double getDouble(byte[] bytes, int index) {
+        return Double.longBitsToDouble(((long) getUnsignedInt32(bytes, index) << 32) | (getUnsignedInt32(bytes, index + 4) & 0xffffffffL));
+    }
+
+    /** Reads an unsigned 24-bit value at the specified absolute index, without changing the buffer's position */
+    public static int getUnsignedInt24(ByteBuffer in, int index) {
+        return ((in.get(index) & 0xff) << 16) | ((in.get(index + 1) & 0xff) << 8) | (in.get(index + 2) & 0xff);
+    }
+
     public static void writeUnsignedInt24(OutputStream out, int value) throws IOException {
         out.write((byte) (value >>> 16));
         out.write((byte) (value >>> 8));
@@ -69,8 +95,13 @@ public class Util {
         if (raw == null) {
             return null;
         }
-        final StringBuilder hex = new StringBuilder(2 * raw.length);
-        for (final byte b : raw) {
+        return toHexString(raw, 0, raw.length);
+    }
+
+    public static String toHexString(byte[] raw, int offset, int length) {
+        final StringBuilder hex = new StringBuilder(2 * length);
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = raw[i];
             hex.append(HEXES.charAt((b & 0xF0) >> 4)).append(HEXES.charAt((b & 0x0F)));
         }
         return hex.toString();
@@ -84,11 +115,16 @@ public class Util {
      * Reads bytes from the specified inputstream into the specified target buffer until it is filled up     
      */
     public static void readBytesUntilFull(InputStream in, byte[] targetBuffer) throws IOException {
+        readBytesUntilFull(in, targetBuffer, 0, targetBuffer.length);
+    }
+
+    /** Reads exactly <code>length</code> bytes into the specified region of the target buffer */
+    public static void readBytesUntilFull(InputStream in, byte[] targetBuffer, int offset, int length) throws IOException {
         int totalBytesRead = 0;
         int read;
-        final int targetBytes = targetBuffer.length;
+        final int targetBytes = length;
         do {
-            read = in.read(targetBuffer, totalBytesRead, (targetBytes - totalBytesRead));
+            read = in.read(targetBuffer, offset + totalBytesRead, (targetBytes - totalBytesRead));
             if (read != -1) {
                 totalBytesRead += read;
             } else {
@@ -119,7 +155,7 @@ public class Util {
     }
 
     public static double readDouble(InputStream in) throws IOException {
-        long bits = ((long) (in.read() & 0xff) << 56) | ((long) (in.read() & 0xff) << 48) | ((long) (in.read() & 0xff) << 40) | ((long) (in.read() & 0xff) << 32) | ((in.read() & 0xff) << 24) | ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 8) | (in.read() & 0xff);
+        long bits = ((long) (in.read() & 0xff) << 56) | ((long) (in.read() & 0xff) << 48) | ((long) (in.read() & 0xff) << 40) | ((long) (in.read() & 0xff) << 32) | ((long) (in.read() & 0xff) << 24) | ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 8) | (in.read() & 0xff);
         return Double.longBitsToDouble(bits);
     }       
 
@@ -0,0 +1,311 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import com.github.faucamp.simplertmp.Util;
+
+/**
+ * Decodes AMF3 values into the corresponding AMF0 data types: integers and
+ * dates become AmfNumbers, XML becomes AmfStrings, objects become AmfObjects
+ * (with their sealed and dynamic members as properties), arrays become
+ * AmfArrays, or AmfMaps if they have named items, vectors become AmfArrays,
+ * and dictionaries become AmfMaps (with their string, number or boolean keys
+ * as property names). ByteArrays become AmfByteArrays. Externalizable
+ * objects, whose encoding is class-specific, are not supported.
+ * 
+ * Strings, objects and traits that are sent more than once are encoded as
+ * references to their first occurrence; a decoder keeps the reference
+ * tables of all values read with it. In AMF0 data, each value following an
+ * AMF3 switch marker is decoded with a new decoder.
+ * 
+ * @author francois
+ */
+public class Amf3Decoder {
+
+    private final InputStream in;
+    private final List<String> stringReferences = new ArrayList<String>();
+    private final List<AmfData> objectReferences = new ArrayList<AmfData>();
+    private final List<Traits> traitsReferences = new ArrayList<Traits>();
+
+    /** Class name and member names of an AMF3 object */
+    private static class Traits {
+
+        final String className;
+        final boolean dynamic;
+        final String[] sealedMemberNames;
+
+        Traits(String className, boolean dynamic, String[] sealedMemberNames) {
+            this.className = className;
+            this.dynamic = dynamic;
+            this.sealedMemberNames = sealedMemberNames;
+        }
+    }
+
+    public Amf3Decoder(InputStream in) {
+        this.in = in;
+    }
+
+    /** Reads a single AMF3 value with a new decoder, i.e. with empty reference tables */
+    public static AmfData readFrom(InputStream in) throws IOException {
+        return new Amf3Decoder(in).readValue();
+    }
+
+    public AmfData readValue() throws IOException {
+        final int amf3TypeByte = in.read();
+        if (amf3TypeByte == -1) {
+            throw new EOFException("Unexpected end of AMF3 data");
+        }
+        final Amf3Type amf3Type = Amf3Type.valueOf((byte) amf3TypeByte);
+        if (amf3Type == null) {
+            throw new IOException("Unknown/unimplemented AMF3 data type: " + amf3TypeByte);
+        }
+        switch (amf3Type) {
+            case UNDEFINED:
+            case NULL:
+                return new AmfNull();
+            case FALSE:
+                return new AmfBoolean(false);
+            case TRUE:
+                return new AmfBoolean(true);
+            case INTEGER: {
+                // Sign-extend the 29-bit value
+                return new AmfNumber((readU29() << 3) >> 3);
+            }
+            case DOUBLE:
+                return new AmfNumber(Util.readDouble(in));
+            case STRING:
+                return new AmfString(readString());
+            case XML_DOCUMENT:
+            case XML:
+                return readXml();
+            case DATE:
+                return readDate();
+            case ARRAY:
+                return readArray();
+            case OBJECT:
+                return readObject();
+            case BYTE_ARRAY:
+                return readByteArray();
+            case VECTOR_INT:
+            case VECTOR_UINT:
+            case VECTOR_DOUBLE:
+            case VECTOR_OBJECT:
+                return readVector(amf3Type);
+            case DICTIONARY:
+                return readDictionary();
+            default:
+                throw new IOException("Unknown/unimplemented AMF3 data type: " + amf3Type);
+        }
+    }
+
+    /** Reads a variable-length unsigned 29-bit integer (U29) */
+    public int readU29() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 3; i++) {
+            final int b = readByte();
+            if ((b & 0x80) == 0) {
+                return (value << 7) | b;
+            }
+            value = (value << 7) | (b & 0x7F);
+        }
+        // The fourth byte contributes all 8 bits
+        return (value << 8) | readByte();
+    }
+
+    /** Reads a string value (without type marker), or a reference to a previously read string */
+    public String readString() throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(stringReferences, ref >> 1);
+        }
+        final int length = ref >> 1;
+        if (length == 0) {
+            return ""; // the empty string is never sent as a reference
+        }
+        String value = new String(readBytes(length), "UTF-8");
+        stringReferences.add(value);
+        return value;
+    }
+
+    private AmfData readXml() throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(objectReferences, ref >> 1);
+        }
+        AmfString xml = new AmfString(new String(readBytes(ref >> 1), "UTF-8"));
+        objectReferences.add(xml);
+        return xml;
+    }
+
+    private AmfData readDate() throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(objectReferences, ref >> 1);
+        }
+        AmfNumber date = new AmfNumber(Util.readDouble(in));
+        objectReferences.add(date);
+        return date;
+    }
+
+    private AmfData readArray() throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(objectReferences, ref >> 1);
+        }
+        final int denseLength = ref >> 1;
+        String key = readString();
+        if (key.isEmpty()) {
+            // Dense array only
+            AmfArray array = new AmfArray();
+            objectReferences.add(array);
+            List<AmfData> items = array.getItems();
+            for (int i = 0; i < denseLength; i++) {
+                items.add(readValue());
+            }
+            return array;
+        }
+        // Associative array; the dense items are added with their indexes as keys
+        AmfMap map = new AmfMap();
+        objectReferences.add(map);
+        while (!key.isEmpty()) {
+            map.setProperty(key, readValue());
+            key = readString();
+        }
+        for (int i = 0; i < denseLength; i++) {
+            map.setProperty(Integer.toString(i), readValue());
+        }
+        return map;
+    }
+
+    private AmfData readObject() throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(objectReferences, ref >> 1);
+        }
+        final Traits traits;
+        if ((ref & 0x02) == 0) {
+            traits = getReference(traitsReferences, ref >> 2);
+        } else {
+            if ((ref & 0x04) != 0) {
+                throw new IOException("Unimplemented AMF3 externalizable object: " + readString());
+            }
+            final boolean dynamic = (ref & 0x08) != 0;
+            final String className = readString();
+            String[] sealedMemberNames = new String[ref >>> 4];
+            for (int i = 0; i < sealedMemberNames.length; i++) {
+                sealedMemberNames[i] = readString();
+            }
+            traits = new Traits(className, dynamic, sealedMemberNames);
+            traitsReferences.add(traits);
+        }
+        AmfObject object = new AmfObject();
+        objectReferences.add(object);
+        for (String memberName : traits.sealedMemberNames) {
+            object.setProperty(memberName, readValue());
+        }
+        if (traits.dynamic) {
+            for (String key = readString(); !key.isEmpty(); key = readString()) {
+                object.setProperty(key, readValue());
+            }
+        }
+        return object;
+    }
+
+    private AmfData readByteArray() throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(objectReferences, ref >> 1);
+        }
+        AmfByteArray byteArray = new AmfByteArray(readBytes(ref >> 1));
+        objectReferences.add(byteArray);
+        return byteArray;
+    }
+
+    private AmfData readVector(Amf3Type amf3Type) throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(objectReferences, ref >> 1);
+        }
+        final int length = ref >> 1;
+        readByte(); // fixed-length flag
+        if (amf3Type == Amf3Type.VECTOR_OBJECT) {
+            readString(); // item type name
+        }
+        AmfArray array = new AmfArray();
+        objectReferences.add(array);
+        List<AmfData> items = array.getItems();
+        for (int i = 0; i < length; i++) {
+            switch (amf3Type) {
+                case VECTOR_INT:
+                    items.add(new AmfNumber(readInt32()));
+                    break;
+                case VECTOR_UINT:
+                    items.add(new AmfNumber(readInt32() & 0xFFFFFFFFL));
+                    break;
+                case VECTOR_DOUBLE:
+                    items.add(new AmfNumber(Util.readDouble(in)));
+                    break;
+                default:
+                    items.add(readValue());
+            }
+        }
+        return array;
+    }
+
+    private AmfData readDictionary() throws IOException {
+        final int ref = readU29();
+        if ((ref & 0x01) == 0) {
+            return getReference(objectReferences, ref >> 1);
+        }
+        final int length = ref >> 1;
+        readByte(); // weak-keys flag
+        AmfMap map = new AmfMap();
+        objectReferences.add(map);
+        for (int i = 0; i < length; i++) {
+            final String key = toDictionaryKey(readValue());
+            map.setProperty(key, readValue());
+        }
+        return map;
+    }
+
+    /** @return the property name for a dictionary key, which (unlike an object member name) can be any value */
+    private static String toDictionaryKey(AmfData key) throws IOException {
+        if (key instanceof AmfString) {
+            return ((AmfString) key).getValue();
+        } else if (key instanceof AmfNumber) {
+            final double value = ((AmfNumber) key).getValue();
+            return value == (long) value ? Long.toString((long) value) : Double.toString(value);
+        } else if (key instanceof AmfBoolean) {
+            return Boolean.toString(((AmfBoolean) key).isValue());
+        }
+        throw new IOException("Unimplemented AMF3 dictionary key type: " + key.getClass().getSimpleName());
+    }
+
+    private int readByte() throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of AMF3 data");
+        }
+        return b;
+    }
+
+    private int readInt32() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        Util.readBytesUntilFull(in, bytes);
+        return bytes;
+    }
+
+    private static <T> T getReference(List<T> references, int index) throws IOException {
+        if (index >= references.size()) {
+            throw new IOException("Invalid AMF3 reference: " + index);
+        }
+        return references.get(index);
+    }
+}
@@ -0,0 +1,201 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import com.github.faucamp.simplertmp.Util;
+
+/**
+ * Encodes AMF data as AMF3, the counterpart of Amf3Decoder.
+ * 
+ * Strings and objects that occur more than once are written as references
+ * to their first occurrence. Objects are written with sealed, anonymous
+ * traits (their property names), so objects with the same property names -
+ * e.g. a list of metadata entries - only write their property names once.
+ * An encoder keeps its reference tables for all values written with it.
+ * 
+ * @author francois
+ */
+public class Amf3Encoder {
+
+    /** Integers outside this range are written as doubles */
+    private static final int MIN_INTEGER = -(1 << 28);
+    private static final int MAX_INTEGER = (1 << 28) - 1;
+    private final OutputStream out;
+    private final Map<String, Integer> stringReferences = new HashMap<String, Integer>();
+    private final Map<AmfData, Integer> objectReferences = new IdentityHashMap<AmfData, Integer>();
+    /** Traits references, by property names (each followed by a 0 character) */
+    private final Map<String, Integer> traitsReferences = new HashMap<String, Integer>();
+
+    public Amf3Encoder(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Writes a single AMF3 value with a new encoder, i.e. with empty reference tables */
+    public static void writeTo(OutputStream out, AmfData value) throws IOException {
+        new Amf3Encoder(out).writeValue(value);
+    }
+
+    public void writeValue(AmfData value) throws IOException {
+        if (value == null || value instanceof AmfNull) {
+            out.write(Amf3Type.NULL.getValue());
+        } else if (value instanceof AmfBoolean) {
+            out.write(((AmfBoolean) value).isValue() ? Amf3Type.TRUE.getValue() : Amf3Type.FALSE.getValue());
+        } else if (value instanceof AmfNumber) {
+            writeNumber(((AmfNumber) value).getValue());
+        } else if (value instanceof AmfString) {
+            out.write(Amf3Type.STRING.getValue());
+            writeString(((AmfString) value).getValue());
+        } else if (value instanceof AmfMap) {
+            writeMap((AmfMap) value);
+        } else if (value instanceof AmfObject) {
+            writeObject((AmfObject) value);
+        } else if (value instanceof AmfArray) {
+            writeArray((AmfArray) value);
+        } else if (value instanceof AmfByteArray) {
+            writeByteArray((AmfByteArray) value);
+        } else {
+            throw new IOException("Unknown/unimplemented AMF data type: " + value.getClass().getName());
+        }
+    }
+
+    /** Writes a variable-length unsigned 29-bit integer (U29) */
+    public void writeU29(int value) throws IOException {
+        value &= 0x1FFFFFFF;
+        if (value < 0x80) {
+            out.write(value);
+        } else if (value < 0x4000) {
+            out.write((value >> 7) | 0x80);
+            out.write(value & 0x7F);
+        } else if (value < 0x200000) {
+            out.write((value >> 14) | 0x80);
+            out.write(((value >> 7) & 0x7F) | 0x80);
+            out.write(value & 0x7F);
+        } else {
+            out.write((value >> 22) | 0x80);
+            out.write(((value >> 15) & 0x7F) | 0x80);
+            out.write(((value >> 8) & 0x7F) | 0x80);
+            out.write(value & 0xFF);
+        }
+    }
+
+    /** @return the number of bytes of the U29 encoding of the specified value */
+    static int sizeOfU29(int value) {
+        value &= 0x1FFFFFFF;
+        if (value < 0x80) {
+            return 1;
+        } else if (value < 0x4000) {
+            return 2;
+        } else if (value < 0x200000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    /** Writes a string value (without type marker), or a reference to a previously written string */
+    public void writeString(String value) throws IOException {
+        if (value.isEmpty()) {
+            out.write(0x01); // the empty string is never sent as a reference
+            return;
+        }
+        Integer ref = stringReferences.get(value);
+        if (ref != null) {
+            writeU29(ref << 1);
+            return;
+        }
+        stringReferences.put(value, stringReferences.size());
+        byte[] bytes = value.getBytes("UTF-8");
+        writeU29((bytes.length << 1) | 0x01);
+        out.write(bytes);
+    }
+
+    private void writeNumber(double value) throws IOException {
+        final int intValue = (int) value;
+        if (intValue == value && intValue >= MIN_INTEGER && intValue <= MAX_INTEGER && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0)) {
+            out.write(Amf3Type.INTEGER.getValue());
+            writeU29(intValue);
+        } else {
+            out.write(Amf3Type.DOUBLE.getValue());
+            Util.writeDouble(out, value);
+        }
+    }
+
+    /** Writes a reference if the specified object has been written before; otherwise adds it to the reference table */
+    private boolean writeObjectReference(AmfData value) throws IOException {
+        Integer ref = objectReferences.get(value);
+        if (ref != null) {
+            writeU29(ref << 1);
+            return true;
+        }
+        objectReferences.put(value, objectReferences.size());
+        return false;
+    }
+
+    private void writeObject(AmfObject object) throws IOException {
+        out.write(Amf3Type.OBJECT.getValue());
+        if (writeObjectReference(object)) {
+            return;
+        }
+        object.decodeProperties();
+        final Map<String, AmfData> properties = object.properties;
+        StringBuilder traitsKey = new StringBuilder();
+        for (String key : properties.keySet()) {
+            traitsKey.append(key).append('\0');
+        }
+        Integer ref = traitsReferences.get(traitsKey.toString());
+        if (ref != null) {
+            writeU29((ref << 2) | 0x01);
+        } else {
+            traitsReferences.put(traitsKey.toString(), traitsReferences.size());
+            // Inline, sealed (not dynamic), not externalizable traits
+            writeU29((properties.size() << 4) | 0x03);
+            writeString(""); // anonymous class
+            for (String key : properties.keySet()) {
+                writeString(key);
+            }
+        }
+        for (AmfData value : properties.values()) {
+            writeValue(value);
+        }
+    }
+
+    private void writeMap(AmfMap map) throws IOException {
+        out.write(Amf3Type.ARRAY.getValue());
+        if (writeObjectReference(map)) {
+            return;
+        }
+        map.decodeProperties();
+        writeU29(0x01); // no dense items
+        for (Map.Entry<String, AmfData> entry : map.properties.entrySet()) {
+            writeString(entry.getKey());
+            writeValue(entry.getValue());
+        }
+        writeString("");
+    }
+
+    private void writeArray(AmfArray array) throws IOException {
+        out.write(Amf3Type.ARRAY.getValue());
+        if (writeObjectReference(array)) {
+            return;
+        }
+        final List<AmfData> items = array.getItems();
+        writeU29((items.size() << 1) | 0x01);
+        writeString(""); // no associative items
+        for (AmfData item : items) {
+            writeValue(item);
+        }
+    }
+
+    private void writeByteArray(AmfByteArray byteArray) throws IOException {
+        out.write(Amf3Type.BYTE_ARRAY.getValue());
+        if (writeObjectReference(byteArray)) {
+            return;
+        }
+        final byte[] bytes = byteArray.getValue() != null ? byteArray.getValue() : new byte[0];
+        writeU29((bytes.length << 1) | 0x01);
+        out.write(bytes);
+    }
+}
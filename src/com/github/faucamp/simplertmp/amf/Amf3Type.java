@@ -0,0 +1,57 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AMF3 data type enum
+ * 
+ * @author francois
+ */
+public enum Amf3Type {
+
+    UNDEFINED(0x00),
+    NULL(0x01),
+    FALSE(0x02),
+    TRUE(0x03),
+    /** Integer (encoded as a variable-length 29-bit signed integer; see Amf3Decoder) */
+    INTEGER(0x04),
+    /** Number (encoded as IEEE 64-bit double precision floating point number) */
+    DOUBLE(0x05),
+    /** String (UTF-8 encoded) */
+    STRING(0x06),
+    XML_DOCUMENT(0x07),
+    /** Date (milliseconds since the epoch, UTC) */
+    DATE(0x08),
+    /** Array with a dense (indexed) and an associative (named) part */
+    ARRAY(0x09),
+    /** Object - traits (class name and member names), followed by member values */
+    OBJECT(0x0A),
+    XML(0x0B),
+    BYTE_ARRAY(0x0C),
+    VECTOR_INT(0x0D),
+    VECTOR_UINT(0x0E),
+    VECTOR_DOUBLE(0x0F),
+    VECTOR_OBJECT(0x10),
+    DICTIONARY(0x11);
+    private byte value;
+    private static final Map<Byte, Amf3Type> quickLookupMap = new HashMap<Byte, Amf3Type>();
+
+    static {
+        for (Amf3Type amf3Type : Amf3Type.values()) {
+            quickLookupMap.put(amf3Type.getValue(), amf3Type);
+        }
+    }
+
+    private Amf3Type(int intValue) {
+        this.value = (byte) intValue;
+    }
+
+    public byte getValue() {
+        return value;
+    }
+
+    public static Amf3Type valueOf(byte amf3TypeByte) {
+        return quickLookupMap.get(amf3TypeByte);
+    }
+}
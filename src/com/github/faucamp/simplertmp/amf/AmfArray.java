@@ -19,7 +19,13 @@ public class AmfArray implements AmfData {
 
     @Override
     public void writeTo(OutputStream out) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        out.write(AmfType.ARRAY.getValue());
+        Util.writeUnsignedInt32(out, getLength());
+        if (items != null) {
+            for (AmfData dataItem : items) {
+                dataItem.writeTo(out);
+            }
+        }
     }
 
     @Override
@@ -61,6 +67,6 @@ public class AmfArray implements AmfData {
     }
 
     public void addItem(AmfData dataItem) {
-        getItems().add(this);
+        getItems().add(dataItem);
     }
 }
@@ -0,0 +1,55 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import com.github.faucamp.simplertmp.Util;
+
+/**
+ * AMF3 ByteArray. AMF0 has no byte array type, so in AMF0 data this is
+ * written as an AMF3 value, following the AMF3 switch marker.
+ *
+ * @author francois
+ */
+public class AmfByteArray implements AmfData {
+
+    private byte[] value;
+
+    public AmfByteArray(byte[] value) {
+        this.value = value;
+    }
+
+    public AmfByteArray() {
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public void setValue(byte[] value) {
+        this.value = value;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(AmfType.AMF3.getValue());
+        Amf3Encoder.writeTo(out, this);
+    }
+
+    /** Reads an inline AMF3 ByteArray (a U29 length followed by the bytes), after its type marker */
+    @Override
+    public void readFrom(InputStream in) throws IOException {
+        final int ref = new Amf3Decoder(in).readU29();
+        if ((ref & 0x01) == 0) {
+            throw new IOException("Unexpected AMF3 reference: " + (ref >> 1));
+        }
+        value = new byte[ref >> 1];
+        Util.readBytesUntilFull(in, value);
+    }
+
+    @Override
+    public int getSize() {
+        final int length = value != null ? value.length : 0;
+        return 2 + Amf3Encoder.sizeOfU29((length << 1) | 0x01) + length; // switch marker + AMF3 type marker + length + bytes
+    }
+}
@@ -1,7 +1,9 @@
 package com.github.faucamp.simplertmp.amf;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import com.github.faucamp.simplertmp.Util;
 
 /**
  *
@@ -13,6 +15,9 @@ public class AmfDecoder {
 
         byte amfTypeByte = (byte) in.read();
         AmfType amfType = AmfType.valueOf(amfTypeByte);
+        if (amfType == null) {
+            throw new IOException("Unknown/unimplemented AMF data type: " + amfTypeByte);
+        }
 
         AmfData amfData;
         switch (amfType) {
@@ -36,6 +41,8 @@ public class AmfDecoder {
             case ARRAY:
                 amfData = new AmfArray();
                 break;
+            case AMF3:
+                return Amf3Decoder.readFrom(in);
             default:
                 throw new IOException("Unknown/unimplemented AMF data type: " + amfType);
         }
@@ -43,4 +50,132 @@ public class AmfDecoder {
         return amfData;
 
     }
+
+    /**
+     * Decodes the AMF value at the specified position of a byte array.
+     * Objects and maps are not decoded up front; they are returned as views
+     * on the array, whose properties are only decoded when accessed. The
+     * array must therefore not be modified afterwards.
+     *
+     * @param limit the end of the AMF data in the array
+     */
+    public static AmfData readFrom(byte[] bytes, int pos, int limit) throws IOException {
+        final int end = skip(bytes, pos, limit);
+        switch (typeAt(bytes, pos, limit)) {
+            case NUMBER:
+                return new AmfNumber(Util.getDouble(bytes, pos + 1));
+            case BOOLEAN:
+                return new AmfBoolean(bytes[pos + 1] == 0x01);
+            case STRING:
+                return new AmfString(new String(bytes, pos + 3, end - pos - 3, "ASCII"));
+            case OBJECT: {
+                AmfObject amfObject = new AmfObject();
+                amfObject.setEncodedProperties(bytes, pos + 1, end);
+                return amfObject;
+            }
+            case NULL:
+                return new AmfNull();
+            case MAP: {
+                AmfMap amfMap = new AmfMap();
+                amfMap.setEncodedProperties(bytes, pos + 5, end);
+                return amfMap;
+            }
+            default:
+                return readFrom(new ByteArrayInputStream(bytes, pos, end - pos));
+        }
+    }
+
+    /**
+     * Skips over the AMF value at the specified position of a byte array,
+     * without decoding it
+     *
+     * @param limit the end of the AMF data in the array
+     * @return the position following the value
+     * @throws IOException if the value is of an unknown type, or extends past the limit
+     */
+    public static int skip(byte[] bytes, int pos, int limit) throws IOException {
+        final AmfType amfType = typeAt(bytes, pos, limit);
+        final int end;
+        switch (amfType) {
+            case NUMBER:
+                end = pos + AmfNumber.SIZE;
+                break;
+            case BOOLEAN:
+                end = pos + 2;
+                break;
+            case STRING:
+                checkLimit(pos + 3, limit);
+                end = pos + 3 + Util.getUnsignedInt16(bytes, pos + 1);
+                break;
+            case OBJECT:
+                end = skipProperties(bytes, pos + 1, limit);
+                break;
+            case NULL:
+                end = pos + 1;
+                break;
+            case MAP:
+                checkLimit(pos + 5, limit);
+                end = skipProperties(bytes, pos + 5, limit);
+                break;
+            case ARRAY: {
+                checkLimit(pos + 5, limit);
+                final int length = Util.getUnsignedInt32(bytes, pos + 1);
+                int itemPos = pos + 5;
+                for (int i = 0; i < length; i++) {
+                    itemPos = skip(bytes, itemPos, limit);
+                }
+                end = itemPos;
+                break;
+            }
+            case AMF3: {
+                // AMF3 values can only be skipped by decoding them, as their length depends on the reference tables
+                ByteArrayInputStream in = new ByteArrayInputStream(bytes, pos + 1, limit - pos - 1);
+                Amf3Decoder.readFrom(in);
+                end = limit - in.available();
+                break;
+            }
+            default:
+                throw new IOException("Unknown/unimplemented AMF data type: " + amfType);
+        }
+        checkLimit(end, limit);
+        return end;
+    }
+
+    /**
+     * Skips the key/value pairs of an object, starting at the first key
+     *
+     * @return the position following the object end marker
+     */
+    static int skipProperties(byte[] bytes, int pos, int limit) throws IOException {
+        while (true) {
+            checkLimit(pos + 3, limit);
+            if (isObjectEnd(bytes, pos)) {
+                return pos + 3;
+            }
+            pos += 2 + Util.getUnsignedInt16(bytes, pos); // key
+            pos = skip(bytes, pos, limit); // value
+        }
+    }
+
+    /** @return <code>true</code> if the object end marker (0x00 0x00 0x09) is at the specified position */
+    static boolean isObjectEnd(byte[] bytes, int pos) {
+        return bytes[pos] == AmfObject.OBJECT_END_MARKER[0] && bytes[pos + 1] == AmfObject.OBJECT_END_MARKER[1] && bytes[pos + 2] == AmfObject.OBJECT_END_MARKER[2];
+    }
+
+    private static AmfType typeAt(byte[] bytes, int pos, int limit) throws IOException {
+        if (pos >= limit) {
+            throw new IOException("Unexpected end of AMF data");
+        }
+        final AmfType amfType = AmfType.valueOf(bytes[pos]);
+        if (amfType == null) {
+            throw new IOException("Unknown/unimplemented AMF data type: " + bytes[pos]);
+        }
+        return amfType;
+    }
+
+    private static void checkLimit(int pos, int limit) throws IOException {
+        if (pos > limit) {
+            throw new IOException("Unexpected end of AMF data");
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * List of consecutive AMF values that are decoded from their encoded bytes
+ * only when accessed with <code>get()</code>. The values are located (and
+ * validated) up front by skipping over them, without decoding them.
+ * 
+ * Values can be added and replaced as with any other list.
+ * 
+ * @author francois
+ */
+public class AmfLazyList extends AbstractList<AmfData> {
+
+    private final byte[] bytes;
+    private final int limit;
+    /** Decoded values; <code>null</code> for values that have not been decoded yet */
+    private final List<AmfData> items;
+    /** Start positions of the encoded values */
+    private final int[] positions;
+
+    /**
+     * @param bytes the encoded values; this array must not be modified afterwards
+     * @throws IOException if the bytes do not contain a sequence of valid AMF values
+     */
+    public AmfLazyList(byte[] bytes, int offset, int length) throws IOException {
+        this.bytes = bytes;
+        this.limit = offset + length;
+        int count = 0;
+        int[] valuePositions = new int[8];
+        for (int pos = offset; pos < limit; pos = AmfDecoder.skip(bytes, pos, limit)) {
+            if (count == valuePositions.length) {
+                int[] newPositions = new int[count * 2];
+                System.arraycopy(valuePositions, 0, newPositions, 0, count);
+                valuePositions = newPositions;
+            }
+            valuePositions[count++] = pos;
+        }
+        positions = valuePositions;
+        items = new ArrayList<AmfData>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(null);
+        }
+    }
+
+    @Override
+    public AmfData get(int index) {
+        AmfData item = items.get(index);
+        if (item == null) {
+            try {
+                item = AmfDecoder.readFrom(bytes, positions[index], limit);
+            } catch (IOException ex) {
+                // Cannot happen; the values were validated when this list was created
+                throw new IllegalStateException("Invalid AMF data", ex);
+            }
+            items.set(index, item);
+        }
+        return item;
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public AmfData set(int index, AmfData element) {
+        final AmfData previous = get(index);
+        items.set(index, element);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, AmfData element) {
+        if (index != items.size()) {
+            // Inserting would shift the positions of the encoded values
+            for (int i = 0; i < items.size(); i++) {
+                get(i);
+            }
+        }
+        items.add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public AmfData remove(int index) {
+        for (int i = 0; i < items.size(); i++) {
+            get(i);
+        }
+        modCount++;
+        return items.remove(index);
+    }
+}
@@ -3,7 +3,6 @@ package com.github.faucamp.simplertmp.amf;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Map;
 import com.github.faucamp.simplertmp.Util;
 
 /**
@@ -22,15 +21,8 @@ public class AmfMap extends AmfObject {
         // Write the "array size" == 0
         Util.writeUnsignedInt32(out, 0);
 
-        // Write key/value pairs in this object        
-        for (Map.Entry<String, AmfData> entry : properties.entrySet()) {
-            // The key must be a STRING type, and thus the "type-definition" byte is implied (not included in message)
-            AmfString.writeStringTo(out, entry.getKey(), true);
-            entry.getValue().writeTo(out);
-        }
-
-        // End the object        
-        out.write(OBJECT_END_MARKER);
+        // Write key/value pairs in this object
+        writePropertiesTo(out);
     }
 
     @Override
@@ -4,13 +4,21 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.util.L;
 
 /**
  * AMF object
  * 
+ * Objects read with <code>AmfDecoder.readFrom(byte[], int, int)</code> are
+ * views on the encoded bytes: <code>getProperty()</code> skips over the encoded
+ * properties to find the requested key, and decodes (and caches) only that
+ * value; all properties are only decoded when they are enumerated or modified.
+ * Unmodified objects are written out as-is.
+ * 
  * @author francois
  */
 public class AmfObject implements AmfData {
@@ -19,38 +27,144 @@ public class AmfObject implements AmfData {
     protected int size = -1;
     /** Byte sequence that marks the end of an AMF object */
     protected static final byte[] OBJECT_END_MARKER = new byte[]{0x00, 0x00, 0x09};
+    /** Encoded properties (including the end marker) as read; <code>null</code> if modified since */
+    private byte[] encodedBytes;
+    private int encodedStart;
+    private int encodedEnd;
+    /**
+     * Set once all encoded properties have been decoded into the properties map;
+     * until then, the map only caches the values looked up with getProperty()
+     */
+    private boolean decoded = true;
 
     public AmfObject() {
     }
 
+    /** Makes this object a view on the specified encoded properties (from the first key up to and including the end marker) */
+    void setEncodedProperties(byte[] bytes, int start, int end) {
+        encodedBytes = bytes;
+        encodedStart = start;
+        encodedEnd = end;
+        decoded = false;
+        properties.clear();
+        size = -1;
+    }
+
     public AmfData getProperty(String key) {
-        return properties.get(key);
+        AmfData value = properties.get(key);
+        if (value == null && !decoded) {
+            value = decodeProperty(key);
+            if (value != null) {
+                properties.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /** @return the decoded value of the specified key (the last one, if repeated), or <code>null</code> if absent */
+    private AmfData decodeProperty(String key) {
+        try {
+            int valuePos = -1;
+            int pos = encodedStart;
+            while (!AmfDecoder.isObjectEnd(encodedBytes, pos)) {
+                final int keyLength = Util.getUnsignedInt16(encodedBytes, pos);
+                if (keyEquals(pos + 2, keyLength, key)) {
+                    valuePos = pos + 2 + keyLength;
+                }
+                pos = AmfDecoder.skip(encodedBytes, pos + 2 + keyLength, encodedEnd);
+            }
+            return valuePos == -1 ? null : AmfDecoder.readFrom(encodedBytes, valuePos, encodedEnd);
+        } catch (IOException ex) {
+            // Cannot happen; the encoded properties were validated when this object was read
+            throw new IllegalStateException("Invalid AMF object data", ex);
+        }
+    }
+
+    /** @return <code>true</code> if the encoded (ASCII) key at the specified position equals the specified key */
+    private boolean keyEquals(int pos, int length, String key) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ((encodedBytes[pos + i] & 0xff) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return all properties of this object, in order; the returned map is read-only */
+    public Map<String, AmfData> getProperties() {
+        decodeProperties();
+        return Collections.unmodifiableMap(properties);
     }
 
     public void setProperty(String key, AmfData value) {
+        decodeProperties();
+        // The encoded bytes no longer match the properties
+        encodedBytes = null;
+        size = -1;
         properties.put(key, value);
     }
 
     public void setProperty(String key, boolean value) {
-        properties.put(key, new AmfBoolean(value));
+        setProperty(key, new AmfBoolean(value));
     }
 
     public void setProperty(String key, String value) {
-        properties.put(key, new AmfString(value, false));
+        setProperty(key, new AmfString(value, false));
     }
 
     public void setProperty(String key, int value) {
-        properties.put(key, new AmfNumber(value));
+        setProperty(key, new AmfNumber(value));
     }
 
     public void setProperty(String key, double value) {
-        properties.put(key, new AmfNumber(value));
+        setProperty(key, new AmfNumber(value));
+    }
+
+    /**
+     * Decodes all encoded properties, in order, if this object is a view on
+     * encoded bytes that have not been decoded yet; values already looked up
+     * with getProperty() are reused
+     */
+    protected void decodeProperties() {
+        if (decoded) {
+            return;
+        }
+        try {
+            final Map<String, AmfData> decodedProperties = new LinkedHashMap<String, AmfData>();
+            int pos = encodedStart;
+            while (!AmfDecoder.isObjectEnd(encodedBytes, pos)) {
+                final int keyLength = Util.getUnsignedInt16(encodedBytes, pos);
+                final int valuePos = pos + 2 + keyLength;
+                final String key = new String(encodedBytes, pos + 2, keyLength, "ASCII");
+                AmfData value = properties.get(key);
+                decodedProperties.put(key, value != null ? value : AmfDecoder.readFrom(encodedBytes, valuePos, encodedEnd));
+                pos = AmfDecoder.skip(encodedBytes, valuePos, encodedEnd);
+            }
+            properties = decodedProperties;
+        } catch (IOException ex) {
+            // Cannot happen; the encoded properties were validated when this object was read
+            throw new IllegalStateException("Invalid AMF object data", ex);
+        }
+        decoded = true;
     }
 
     @Override
     public void writeTo(OutputStream out) throws IOException {
         // Begin the object
         out.write(AmfType.OBJECT.getValue());
+        writePropertiesTo(out);
+    }
+
+    /** Writes the key/value pairs of this object, followed by the object end marker */
+    protected void writePropertiesTo(OutputStream out) throws IOException {
+        if (encodedBytes != null) {
+            // Not modified since it was read; write the original bytes
+            out.write(encodedBytes, encodedStart, encodedEnd - encodedStart);
+            return;
+        }
 
         // Write key/value pairs in this object        
         for (Map.Entry<String, AmfData> entry : properties.entrySet()) {
@@ -61,7 +175,6 @@ public class AmfObject implements AmfData {
 
         // End the object        
         out.write(OBJECT_END_MARKER);
-
     }
 
     @Override
@@ -96,7 +209,9 @@ public class AmfObject implements AmfData {
 
     @Override
     public int getSize() {
-        if (size == -1) {
+        if (size == -1 && encodedBytes != null) {
+            size = 1 + encodedEnd - encodedStart; // object marker + encoded properties
+        } else if (size == -1) {
             size = 1; // object marker                
             for (Map.Entry<String, AmfData> entry : properties.entrySet()) {
                 size += AmfString.sizeOf(entry.getKey(), true);
@@ -20,7 +20,9 @@ public enum AmfType {
     OBJECT(0x03),
     NULL(0x05),
     MAP(0x08),
-    ARRAY(0x0A);
+    ARRAY(0x0A),
+    /** Switch to AMF3 - the following value is AMF3 encoded (see Amf3Decoder) */
+    AMF3(0x11);
     private byte value;
     private static final Map<Byte, AmfType> quickLookupMap = new HashMap<Byte, AmfType>();
 
@@ -0,0 +1,14 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.IOException;
+
+/**
+ * AMF data that writes itself with an AmfWriter, without first being built
+ * as AmfData objects; e.g. the arguments of an outgoing command
+ * 
+ * @author francois
+ */
+public interface AmfWritable {
+
+    void writeTo(AmfWriter writer) throws IOException;
+}
@@ -0,0 +1,193 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fluent AMF0 encoder that writes values straight to an output stream,
+ * without building AmfData objects first, e.g.:
+ * <code>writer.string("play").number(transactionId).nul()</code>
+ * 
+ * Strings are encoded without intermediate byte arrays; the encoded forms
+ * of common command names, object keys and values are precomputed.
+ * 
+ * @author francois
+ */
+public final class AmfWriter {
+
+    /** Encoded object keys (length + bytes) */
+    private static final Map<String, byte[]> ENCODED_KEYS = new HashMap<String, byte[]>();
+    /** Encoded string values (type marker + length + bytes) */
+    private static final Map<String, byte[]> ENCODED_STRINGS = new HashMap<String, byte[]>();
+    private static final byte[] OBJECT_END_MARKER = {0x00, 0x00, 0x09};
+    /** Writers are reused per thread; see forStream() */
+    private static final ThreadLocal<AmfWriter> threadWriter = new ThreadLocal<AmfWriter>() {
+
+        @Override
+        protected AmfWriter initialValue() {
+            return new AmfWriter(null);
+        }
+    };
+
+    static {
+        for (String key : new String[]{"app", "flashVer", "swfUrl", "tcUrl", "fpad", "capabilities", "audioCodecs", "videoCodecs",
+                    "videoFunction", "pageUrl", "objectEncoding", "type", "level", "code", "description", "duration", "width", "height",
+                    "videocodecid", "audiocodecid", "framerate", "videodatarate", "audiodatarate", "audiosamplerate", "stereo"}) {
+            ENCODED_KEYS.put(key, encode(key, false));
+        }
+        for (String value : new String[]{"connect", "createStream", "play", "pause", "seek", "closeStream", "deleteStream", "publish",
+                    "live", "record", "append", "_result", "_error", "onStatus", "onMetaData", "@setDataFrame", "status", "error"}) {
+            ENCODED_STRINGS.put(value, encode(value, true));
+        }
+    }
+    private OutputStream out;
+    /** Reused for encoding numbers and strings */
+    private final byte[] buffer = new byte[256];
+
+    public AmfWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /** @return this thread's writer, set up to write to the specified output stream */
+    public static AmfWriter forStream(OutputStream out) {
+        AmfWriter writer = threadWriter.get();
+        writer.out = out;
+        return writer;
+    }
+
+    public AmfWriter string(String value) throws IOException {
+        byte[] encoded = ENCODED_STRINGS.get(value);
+        if (encoded != null) {
+            out.write(encoded);
+        } else {
+            out.write(AmfType.STRING.getValue());
+            writeStringBytes(value);
+        }
+        return this;
+    }
+
+    public AmfWriter number(double value) throws IOException {
+        final long bits = Double.doubleToRawLongBits(value);
+        buffer[0] = AmfType.NUMBER.getValue();
+        for (int i = 0; i < 8; i++) {
+            buffer[1 + i] = (byte) (bits >>> (56 - 8 * i));
+        }
+        out.write(buffer, 0, AmfNumber.SIZE);
+        return this;
+    }
+
+    public AmfWriter bool(boolean value) throws IOException {
+        out.write(AmfType.BOOLEAN.getValue());
+        out.write(value ? 0x01 : 0x00);
+        return this;
+    }
+
+    public AmfWriter nul() throws IOException {
+        out.write(AmfType.NULL.getValue());
+        return this;
+    }
+
+    /** Writes any AmfData value */
+    public AmfWriter value(AmfData value) throws IOException {
+        if (value == null) {
+            return nul();
+        }
+        value.writeTo(out);
+        return this;
+    }
+
+    /** Writes any AmfData value AMF3 encoded, following the AMF3 switch marker */
+    public AmfWriter amf3(AmfData value) throws IOException {
+        out.write(AmfType.AMF3.getValue());
+        Amf3Encoder.writeTo(out, value);
+        return this;
+    }
+
+    /** Starts an object; write its properties with <code>key()</code> followed by a value, and end it with <code>endObject()</code> */
+    public AmfWriter startObject() throws IOException {
+        out.write(AmfType.OBJECT.getValue());
+        return this;
+    }
+
+    /** Starts an ECMA array (AmfMap); its properties are written as for objects */
+    public AmfWriter startMap() throws IOException {
+        out.write(AmfType.MAP.getValue());
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0); // "array size" (seemingly always 0)
+        return this;
+    }
+
+    /** Starts a strict array; this must be followed by exactly the specified number of values */
+    public AmfWriter startArray(int length) throws IOException {
+        out.write(AmfType.ARRAY.getValue());
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        return this;
+    }
+
+    /** Writes the key of an object property; this must be followed by the property's value */
+    public AmfWriter key(String key) throws IOException {
+        byte[] encoded = ENCODED_KEYS.get(key);
+        if (encoded != null) {
+            out.write(encoded);
+        } else {
+            writeStringBytes(key);
+        }
+        return this;
+    }
+
+    /** Ends an object or ECMA array */
+    public AmfWriter endObject() throws IOException {
+        out.write(OBJECT_END_MARKER);
+        return this;
+    }
+
+    public AmfWriter property(String key, String value) throws IOException {
+        return key(key).string(value);
+    }
+
+    public AmfWriter property(String key, double value) throws IOException {
+        return key(key).number(value);
+    }
+
+    public AmfWriter property(String key, boolean value) throws IOException {
+        return key(key).bool(value);
+    }
+
+    /** Writes the length and (ASCII) characters of a string, using the buffer instead of String.getBytes() */
+    private void writeStringBytes(String value) throws IOException {
+        final int length = value.length();
+        buffer[0] = (byte) (length >>> 8);
+        buffer[1] = (byte) length;
+        int count = 2;
+        for (int i = 0; i < length; i++) {
+            if (count == buffer.length) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+            final char c = value.charAt(i);
+            buffer[count++] = (byte) (c < 0x80 ? c : '?');
+        }
+        out.write(buffer, 0, count);
+    }
+
+    private static byte[] encode(String value, boolean withTypeMarker) {
+        final int offset = withTypeMarker ? 1 : 0;
+        byte[] encoded = new byte[offset + 2 + value.length()];
+        if (withTypeMarker) {
+            encoded[0] = AmfType.STRING.getValue();
+        }
+        encoded[offset] = (byte) (value.length() >>> 8);
+        encoded[offset + 1] = (byte) value.length();
+        for (int i = 0; i < value.length(); i++) {
+            encoded[offset + 2 + i] = (byte) value.charAt(i);
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of (optionally direct) byte buffers, used for audio and
+ * video packet payloads to avoid allocating a new array for every packet.
+ *
+ * Buffer sizes are rounded up to the next power of two, from 256 bytes up to
+ * 1 MB; larger requests are allocated without pooling. The pool is
+ * thread-safe, and can be shared between connections.
+ *
+ * @author francois
+ */
+public class BufferPool {
+
+    private static final int MIN_SIZE_CLASS_SHIFT = 8; // 256 bytes
+    private static final int MAX_SIZE_CLASS_SHIFT = 20; // 1 MB
+    private static final int NUM_SIZE_CLASSES = MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1;
+    private final boolean direct;
+    private final int maxBuffersPerSizeClass;
+    private final ConcurrentLinkedQueue<PooledBuffer>[] freeBuffers;
+    private final AtomicInteger[] freeBufferCounts;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a pool of heap buffers, keeping at most 64 free buffers per size class */
+    public BufferPool() {
+        this(false, 64);
+    }
+
+    /**
+     * @param direct if <code>true</code>, allocate direct (off-heap) buffers
+     * @param maxBuffersPerSizeClass the maximum number of free buffers kept per size class
+     */
+    public BufferPool(boolean direct, int maxBuffersPerSizeClass) {
+        this.direct = direct;
+        this.maxBuffersPerSizeClass = maxBuffersPerSizeClass;
+        @SuppressWarnings("unchecked")
+        final ConcurrentLinkedQueue<PooledBuffer>[] queues = (ConcurrentLinkedQueue<PooledBuffer>[]) new ConcurrentLinkedQueue<?>[NUM_SIZE_CLASSES];
+        freeBuffers = queues;
+        freeBufferCounts = new AtomicInteger[NUM_SIZE_CLASSES];
+        for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+            freeBuffers[i] = new ConcurrentLinkedQueue<PooledBuffer>();
+            freeBufferCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Leases a buffer of (at least) the specified size from the pool. The
+     * returned buffer has a reference count of 1, position 0 and its limit set
+     * to <code>size</code>.
+     */
+    public PooledBuffer acquire(int size) {
+        final int sizeClass = sizeClassOf(size);
+        if (sizeClass == -1) {
+            misses.incrementAndGet();
+            return new PooledBuffer(allocate(size), null, -1);
+        }
+        PooledBuffer pooledBuffer = freeBuffers[sizeClass].poll();
+        if (pooledBuffer != null) {
+            freeBufferCounts[sizeClass].decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            pooledBuffer = new PooledBuffer(allocate(1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)), this, sizeClass);
+        }
+        pooledBuffer.reset(size);
+        return pooledBuffer;
+    }
+
+    /** Returns a buffer whose reference count has reached 0 to the pool */
+    void recycle(PooledBuffer pooledBuffer) {
+        final int sizeClass = pooledBuffer.getSizeClass();
+        if (freeBufferCounts[sizeClass].incrementAndGet() <= maxBuffersPerSizeClass) {
+            freeBuffers[sizeClass].add(pooledBuffer);
+        } else {
+            // Pool is full; let the buffer be garbage collected
+            freeBufferCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /** @return the number of buffer requests that were served from the pool */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of buffer requests that required a new buffer to be allocated */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /** @return the size class index for the specified size, or -1 if it is too large to be pooled */
+    private static int sizeClassOf(int size) {
+        if (size <= (1 << MIN_SIZE_CLASS_SHIFT)) {
+            return 0;
+        }
+        final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift <= MAX_SIZE_CLASS_SHIFT ? shift - MIN_SIZE_CLASS_SHIFT : -1;
+    }
+}
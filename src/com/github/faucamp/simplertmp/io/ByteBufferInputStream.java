@@ -0,0 +1,78 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream view over the remaining bytes of a ByteBuffer; the end of the
+ * stream is reached at the buffer's limit. The buffer can be swapped out, so
+ * a single instance can be reused for many packet bodies.
+ *
+ * @author francois
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private ByteBuffer buffer;
+    private int mark = -1;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        mark = -1;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        final int remaining = buffer.remaining();
+        if (remaining == 0) {
+            return -1;
+        }
+        final int bytesToRead = Math.min(len, remaining);
+        buffer.get(b, off, bytesToRead);
+        return bytesToRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        final int bytesToSkip = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + bytesToSkip);
+        return bytesToSkip;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        if (mark != -1) {
+            buffer.position(mark);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Growable, reusable OutputStream backed by a ByteBuffer
+ *
+ * Used to serialize outgoing RTMP packets without allocating a new buffer
+ * for every packet; call <code>getBuffer()</code> to get the written bytes
+ * (flipped, ready for reading) and <code>reset()</code> to reuse the stream.
+ *
+ * @author francois
+ */
+class ByteBufferOutputStream extends OutputStream {
+
+    private ByteBuffer buffer;
+
+    public ByteBufferOutputStream(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        buffer.put(b, off, len);
+    }
+
+    /** @return the number of bytes written since the last reset */
+    public int size() {
+        return buffer.position();
+    }
+
+    /** Discards all written bytes, keeping the backing buffer for reuse */
+    public void reset() {
+        buffer.clear();
+    }
+
+    /**
+     * @return a view of the written bytes, positioned at 0 and limited to the
+     * amount of bytes written (the stream itself is not affected)
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        return view;
+    }
+
+    /**
+     * @return a view of the specified range of written bytes; the view stays
+     * valid (and unchanged) until the next <code>reset()</code>, even if the
+     * stream grows in the meantime
+     */
+    public ByteBuffer slice(int start, int end) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end);
+        view.position(start);
+        return view;
+    }
+
+    private void ensureCapacity(int bytesToWrite) {
+        if (buffer.remaining() < bytesToWrite) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytesToWrite));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.Data;
+import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.io.packets.SetChunkSize;
+
+/**
+ * Splits outgoing RTMP packets into chunks, as a list of ByteBuffer slices
+ * suitable for a single gathering write.
+ *
+ * Chunk headers, separator bytes and (small) non-media packet bodies are
+ * serialized into a reusable scratch buffer; audio/video payloads are not
+ * copied at all, but sliced straight from the packet's payload buffer.
+ *
+ * @author francois
+ */
+public class ChunkEncoder {
+
+    private static final int INITIAL_SCRATCH_BUFFER_SIZE = 4 * 1024;
+    private final RtmpSessionInfo rtmpSessionInfo;
+    private final ByteBufferOutputStream scratch = new ByteBufferOutputStream(INITIAL_SCRATCH_BUFFER_SIZE);
+    private ByteBuffer[] slices = new ByteBuffer[32];
+    private int sliceCount = 0;
+    /** Index of the first slice that has not been fully written yet */
+    private int firstSlice = 0;
+
+    public ChunkEncoder(RtmpSessionInfo rtmpSessionInfo) {
+        this.rtmpSessionInfo = rtmpSessionInfo;
+    }
+
+    /**
+     * Appends the chunks of the specified packet to the pending slices, and
+     * records its header as the previous header transmitted on the chunk stream.
+     *
+     * Headers of media packets (audio, video and data) are compressed relative
+     * to the previous header on the chunk stream, using the packet's own
+     * absolute timestamp; other packets are sent with the header type they
+     * were created with.
+     *
+     * The encoded bytes are counted as sent against the peer bandwidth.
+     */
+    public void encode(RtmpPacket rtmpPacket, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        final ByteBuffer body;
+        if (rtmpPacket instanceof ContentData) {
+            // Length is known up front; slice the payload in place
+            body = ((ContentData) rtmpPacket).getDataBuffer();
+        } else {
+            final int bodyStart = scratch.size();
+            rtmpPacket.writeBodyTo(scratch);
+            body = scratch.slice(bodyStart, scratch.size());
+        }
+        final int packetLength = body.remaining();
+        rtmpPacket.getHeader().setPacketLength(packetLength);
+        if (rtmpPacket instanceof ContentData || rtmpPacket instanceof Data) {
+            chunkStreamInfo.compressHeaderTx(rtmpPacket.getHeader());
+        }
+
+        final int headerStart = scratch.size();
+        rtmpPacket.getHeader().writeTo(scratch, chunkStreamInfo);
+        addSlice(scratch.slice(headerStart, scratch.size()));
+        int encodedLength = scratch.size() - headerStart + packetLength;
+
+        final int chunkSize = rtmpSessionInfo.getTxChunkSize();
+        int pos = body.position();
+        final int end = body.limit();
+        while (end - pos > chunkSize) {
+            addSlice(bodySlice(body, pos, pos + chunkSize));
+            pos += chunkSize;
+            final int separatorStart = scratch.size();
+            rtmpPacket.getHeader().writeAggregateHeaderByte(scratch);
+            addSlice(scratch.slice(separatorStart, scratch.size()));
+            encodedLength += scratch.size() - separatorStart;
+        }
+        addSlice(bodySlice(body, pos, end));
+        chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
+        rtmpSessionInfo.addToBytesSent(encodedLength);
+        if (rtmpPacket instanceof SetChunkSize) {
+            // All chunks following this message use the new chunk size
+            rtmpSessionInfo.setTxChunkSize(((SetChunkSize) rtmpPacket).getChunkSize());
+        }
+    }
+
+    /** @return <code>true</code> if there are encoded bytes that have not been written yet */
+    public boolean hasRemaining() {
+        return firstSlice < sliceCount;
+    }
+
+    /**
+     * Writes as many pending bytes as the channel accepts, using gathering writes
+     * @return the number of bytes written
+     */
+    public long write(GatheringByteChannel channel) throws IOException {
+        long totalWritten = 0;
+        while (firstSlice < sliceCount) {
+            final long written = channel.write(slices, firstSlice, sliceCount - firstSlice);
+            totalWritten += written;
+            while (firstSlice < sliceCount && !slices[firstSlice].hasRemaining()) {
+                firstSlice++;
+            }
+            if (written == 0) {
+                break; // channel cannot accept more bytes right now
+            }
+        }
+        return totalWritten;
+    }
+
+    /** Writes all pending bytes to the specified (blocking) stream */
+    public void write(OutputStream out) throws IOException {
+        byte[] copyBuffer = null;
+        for (; firstSlice < sliceCount; firstSlice++) {
+            final ByteBuffer slice = slices[firstSlice];
+            if (slice.hasArray()) {
+                out.write(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+                slice.position(slice.limit());
+            } else {
+                if (copyBuffer == null) {
+                    copyBuffer = new byte[INITIAL_SCRATCH_BUFFER_SIZE];
+                }
+                while (slice.hasRemaining()) {
+                    final int count = Math.min(copyBuffer.length, slice.remaining());
+                    slice.get(copyBuffer, 0, count);
+                    out.write(copyBuffer, 0, count);
+                }
+            }
+        }
+    }
+
+    /** Discards all pending slices, and rewinds the scratch buffer for reuse */
+    public void reset() {
+        for (int i = 0; i < sliceCount; i++) {
+            slices[i] = null;
+        }
+        sliceCount = 0;
+        firstSlice = 0;
+        scratch.reset();
+    }
+
+    private static ByteBuffer bodySlice(ByteBuffer body, int start, int end) {
+        ByteBuffer slice = body.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice;
+    }
+
+    private void addSlice(ByteBuffer slice) {
+        if (sliceCount == slices.length) {
+            ByteBuffer[] newSlices = new ByteBuffer[slices.length * 2];
+            System.arraycopy(slices, 0, newSlices, 0, sliceCount);
+            slices = newSlices;
+        }
+        slices[sliceCount++] = slice;
+    }
+}
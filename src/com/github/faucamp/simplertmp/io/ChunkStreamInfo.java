@@ -1,10 +1,7 @@
 package com.github.faucamp.simplertmp.io;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import com.github.faucamp.simplertmp.Util;
+import java.nio.ByteBuffer;
 import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
 
 /**
@@ -15,12 +12,15 @@ import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
 public class ChunkStreamInfo {
 
     public static final byte RTMP_STREAM_CHANNEL = 0x08;
+    public static final byte RTMP_AUDIO_CHANNEL = 0x04;
+    public static final byte RTMP_VIDEO_CHANNEL = 0x06;
     public static final byte RTMP_COMMAND_CHANNEL = 0x03;
     public static final byte CONTROL_CHANNEL = 0x02;
     private RtmpHeader prevHeaderRx;
     private RtmpHeader prevHeaderTx;
     private long realLastTimestamp = 0;
-    private ByteArrayOutputStream baos = new ByteArrayOutputStream(3 * 128); // 128 == default chunk size
+    /** Buffer that the chunks of a multi-chunk packet are reassembled in; <code>null</code> if no packet is being stored */
+    private PooledBuffer messageBuffer;
 
     /** @return the previous header that was received on this channel, or <code>null</code> if no previous header was received */
     public RtmpHeader prevHeaderRx() {
@@ -45,6 +45,32 @@ public class ChunkStreamInfo {
     public void setPrevHeaderTx(RtmpHeader prevHeaderTx) {
         this.prevHeaderTx = prevHeaderTx;
     }
+
+    /**
+     * Selects the most compact chunk header type for the specified header,
+     * relative to the previous header transmitted on this channel, and sets
+     * its timestamp delta. The header's absolute timestamp must be set by the
+     * caller (e.g. to the media timestamp), as must its packet length.
+     */
+    public void compressHeaderTx(RtmpHeader header) {
+        final RtmpHeader prev = prevHeaderTx;
+        if (prev == null || prev.getMessageStreamId() != header.getMessageStreamId()
+                || header.getAbsoluteTimestamp() < prev.getAbsoluteTimestamp()) {
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_0_FULL);
+            header.setTimestampDelta(0);
+            return;
+        }
+        final int timestampDelta = header.getAbsoluteTimestamp() - prev.getAbsoluteTimestamp();
+        header.setTimestampDelta(timestampDelta);
+        if (!canReusePrevHeaderTx(header.getMessageType()) || prev.getPacketLength() != header.getPacketLength()) {
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE);
+        } else if (prev.getChunkType() == RtmpHeader.ChunkType.TYPE_0_FULL || prev.getTimestampDelta() != timestampDelta) {
+            // A type 3 header following a type 0 header is interpreted inconsistently by peers, so always send the delta
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY);
+        } else {
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+        }
+    }
     
     /** Utility method for calculating & synchronizing transmitted timestamps & timestamp deltas */
     public long markRealAbsoluteTimestampTx() {
@@ -52,23 +78,52 @@ public class ChunkStreamInfo {
         return realLastTimestamp;
     }
 
-    /** @return <code>true</code> if all packet data has been stored, or <code>false</code> if not */
-    public boolean storePacketChunk(InputStream in, int chunkSize) throws IOException {
-        final int remainingBytes = prevHeaderRx.getPacketLength() - baos.size();
-        byte[] chunk = new byte[Math.min(remainingBytes, chunkSize)];
-        Util.readBytesUntilFull(in, chunk);
-        baos.write(chunk);
-        return (baos.size() == prevHeaderRx.getPacketLength());
+    /**
+     * Copies the specified amount of chunk body bytes from the buffer straight
+     * into this chunk stream's message buffer; the message buffer is leased
+     * from the specified pool (if not <code>null</code>) when a new message starts
+     * @return <code>true</code> if all packet data has been stored, or <code>false</code> if not 
+     */
+    public boolean storePacketChunk(ByteBuffer in, int chunkBodySize, BufferPool bufferPool) {
+        if (messageBuffer == null) {
+            startMessage(bufferPool);
+        }
+        final ByteBuffer buffer = messageBuffer.getBuffer();
+        final int limit = in.limit();
+        in.limit(in.position() + chunkBodySize);
+        buffer.put(in);
+        in.limit(limit);
+        return !buffer.hasRemaining();
     }
 
-    public ByteArrayInputStream getStoredPacketInputStream() {
-        ByteArrayInputStream bis = new ByteArrayInputStream(baos.toByteArray());
-        baos.reset();
-        return bis;
+    /** Allocates a message buffer sized to hold the full packet body */
+    private void startMessage(BufferPool bufferPool) {
+        final int packetLength = prevHeaderRx.getPacketLength();
+        messageBuffer = (bufferPool != null) ? bufferPool.acquire(packetLength) : new PooledBuffer(ByteBuffer.allocate(packetLength), null, -1);
     }
-    
-    /** Clears all currently-stored packet chunks (used when an ABORT packet is received) */
+
+    /** @return the number of bytes of a partially-received packet that have been stored so far */
+    public int getStoredBytes() {
+        return (messageBuffer == null) ? 0 : messageBuffer.getBuffer().position();
+    }
+
+    /**
+     * Hands over the buffer of the completed packet (flipped, so that it
+     * contains the packet body) to the caller, who becomes responsible for
+     * releasing it
+     */
+    public PooledBuffer takeStoredPacket() {
+        PooledBuffer storedPacket = messageBuffer;
+        messageBuffer = null;
+        storedPacket.getBuffer().flip();
+        return storedPacket;
+    }
+
+    /** Clears all currently-stored packet chunks (used when an ABORT packet is received); called on the reading thread */
     public void clearStoredChunks() {
-        baos.reset();
+        if (messageBuffer != null) {
+            messageBuffer.release();
+            messageBuffer = null;
+        }
     }
 }
@@ -0,0 +1,165 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import com.github.faucamp.simplertmp.util.L;
+
+/**
+ * Single selector thread that multiplexes the socket I/O of many RTMP
+ * connections (see NioTransport).
+ *
+ * All channel registration and I/O happens on this loop's own thread; other
+ * threads hand work to it via <code>execute()</code>.
+ *
+ * @author francois
+ */
+class NioEventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+    /** Delayed tasks, ordered by deadline; only accessed on the event loop thread */
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<ScheduledTask>();
+    private volatile boolean active = true;
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+        final long deadline;
+        final Runnable task;
+
+        ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            final long diff = deadline - other.deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    public NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /** @return <code>true</code> if the calling thread is this event loop's thread */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Runs the specified task on the event loop thread (thread-safe) */
+    public void execute(Runnable task) {
+        taskQueue.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the specified task on the event loop thread once the specified
+     * delay has elapsed; must be called on the event loop thread
+     */
+    void schedule(Runnable task, long delayMs) {
+        scheduledTasks.add(new ScheduledTask(System.nanoTime() + delayMs * 1000000L, task));
+    }
+
+    @Override
+    public void run() {
+        while (active) {
+            try {
+                // Don't block if tasks were queued from this thread while handling the previous keys
+                final ScheduledTask nextScheduledTask = scheduledTasks.peek();
+                if (!taskQueue.isEmpty()) {
+                    selector.selectNow();
+                } else if (nextScheduledTask == null) {
+                    selector.select();
+                } else {
+                    final long timeoutMs = (nextScheduledTask.deadline - System.nanoTime()) / 1000000L;
+                    if (timeoutMs > 0) {
+                        selector.select(timeoutMs);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+            } catch (IOException ex) {
+                L.e("NioEventLoop: Caught IOException while selecting, shutting down", ex);
+                break;
+            }
+            runTasks();
+            runScheduledTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioTransport transport = (NioTransport) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        transport.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        transport.onWritable();
+                    }
+                } catch (CancelledKeyException ex) {
+                    // Connection was closed while handling the key; nothing more to do
+                } catch (Exception ex) {
+                    L.e("NioEventLoop: Caught exception during channel I/O, closing connection", ex);
+                    transport.closeOnError();
+                }
+            }
+        }
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((NioTransport) key.attachment()).closeOnError();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            L.w("NioEventLoop: Failed to close selector", ex);
+        }
+        L.d("NioEventLoop: exiting");
+    }
+
+    private void runTasks() {
+        Runnable task = taskQueue.poll();
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                L.e("NioEventLoop: Caught exception while running task", ex);
+            }
+            task = taskQueue.poll();
+        }
+    }
+
+    private void runScheduledTasks() {
+        final long now = System.nanoTime();
+        ScheduledTask scheduledTask = scheduledTasks.peek();
+        while (scheduledTask != null && scheduledTask.deadline - now <= 0) {
+            scheduledTasks.poll();
+            try {
+                scheduledTask.task.run();
+            } catch (Exception ex) {
+                L.e("NioEventLoop: Caught exception while running scheduled task", ex);
+            }
+            scheduledTask = scheduledTasks.peek();
+        }
+    }
+
+    public void shutdown() {
+        active = false;
+        selector.wakeup();
+    }
+}
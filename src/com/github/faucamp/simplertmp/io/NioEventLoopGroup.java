@@ -0,0 +1,49 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, fixed pool of selector event loops that can be shared by many
+ * RtmpConnection instances. Connections created with an event loop group
+ * use non-blocking SocketChannel I/O instead of dedicated read, write and
+ * packet handler threads, so thousands of streams can be handled by a few
+ * threads.
+ *
+ * Note that RtmpStreamWriter callbacks are invoked on the event loop thread
+ * in this mode, so writers should not block.
+ *
+ * @author francois
+ */
+public class NioEventLoopGroup {
+
+    private final NioEventLoop[] eventLoops;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    /** Creates an event loop group with one event loop per available processor */
+    public NioEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public NioEventLoopGroup(int numEventLoops) throws IOException {
+        if (numEventLoops < 1) {
+            throw new IllegalArgumentException("At least one event loop is required");
+        }
+        eventLoops = new NioEventLoop[numEventLoops];
+        for (int i = 0; i < numEventLoops; i++) {
+            eventLoops[i] = new NioEventLoop("RtmpNioEventLoop-" + i);
+        }
+    }
+
+    /** @return the next event loop to assign a connection to (round-robin) */
+    NioEventLoop next() {
+        return eventLoops[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    /** Stops all event loops and closes all connections registered with them */
+    public void shutdown() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.github.faucamp.simplertmp.io.packets.Command;
+import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.util.L;
+
+/**
+ * Non-blocking transport for a single RTMP connection, driven by a shared
+ * NioEventLoop. This replaces the ReadThread, WriteThread and packet handler
+ * thread that are otherwise started for each connection.
+ *
+ * Received bytes are accumulated in a buffer and decoded as soon as a
+ * complete chunk is available.
+ *
+ * While the peer bandwidth is used up, queued packets are held back until an
+ * Acknowledgement arrives (see <code>resumeSending()</code>), or the send
+ * window times out.
+ *
+ * @author francois
+ */
+class NioTransport {
+
+    private final RtmpSessionInfo rtmpSessionInfo;
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final RtmpConnection rtmpConnection;
+    private final RtmpDecoder rtmpDecoder;
+    private ByteBuffer rxBuffer = ByteBuffer.allocate(RtmpDecoder.RX_BUFFER_SIZE);
+    private final WriteQueue writeQueue;
+    /** Holds the chunks that have not been fully written to the channel yet; only accessed on the event loop thread */
+    private final ChunkEncoder chunkEncoder;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private SelectionKey selectionKey;
+    /** Set while sending is held back because the peer bandwidth is used up; only accessed on the event loop thread */
+    private boolean sendWindowClosed = false;
+    private long sendWindowClosedSince;
+    private final Runnable flushTask = new Runnable() {
+
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            if (!channel.isOpen()) {
+                return; // closed while this flush was pending
+            }
+            try {
+                flush();
+            } catch (IOException ex) {
+                L.e("NioTransport: Caught IOException while writing, shutting down", ex);
+                closeOnError();
+            }
+        }
+    };
+
+    public NioTransport(RtmpSessionInfo rtmpSessionInfo, SocketChannel channel, NioEventLoop eventLoop, WriteQueue writeQueue, RtmpConnection rtmpConnection) {
+        this.rtmpSessionInfo = rtmpSessionInfo;
+        this.writeQueue = writeQueue;
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.rtmpConnection = rtmpConnection;
+        this.rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
+        this.chunkEncoder = new ChunkEncoder(rtmpSessionInfo);
+    }
+
+    /** Switches the (connected, handshaked) channel to non-blocking mode and registers it with the event loop */
+    public void start() throws IOException {
+        channel.configureBlocking(false);
+        eventLoop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    selectionKey = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, NioTransport.this);
+                    flush();
+                } catch (IOException ex) {
+                    L.e("NioTransport: Failed to register channel with event loop", ex);
+                    closeOnError();
+                }
+            }
+        });
+    }
+
+    /** Transmit the specified (connection-internal) RTMP packets, without blocking (thread-safe) */
+    public void send(RtmpPacket... rtmpPackets) {
+        for (RtmpPacket rtmpPacket : rtmpPackets) {
+            writeQueue.offer(rtmpPacket, false);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Transmit the specified packet published by the application, applying
+     * the write queue's overflow policy (thread-safe)
+     */
+    public void sendPublished(RtmpPacket rtmpPacket) throws IllegalStateException {
+        // Never block the event loop thread itself
+        writeQueue.offer(rtmpPacket, !eventLoop.inEventLoop());
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(flushTask);
+        }
+    }
+
+    /** Resumes sending after the send window opened (thread-safe) */
+    public void resumeSending() {
+        scheduleFlush();
+    }
+
+    void onReadable() throws IOException {
+        if (channel.read(rxBuffer) == -1) {
+            throw new EOFException("Connection closed by peer");
+        }
+        rxBuffer.flip();
+        rtmpDecoder.decodePackets(rxBuffer, rtmpConnection);
+        rxBuffer = RtmpDecoder.compactRxBuffer(rxBuffer);
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    private void flush() throws IOException {
+        while (true) {
+            if (!chunkEncoder.hasRemaining()) {
+                // Protocol control messages (e.g. our own acknowledgements) are sent regardless of the send window
+                RtmpPacket rtmpPacket = isSendWindowOpen() ? writeQueue.poll() : writeQueue.pollControl();
+                if (rtmpPacket == null) {
+                    setWriteInterest(false);
+                    return;
+                }
+                chunkEncoder.reset();
+                while (rtmpPacket != null) {
+                    writePacket(rtmpPacket);
+                    rtmpPacket = rtmpSessionInfo.isSendWindowOpen() ? writeQueue.poll() : writeQueue.pollControl();
+                }
+            }
+            chunkEncoder.write(channel);
+            if (chunkEncoder.hasRemaining()) {
+                // Socket send buffer is full; continue when the channel becomes writable
+                setWriteInterest(true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if more packets may be sent; if the send window
+     * does not open within the timeout, sending resumes anyway
+     */
+    private boolean isSendWindowOpen() {
+        if (rtmpSessionInfo.isSendWindowOpen()) {
+            sendWindowClosed = false;
+            return true;
+        }
+        final long now = System.nanoTime();
+        if (!sendWindowClosed) {
+            L.d("NioTransport: peer bandwidth reached, waiting for acknowledgement");
+            sendWindowClosed = true;
+            sendWindowClosedSince = now;
+            eventLoop.schedule(flushTask, RtmpSessionInfo.SEND_WINDOW_TIMEOUT_MS);
+            return false;
+        }
+        if (now - sendWindowClosedSince < RtmpSessionInfo.SEND_WINDOW_TIMEOUT_MS * 1000000L) {
+            return false;
+        }
+        L.w("NioTransport: no acknowledgement received from peer within " + RtmpSessionInfo.SEND_WINDOW_TIMEOUT_MS + "ms; sending anyway");
+        rtmpSessionInfo.assumeBytesSentAcknowledged();
+        sendWindowClosed = false;
+        return true;
+    }
+
+    private void writePacket(RtmpPacket rtmpPacket) throws IOException {
+        final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
+        L.d("NioTransport: writing packet: " + rtmpPacket);
+        chunkEncoder.encode(rtmpPacket, chunkStreamInfo);
+        if (rtmpPacket instanceof Command) {
+            rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+        }
+    }
+
+    private void setWriteInterest(boolean interested) throws IOException {
+        if (selectionKey == null) {
+            return; // not registered yet; start() flushes after registering
+        }
+        if (!selectionKey.isValid()) {
+            throw new ClosedChannelException();
+        }
+        final int interestOps = selectionKey.interestOps();
+        selectionKey.interestOps(interested ? (interestOps | SelectionKey.OP_WRITE) : (interestOps & ~SelectionKey.OP_WRITE));
+    }
+
+    /** Closes the channel after an unrecoverable error, and shuts down the owning connection */
+    void closeOnError() {
+        close();
+        rtmpConnection.shutdown();
+    }
+
+    /** Closes the channel (thread-safe); this also deregisters it from the event loop */
+    public void close() {
+        writeQueue.close();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            L.w("NioTransport: Failed to close channel", ex);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted buffer leased from a BufferPool
+ *
+ * The buffer is returned to its pool when the reference count drops to 0;
+ * it must not be accessed after that.
+ *
+ * @author francois
+ */
+public final class PooledBuffer {
+
+    private final ByteBuffer buffer;
+    /** The owning pool, or <code>null</code> if this buffer was too large to be pooled */
+    private final BufferPool pool;
+    private final int sizeClass;
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    PooledBuffer(ByteBuffer buffer, BufferPool pool, int sizeClass) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+    }
+
+    /** @return the underlying buffer; its limit is the size that was requested from the pool */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /** Increments the reference count */
+    public PooledBuffer retain() {
+        if (referenceCount.getAndIncrement() <= 0) {
+            referenceCount.getAndDecrement();
+            throw new IllegalStateException("Buffer has already been released");
+        }
+        return this;
+    }
+
+    /**
+     * Decrements the reference count, returning the buffer to its pool if it reaches 0
+     * @return <code>true</code> if the buffer was freed by this call
+     */
+    public boolean release() {
+        final int count = referenceCount.decrementAndGet();
+        if (count == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+            return true;
+        } else if (count < 0) {
+            referenceCount.incrementAndGet();
+            throw new IllegalStateException("Buffer has already been released");
+        }
+        return false;
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+
+    void reset(int size) {
+        buffer.clear();
+        buffer.limit(size);
+        referenceCount.set(1);
+    }
+}
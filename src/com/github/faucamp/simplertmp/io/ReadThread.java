@@ -1,23 +1,28 @@
 package com.github.faucamp.simplertmp.io;
 
+import java.io.EOFException;
 import java.io.InputStream;
-import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+import java.nio.ByteBuffer;
 import com.github.faucamp.simplertmp.util.L;
 
 /**
- * RTMPConnection's read thread
+ * RTMPConnection's read thread loop; this is run on a thread created by the
+ * connection's ThreadFactory
  * 
  * @author francois
  */
-public class ReadThread extends Thread {
+public class ReadThread implements Runnable {
 
     private RtmpDecoder rtmpDecoder;
     private InputStream in;
     private PacketRxHandler packetRxHandler;
     private ThreadController threadController;
+    private ByteBuffer rxBuffer = ByteBuffer.allocate(RtmpDecoder.RX_BUFFER_SIZE);
+    private volatile boolean active = true;
+    /** The thread running this loop; <code>null</code> until it has started */
+    private volatile Thread thread;
 
     public ReadThread(RtmpSessionInfo rtmpSessionInfo, InputStream in, PacketRxHandler packetRxHandler, ThreadController threadController) {
-        super("RtmpReadThread");
         this.in = in;
         this.packetRxHandler = packetRxHandler;
         this.rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
@@ -26,24 +31,22 @@ public class ReadThread extends Thread {
 
     @Override
     public void run() {
-        while (!Thread.interrupted()) {
+        thread = Thread.currentThread();
+        while (active) {
             try {
-                RtmpPacket rtmpPacket = rtmpDecoder.readPacket(in);
-                if (rtmpPacket != null) {
-                    // Pass to handler
-                    packetRxHandler.handleRxPacket(rtmpPacket);
+                // Read as much as is available, and decode all complete chunks
+                int read = in.read(rxBuffer.array(), rxBuffer.arrayOffset() + rxBuffer.position(), rxBuffer.remaining());
+                if (read == -1) {
+                    throw new EOFException("Unexpected EOF while reading RTMP packets");
                 }
-//            } catch (WindowAckRequired war) {
-//                L.i("ReadThread: Window Acknowledgment required, notifying packet handler...");
-//                packetRxHandler.notifyWindowAckRequired(war.getBytesRead());
-//                if (war.getRtmpPacket() != null) {
-//                    // Pass to handler
-//                    packetRxHandler.handleRxPacket(war.getRtmpPacket());
-//                }
+                rxBuffer.position(rxBuffer.position() + read);
+                rxBuffer.flip();
+                rtmpDecoder.decodePackets(rxBuffer, packetRxHandler);
+                rxBuffer = RtmpDecoder.compactRxBuffer(rxBuffer);
             } catch (Exception ex) {
-                if (!this.isInterrupted()) {
+                if (active) {
                     L.e("ReadThread: Caught exception while reading/decoding packet, shutting down...", ex);
-                    this.interrupt();
+                    active = false;
                 }
             }
         }
@@ -55,12 +58,17 @@ public class ReadThread extends Thread {
         }
         L.i("ReadThread: exiting");
         if (threadController != null) {
-            threadController.threadHasExited(this);
+            threadController.threadHasExited(Thread.currentThread());
         }
     }
 
+    /** Stops the read loop; the blocking read itself is only interrupted once the socket is closed */
     public void shutdown() {
         L.d("ReadThread: Stopping read thread...");
-        this.interrupt();
+        active = false;
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
     }
 }
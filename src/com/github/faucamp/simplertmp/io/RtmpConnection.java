@@ -2,27 +2,41 @@ package com.github.faucamp.simplertmp.io;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.github.faucamp.simplertmp.RtmpClient;
-import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfData;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfObject;
-import com.github.faucamp.simplertmp.io.packets.Abort;
+import com.github.faucamp.simplertmp.amf.AmfWritable;
+import com.github.faucamp.simplertmp.amf.AmfWriter;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.io.packets.Aggregate;
 import com.github.faucamp.simplertmp.io.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.io.packets.Audio;
 import com.github.faucamp.simplertmp.io.packets.Handshake;
 import com.github.faucamp.simplertmp.io.packets.Command;
 import com.github.faucamp.simplertmp.io.packets.ContentData;
 import com.github.faucamp.simplertmp.io.packets.Data;
 import com.github.faucamp.simplertmp.io.packets.UserControl;
 import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.io.packets.SetPeerBandwidth;
+import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.io.packets.SetChunkSize;
+import com.github.faucamp.simplertmp.io.packets.Video;
 import com.github.faucamp.simplertmp.io.packets.WindowAckSize;
 import com.github.faucamp.simplertmp.output.RtmpStreamWriter;
 import com.github.faucamp.simplertmp.util.L;
@@ -36,42 +50,194 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
 
     private String appName;
     private String host;
-    private String streamName;
     private String swfUrl = "http://localhost:5080/demos/ofla_demo.swf";
     private String tcUrl = "rtmp://localhost/oflaDemo";
     private String pageUrl = "http://localhost:5080";
     private int port;
     private Socket socket;
     private RtmpSessionInfo rtmpSessionInfo;
-    private int transactionIdCounter = 0;
+    private final AtomicInteger transactionIdCounter = new AtomicInteger();
     private static final int SOCKET_CONNECT_TIMEOUT_MS = 3000;
+    private ReadThread readThread;
     private WriteThread writeThread;
-    private final ConcurrentLinkedQueue<RtmpPacket> rxPacketQueue;
+    /** Creates the read, write and packet handler threads; <code>null</code> for plain platform threads */
+    private ThreadFactory threadFactory;
+    private WriteQueue writeQueue;
+    private int writeQueueCapacity = DEFAULT_WRITE_QUEUE_CAPACITY;
+    private WriteQueue.OverflowPolicy writeQueueOverflowPolicy = WriteQueue.OverflowPolicy.BLOCK;
+    public static final int DEFAULT_WRITE_QUEUE_CAPACITY = 1024;
+    /** Event loop group used for non-blocking I/O; <code>null</code> if dedicated threads are used */
+    private NioEventLoopGroup nioEventLoopGroup;
+    private NioTransport nioTransport;
+    /** Hands received packets from the ReadThread to the packet handler thread; <code>null</code> if packets are handled inline */
+    private SpscRingBuffer<RtmpPacket> rxPacketQueue;
+    /** If <code>true</code>, received packets are handled on the ReadThread, without a separate packet handler thread */
+    private boolean inlineDispatch = false;
+    private SpscRingBuffer.WaitStrategy rxWaitStrategy = SpscRingBuffer.WaitStrategy.PARK;
+    private static final int RX_PACKET_QUEUE_CAPACITY = 1024;
     private final Object lock = new Object();
-    private boolean active = false;
-    private RtmpStreamWriter rtmpStreamWriter;
+    private volatile boolean active = false;
     private volatile boolean fullyConnected = false;
     private final Object connectingLock = new Object();
     private volatile boolean connecting = false;
-    private int currentStreamId = -1;
-    /** Timestamp at which stream was paused; 0 if not stream is not paused */
-    private int pauseTimeStamp = -1;
-    /** Used to track stream position for pause/resume */
-    private int streamPosition = 0;
+    /** If <code>true</code>, createStream and play are sent without waiting for the "connect" and createStream results */
+    private boolean fastStart = false;
+    /** Set once a stream has been started with an assumed stream ID; only the connection's first stream can be */
+    private final AtomicBoolean fastStartUsed = new AtomicBoolean(false);
+    /** Message stream ID that servers assign to the first stream created on a connection */
+    private static final int FAST_START_STREAM_ID = 1;
+    /** Arguments of commands that only take a null command object */
+    private static final AmfWritable NULL_COMMAND_OBJECT = new AmfWritable() {
+
+        @Override
+        public void writeTo(AmfWriter writer) throws IOException {
+            writer.nul();
+        }
+    };
+    private volatile int currentStreamId = -1;
+    /** The stream played with play()/playAsync(), which pause() and closeStream() apply to */
+    private volatile StreamSession currentStream;
+    /** All played streams, by message stream ID; received packets are routed to their writers */
+    private final ConcurrentHashMap<Integer, StreamSession> streamSessions = new ConcurrentHashMap<Integer, StreamSession>();
+    /** Streams waiting for the result of their createStream command, by transaction ID */
+    private final ConcurrentHashMap<Integer, StreamSession> pendingStreamSessions = new ConcurrentHashMap<Integer, StreamSession>();
+    /** Name of the stream to publish (or being published); <code>null</code> if not publishing */
+    private String publishStreamName;
+    private String publishType;
+    private final Object publishLock = new Object();
+    private volatile boolean publishing = false;
+    /** Status code sent by the server if it rejected the published stream */
+    private String publishError;
+    private static final int PUBLISH_TIMEOUT_MS = 10000;
+    /** Chunk size advertised to the server (with SetChunkSize) right after the handshake */
+    private int outboundChunkSize = DEFAULT_OUTBOUND_CHUNK_SIZE;
+    public static final int DEFAULT_OUTBOUND_CHUNK_SIZE = 4096;
+    /** Largest chunk size that can be advertised; larger chunks would exceed the maximum RTMP message length */
+    public static final int MAX_CHUNK_SIZE = 0xFFFFFF;
 
     public RtmpConnection(String host, int port, String appName) {
         this.host = host;
         this.port = port;
         this.appName = appName;
         rtmpSessionInfo = new RtmpSessionInfo();
-        rxPacketQueue = new ConcurrentLinkedQueue<RtmpPacket>();
+    }
+
+    /**
+     * Creates a connection that uses non-blocking I/O on one of the specified
+     * group's event loops, instead of starting its own read, write and packet
+     * handler threads.
+     */
+    public RtmpConnection(String host, int port, String appName, NioEventLoopGroup nioEventLoopGroup) {
+        this(host, port, appName);
+        this.nioEventLoopGroup = nioEventLoopGroup;
+    }
+
+    /**
+     * Sets the pool that received audio/video payloads are leased from (this
+     * should be called before connecting). Payloads are returned to the pool
+     * once the RtmpStreamWriter's <code>write()</code> method returns.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        rtmpSessionInfo.setBufferPool(bufferPool);
+    }
+
+    /**
+     * Sets the chunk size to use for messages sent to the server (this should
+     * be called before connecting). Larger chunks reduce header overhead and
+     * the number of writes per message; if set to the RTMP default (128), no
+     * SetChunkSize message is sent.
+     */
+    public void setOutboundChunkSize(int outboundChunkSize) {
+        if (outboundChunkSize < 1 || outboundChunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + outboundChunkSize);
+        }
+        this.outboundChunkSize = outboundChunkSize;
+    }
+
+    /**
+     * Sets how the packet handler thread waits for packets from the read
+     * thread (this should be called before connecting). BUSY_SPIN gives the
+     * lowest latency, at the cost of a busy CPU core per connection.
+     */
+    public void setRxWaitStrategy(SpscRingBuffer.WaitStrategy rxWaitStrategy) {
+        this.rxWaitStrategy = rxWaitStrategy;
+    }
+
+    /**
+     * If set, received packets are handled (and passed to the RtmpStreamWriter)
+     * directly on the read thread, rather than on a separate packet handler
+     * thread; this saves a thread and a thread handoff per packet, but the
+     * RtmpStreamWriter must not block. This should be called before connecting.
+     * Packets are always handled inline when using an NioEventLoopGroup.
+     */
+    public void setInlineDispatch(boolean inlineDispatch) {
+        this.inlineDispatch = inlineDispatch;
+    }
+
+    /**
+     * Configures the outgoing packet queue (this should be called before
+     * connecting): its capacity, in packets, and what to do when a packet is
+     * sent while it is full. Protocol control messages are always queued
+     * ahead of other packets, and are not subject to the capacity limit.
+     */
+    public void setWriteQueue(int capacity, WriteQueue.OverflowPolicy overflowPolicy) {
+        this.writeQueueCapacity = capacity;
+        this.writeQueueOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Sets the factory used to create this connection's read, write and
+     * packet handler threads (this should be called before connecting); e.g.
+     * a VirtualThreadFactory, to run many connections on virtual threads.
+     * By default, a platform thread is created for each.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Enables fast-start playback (this should be called before connecting).
+     * If <code>play()</code> or <code>playAsync()</code> is called right after
+     * <code>connect()</code>, the createStream and play commands are sent
+     * along with the "connect" command, instead of each waiting for the
+     * previous command's result; this saves two round trips before the first
+     * frame. The play command is sent on the stream ID that servers assign to
+     * a connection's first stream; if the server assigns a different ID, or
+     * rejects the early createStream or play command, the stream is started
+     * the normal way (and a stream speculatively played on the wrong ID is
+     * closed). If the server rejects the "connect" command, the stream fails.
+     */
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getAppName() {
+        return appName;
+    }
+
+    /** @return the outgoing packet queue (for its metrics), or <code>null</code> if not connected */
+    public WriteQueue getWriteQueue() {
+        return writeQueue;
     }
 
     @Override
     public void connect() throws IOException {
 
-        L.d("RtmpConnection.connect() called. Host: " + host + ", port: " + port + ", appName: " + appName + ", playPath: " + streamName);
+        L.d("RtmpConnection.connect() called. Host: " + host + ", port: " + port + ", appName: " + appName);
+        if (nioEventLoopGroup != null) {
+            connectNio();
+            return;
+        }
         socket = new Socket();
+        socket.setTcpNoDelay(true);
         SocketAddress socketAddress = new InetSocketAddress(host, port);
         socket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT_MS);
         BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
@@ -80,28 +246,86 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
         handshake(in, out);
         active = true;
         L.d("RtmpConnection.connect(): handshake done");
-        ReadThread readThread = new ReadThread(rtmpSessionInfo, in, this, this);
-        writeThread = new WriteThread(rtmpSessionInfo, out, this);
-        readThread.start();
-        writeThread.start();
+        if (!inlineDispatch) {
+            rxPacketQueue = new SpscRingBuffer<RtmpPacket>(RX_PACKET_QUEUE_CAPACITY, rxWaitStrategy);
+        }
+        readThread = new ReadThread(rtmpSessionInfo, in, this, this);
+        writeQueue = new WriteQueue(writeQueueCapacity, writeQueueOverflowPolicy);
+        writeThread = new WriteThread(rtmpSessionInfo, out, writeQueue, this);
+        startThread(readThread, "RtmpReadThread");
+        startThread(writeThread, "RtmpWriteThread");
 
-        // Start the "main" handling thread
-        new Thread(new Runnable() {
+        if (!inlineDispatch) {
+            // Start the "main" handling thread
+            startThread(new Runnable() {
 
-            @Override
-            public void run() {
-                try {
-                    L.d("RtmpConnection: starting main rx handler loop");
-                    handleRxPacketLoop();
-                } catch (IOException ex) {
-                    Logger.getLogger(RtmpConnection.class.getName()).log(Level.SEVERE, null, ex);
+                @Override
+                public void run() {
+                    try {
+                        L.d("RtmpConnection: starting main rx handler loop");
+                        handleRxPacketLoop();
+                    } catch (IOException | RuntimeException ex) {
+                        Logger.getLogger(RtmpConnection.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 }
-            }
-        }).start();
+            }, "RtmpPacketHandlerThread");
+        }
+
+        rtmpConnect();
+    }
+
+    private void startThread(Runnable runnable, String name) {
+        Thread thread;
+        if (threadFactory != null) {
+            thread = threadFactory.newThread(runnable);
+        } else {
+            thread = new Thread(runnable, name);
+        }
+        thread.start();
+    }
 
+    /** Connects using a SocketChannel that is handed over to an event loop after the (blocking) handshake */
+    private void connectNio() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), SOCKET_CONNECT_TIMEOUT_MS);
+            // The input stream is not buffered, to ensure no RTMP data following the handshake is consumed by it
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            L.d("RtmpConnection.connectNio(): socket connection established, doing handhake...");
+            handshake(socket.getInputStream(), out);
+            out.flush(); // C2 is still buffered; all further output is written directly to the channel
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        active = true;
+        L.d("RtmpConnection.connectNio(): handshake done");
+        writeQueue = new WriteQueue(writeQueueCapacity, writeQueueOverflowPolicy);
+        nioTransport = new NioTransport(rtmpSessionInfo, channel, nioEventLoopGroup.next(), writeQueue, this);
+        nioTransport.start();
         rtmpConnect();
     }
 
+    /** Transmit the specified (connection-internal) RTMP packets using the active transport; never blocks */
+    private void send(RtmpPacket... rtmpPackets) {
+        if (nioTransport != null) {
+            nioTransport.send(rtmpPackets);
+        } else {
+            writeThread.send(rtmpPackets);
+        }
+    }
+
+    /** Transmit the specified packet published by the application, applying the write queue's overflow policy */
+    private void sendPublished(RtmpPacket rtmpPacket) throws IllegalStateException {
+        if (nioTransport != null) {
+            nioTransport.sendPublished(rtmpPacket);
+        } else {
+            writeThread.sendPublished(rtmpPacket);
+        }
+    }
+
     @Override
     public void play(String playPath, RtmpStreamWriter rtmpStreamWriter) throws IllegalStateException, IOException {
         rtmpPlay(playPath, rtmpStreamWriter, true);
@@ -112,68 +336,249 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
         rtmpPlay(playPath, rtmpStreamWriter, false);
     }
 
-    private void rtmpPlay(String playPath, RtmpStreamWriter rtmpStreamWriter, boolean block) throws IllegalStateException, IOException {
-        if (connecting) {
-            synchronized (connectingLock) {
-                try {
+    /** Waits for the "connect" command to complete, if necessary */
+    void awaitConnected() throws IllegalStateException {
+        synchronized (connectingLock) {
+            try {
+                while (connecting && active) {
                     connectingLock.wait();
-                } catch (InterruptedException ex) {
-                    // do nothing
                 }
+            } catch (InterruptedException ex) {
+                // do nothing
             }
         }
         if (!fullyConnected) {
             throw new IllegalStateException("Not connected to RTMP server");
         }
-        this.streamName = playPath;
-        this.rtmpStreamWriter = rtmpStreamWriter;
+    }
+
+    private void rtmpPlay(String playPath, RtmpStreamWriter rtmpStreamWriter, boolean block) throws IllegalStateException, IOException {
+        final boolean pipelined = fastStart && connecting && currentStreamId == -1 && fastStartUsed.compareAndSet(false, true);
+        if (!pipelined) {
+            awaitConnected();
+        }
+        StreamSession streamSession = new StreamSession(playPath, rtmpStreamWriter);
+        currentStream = streamSession;
 
-        if (currentStreamId != -1) {
-            // A stream object exists; play the requested stream name
-            Command play = new Command("play", transactionIdCounter);
-            play.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
-            play.getHeader().setMessageStreamId(currentStreamId);
-            play.addData(new AmfNull());
-            play.addData(playPath); // what to play
-            play.addData(0); // play start position
-            play.addData(-2); // play duration
-            //L.i("+++++++  WRITING PLAY packet ++++++++");
-            //writeThread.send(play);
-            // Set buffer length of the message stream to 5000ms (just Flash Player)
-            final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
-
-            // Set buffer length of message stream 0 to 5000ms (just Flash Player)
-            UserControl userControl = new UserControl(UserControl.Type.SET_BUFFER_LENGTH, chunkStreamInfo);
-            userControl.setEventData(0, 5000);
-            writeThread.send(userControl);
-
-            UserControl userControl2 = new UserControl(UserControl.Type.SET_BUFFER_LENGTH, chunkStreamInfo);
-            userControl2.setEventData(currentStreamId, 5000);
-            L.d("rtmpPlay(): Writing play & control packets");
-            writeThread.send(play, userControl2);
+        if (pipelined) {
+            // Send createStream and play without waiting for any results; the createStream result handler checks the assumed stream ID
+            L.d("rtmpPlay(): Fast start; playing on assumed stream ID: " + FAST_START_STREAM_ID);
+            streamSession.setStreamId(FAST_START_STREAM_ID);
+            streamSession.setFastStart(true);
+            streamSessions.put(FAST_START_STREAM_ID, streamSession);
+            currentStreamId = FAST_START_STREAM_ID;
+            rtmpCreateStream(streamSession);
+            rtmpPlay(streamSession);
+        } else if (currentStreamId != -1) {
+            // A stream object exists; play the requested stream name on it
+            streamSession.setStreamId(currentStreamId);
+            streamSessions.put(currentStreamId, streamSession);
+            rtmpPlay(streamSession);
         } else {
             // No current stream object exists; first issue the createStream command
-            // - the handler for the response of that command will call rtmpPlay() again (without blocking)
-            rtmpCreateStream();
+            // - the handler for the response of that command will send the play command
+            rtmpCreateStream(streamSession);
         }
 
         if (block) {
             synchronized (rtmpStreamWriter) {
                 try {
-                    rtmpStreamWriter.wait();
+                    if (!streamSession.isClosed()) {
+                        rtmpStreamWriter.wait();
+                    }
                 } catch (InterruptedException ex) {
                     throw new IOException("Thread interrupted while waiting on RTMP stream writer");
                 }
             }
+            if (streamSession.getFailure() != null) {
+                throw new IOException("Failed to play stream " + playPath + ": " + streamSession.getFailure());
+            }
         }
     }
 
-    private void rtmpCreateStream() {
+    /**
+     * Plays the specified stream on a new message stream of this connection,
+     * alongside any other streams that are already playing; received packets
+     * are passed to the RtmpStreamWriter of the stream they belong to.
+     * 
+     * This method does not block; the stream can be stopped with
+     * <code>closeStream(String)</code>.
+     * 
+     * @param playPath The logical 'file'/media content name that you wish to play back
+     * @throws IllegalStateException if the client is not connected to a RTMP server
+     */
+    @Override
+    public void playStreamAsync(String playPath, RtmpStreamWriter rtmpStreamWriter) throws IllegalStateException {
+        awaitConnected();
+        rtmpCreateStream(new StreamSession(playPath, rtmpStreamWriter));
+    }
+
+    /** Sends the play command (and buffer length) for a stream that has been assigned a message stream ID */
+    private void rtmpPlay(StreamSession streamSession) {
+        final int streamId = streamSession.getStreamId();
+        Command play = new Command("play", 0);
+        play.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
+        play.getHeader().setMessageStreamId(streamId);
+        final String playPath = streamSession.getPlayPath();
+        play.setArguments(new AmfWritable() {
+
+            @Override
+            public void writeTo(AmfWriter writer) throws IOException {
+                writer.nul() // command object: null for "play"
+                        .string(playPath) // what to play
+                        .number(0) // play start position
+                        .number(-2); // play duration
+            }
+        });
+        final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
+
+        // Set buffer length of message stream 0 to 5000ms (just Flash Player)
+        UserControl userControl = new UserControl(UserControl.Type.SET_BUFFER_LENGTH, chunkStreamInfo);
+        userControl.setEventData(0, 5000);
+        send(userControl);
+
+        // Set buffer length of the message stream to 5000ms (just Flash Player)
+        UserControl userControl2 = new UserControl(UserControl.Type.SET_BUFFER_LENGTH, chunkStreamInfo);
+        userControl2.setEventData(streamId, 5000);
+        L.d("rtmpPlay(): Writing play & control packets");
+        send(play, userControl2);
+    }
+
+    @Override
+    public void publish(String streamName, String type) throws IllegalStateException, IOException {
+        awaitConnected();
+        synchronized (publishLock) {
+            if (publishStreamName != null) {
+                throw new IllegalStateException("Already publishing stream: " + publishStreamName);
+            }
+            publishStreamName = streamName;
+            publishType = type;
+            publishError = null;
+        }
+        if (currentStreamId != -1) {
+            rtmpPublish();
+        } else {
+            // The handler for the createStream response will issue the publish command
+            rtmpCreateStream(null);
+        }
+        synchronized (publishLock) {
+            final long deadline = System.currentTimeMillis() + PUBLISH_TIMEOUT_MS;
+            long remaining = PUBLISH_TIMEOUT_MS;
+            while (!publishing && publishError == null && active && remaining > 0) {
+                try {
+                    publishLock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Thread interrupted while waiting for publish to start");
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (!publishing) {
+                final String reason = (publishError != null) ? publishError : (active ? "timed out" : "connection closed");
+                publishStreamName = null;
+                throw new IOException("Failed to publish stream " + streamName + ": " + reason);
+            }
+        }
+    }
+
+    private void rtmpPublish() {
+        L.d("rtmpPublish(): Sending publish command...");
+        Command publish = new Command("publish", 0);
+        publish.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
+        publish.getHeader().setMessageStreamId(currentStreamId);
+        final String streamName = publishStreamName;
+        final String type = publishType;
+        publish.setArguments(new AmfWritable() {
+
+            @Override
+            public void writeTo(AmfWriter writer) throws IOException {
+                writer.nul() // command object: null for "publish"
+                        .string(streamName)
+                        .string(type);
+            }
+        });
+        send(publish);
+    }
+
+    @Override
+    public void sendAudio(byte[] data, int timestamp) throws IllegalStateException {
+        checkPublishing();
+        Audio audio = new Audio(currentStreamId, timestamp);
+        audio.setData(data);
+        sendPublished(audio);
+    }
+
+    @Override
+    public void sendVideo(byte[] data, int timestamp) throws IllegalStateException {
+        checkPublishing();
+        Video video = new Video(currentStreamId, timestamp);
+        video.setData(data);
+        sendPublished(video);
+    }
+
+    @Override
+    public void sendMetaData(final AmfObject metaData) throws IllegalStateException {
+        checkPublishing();
+        Data setDataFrame = new Data("@setDataFrame");
+        setDataFrame.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
+        setDataFrame.getHeader().setMessageStreamId(currentStreamId);
+        setDataFrame.setArguments(new AmfWritable() {
+
+            @Override
+            public void writeTo(AmfWriter writer) throws IOException {
+                writer.string("onMetaData").value(metaData);
+            }
+        });
+        sendPublished(setDataFrame);
+    }
+
+    private void checkPublishing() throws IllegalStateException {
+        if (!publishing) {
+            throw new IllegalStateException("No stream is being published");
+        }
+    }
+
+    /**
+     * Sends a createStream command; the stream is played once its message
+     * stream ID is received, or published if <code>streamSession</code> is null
+     */
+    private void rtmpCreateStream(StreamSession streamSession) {
         L.d("rtmpCreateStream(): Sending createStream command...");
         final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
         // Send createStream() command
-        Command createStream = new Command("createStream", ++transactionIdCounter, chunkStreamInfo);
-        writeThread.send(createStream);
+        Command createStream = new Command("createStream", transactionIdCounter.incrementAndGet(), chunkStreamInfo);
+        if (streamSession != null) {
+            pendingStreamSessions.put(createStream.getTransactionId(), streamSession);
+        }
+        send(createStream);
+    }
+
+    /**
+     * Sends the closeStream and deleteStream commands for the specified
+     * message stream, and closes the writer of the stream played on it
+     */
+    private void rtmpCloseStream(int streamId) {
+        StreamSession streamSession = streamSessions.remove(streamId);
+        if (streamSession != null) {
+            streamSession.closeWriter();
+        }
+        sendCloseStream(streamId);
+    }
+
+    /** Sends the closeStream and deleteStream commands for the specified message stream */
+    private void sendCloseStream(final int streamId) {
+        Command closeStream = new Command("closeStream", 0);
+        closeStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
+        closeStream.getHeader().setMessageStreamId(streamId);
+        closeStream.setArguments(NULL_COMMAND_OBJECT);
+        Command deleteStream = new Command("deleteStream", 0, rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
+        deleteStream.setArguments(new AmfWritable() {
+
+            @Override
+            public void writeTo(AmfWriter writer) throws IOException {
+                writer.nul().number(streamId); // command object: null for "deleteStream"
+            }
+        });
+        send(closeStream, deleteStream);
     }
 
     @Override
@@ -184,14 +589,65 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
         if (currentStreamId == -1) {
             throw new IllegalStateException("No current stream object exists");
         }
-        streamName = null;
+        currentStream = null;
+        synchronized (publishLock) {
+            publishing = false;
+            publishStreamName = null;
+        }
+        final int streamId = currentStreamId;
         L.d("closeStream(): setting current stream ID to -1");
         currentStreamId = -1;
-        Command closeStream = new Command("closeStream", 0);
-        closeStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
-        closeStream.getHeader().setMessageStreamId(currentStreamId);
-        closeStream.addData(new AmfNull());  // command object: null for "closeStream"
-        writeThread.send(closeStream);
+        rtmpCloseStream(streamId);
+    }
+
+    /**
+     * Closes all streams played or published on this connection, leaving it
+     * connected so that it can be reused (see RtmpConnectionPool)
+     */
+    void closeAllStreams() {
+        for (StreamSession streamSession : pendingStreamSessions.values()) {
+            streamSession.closeWriter();
+        }
+        pendingStreamSessions.clear();
+        if (currentStreamId != -1) {
+            closeStream();
+        }
+        currentStream = null;
+        for (StreamSession streamSession : streamSessions.values()) {
+            rtmpCloseStream(streamSession.getStreamId());
+        }
+    }
+
+    /** @return <code>true</code> if the RTMP "connect" command has completed, and the connection has not been shut down */
+    public boolean isConnected() {
+        return fullyConnected && active;
+    }
+
+    /**
+     * Stops and closes a stream started with <code>playStreamAsync()</code>
+     * (or <code>play()</code>); other streams on this connection keep playing.
+     * A stream that reached its end has already been closed.
+     *
+     * @throws IllegalStateException if the specified stream is not being
+     * played, or has already reached its end
+     */
+    @Override
+    public void closeStream(String playPath) throws IllegalStateException {
+        if (!fullyConnected) {
+            throw new IllegalStateException("Not connected to RTMP server");
+        }
+        for (StreamSession streamSession : streamSessions.values()) {
+            if (streamSession.getPlayPath().equals(playPath)) {
+                final int streamId = streamSession.getStreamId();
+                if (streamId == currentStreamId) {
+                    closeStream();
+                } else {
+                    rtmpCloseStream(streamId);
+                }
+                return;
+            }
+        }
+        throw new IllegalStateException("Stream is not being played: " + playPath);
     }
 
     @Override
@@ -199,28 +655,37 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
         if (!fullyConnected) {
             throw new IllegalStateException("Not connected to RTMP server");
         }
-        if (currentStreamId == -1) {
+        final StreamSession streamSession = currentStream;
+        if (currentStreamId == -1 || streamSession == null) {
             throw new IllegalStateException("No current stream object exists");
         }
         Command pause = new Command("pause", 0);
         pause.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
         pause.getHeader().setMessageStreamId(currentStreamId);
-        pause.addData(new AmfNull()); // command object: null for "pause"
         // Add pause/unpause flag pause timestamp
-        if (pauseTimeStamp == -1) {
+        final boolean pausing = (streamSession.getPauseTimeStamp() == -1);
+        final int pauseTimeStamp;
+        if (pausing) {
             // Pause the stream
             L.i("pause(): Pausing stream with ID: " + currentStreamId);
-            pause.addData(true);
-            pauseTimeStamp = streamPosition;
-            pause.addData(pauseTimeStamp);
+            streamSession.setPauseTimeStamp(streamSession.getStreamPosition());
+            pauseTimeStamp = streamSession.getPauseTimeStamp();
         } else {
             L.i("pause(): Resuming stream with ID: " + currentStreamId);
             // Resume the stream
-            pause.addData(false);
-            pause.addData(pauseTimeStamp);
-            pauseTimeStamp = -1;
+            pauseTimeStamp = streamSession.getPauseTimeStamp();
+            streamSession.setPauseTimeStamp(-1);
         }
-        writeThread.send(pause);
+        pause.setArguments(new AmfWritable() {
+
+            @Override
+            public void writeTo(AmfWriter writer) throws IOException {
+                writer.nul() // command object: null for "pause"
+                        .bool(pausing)
+                        .number(pauseTimeStamp);
+            }
+        });
+        send(pause);
     }
 
     /**
@@ -241,108 +706,221 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
         if (fullyConnected || connecting) {
             throw new IllegalStateException("Already connecting, or connected to RTMP server");
         }
+        if (outboundChunkSize != RtmpSessionInfo.DEFAULT_CHUNK_SIZE) {
+            // Sent before anything else, so that all further messages use the larger chunk size
+            L.d("rtmpConnect(): Setting outbound chunk size to: " + outboundChunkSize);
+            send(new SetChunkSize(outboundChunkSize));
+        }
         L.d("rtmpConnect(): Building 'connect' invoke packet");
-        Command invoke = new Command("connect", ++transactionIdCounter, rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
+        Command invoke = new Command("connect", transactionIdCounter.incrementAndGet(), rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
         invoke.getHeader().setMessageStreamId(0);
 
-        AmfObject args = new AmfObject();
-        args.setProperty("app", appName);
-        args.setProperty("flashVer", "LNX 11,2,202,233"); // Flash player OS: Linux, version: 11.2.202.233
-        args.setProperty("swfUrl", swfUrl);
-        args.setProperty("tcUrl", tcUrl);
-        args.setProperty("fpad", false);
-        args.setProperty("capabilities", 239);
-        args.setProperty("audioCodecs", 3575);
-        args.setProperty("videoCodecs", 252);
-        args.setProperty("videoFunction", 1);
-        args.setProperty("pageUrl", pageUrl);
+        invoke.setArguments(new AmfWritable() {
 
-        invoke.addData(args);
+            @Override
+            public void writeTo(AmfWriter writer) throws IOException {
+                writer.startObject()
+                        .property("app", appName)
+                        .property("flashVer", "LNX 11,2,202,233") // Flash player OS: Linux, version: 11.2.202.233
+                        .property("swfUrl", swfUrl)
+                        .property("tcUrl", tcUrl)
+                        .property("fpad", false)
+                        .property("capabilities", 239)
+                        .property("audioCodecs", 3575)
+                        .property("videoCodecs", 252)
+                        .property("videoFunction", 1)
+                        .property("pageUrl", pageUrl)
+                        .endObject();
+            }
+        });
 
         connecting = true;
 
         L.d("rtmpConnect(): Writing 'connect' invoke packet");
         invoke.getHeader().setAbsoluteTimestamp(0);
-        writeThread.send(invoke);
+        send(invoke);
     }
 
     @Override
     public void handleRxPacket(RtmpPacket rtmpPacket) {
         L.d("handleRxPacket(): called");
-        rxPacketQueue.add(rtmpPacket);
-        synchronized (lock) {
-            lock.notify();
+        if (rxPacketQueue == null) {
+            // Inline dispatch (or NIO mode); handle the packet immediately on the reading thread
+            try {
+                handleRxPacketImpl(rtmpPacket);
+            } catch (IOException ex) {
+                L.e("handleRxPacket(): Caught exception while handling packet", ex);
+            }
+            return;
+        }
+        // Blocks the ReadThread if the handler thread falls behind
+        if (!rxPacketQueue.put(rtmpPacket)) {
+            // Shutting down; the packet will not be handled
+            release(rtmpPacket);
         }
     }
 
     private void handleRxPacketLoop() throws IOException {
         L.d("handleRxPacketLoop(): called");
-        // Handle all queued received RTMP packets
-        while (active) {
-            RtmpPacket rtmpPacket = rxPacketQueue.poll();
-            while (rtmpPacket != null) {
-
-                switch (rtmpPacket.getHeader().getMessageType()) {
-                    case ABORT:
-                        rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
+        try {
+            // Handle all queued received RTMP packets
+            while (active) {
+                // Wait for next received packet; null if the queue was closed by shutdown()
+                RtmpPacket rtmpPacket = rxPacketQueue.take();
+                if (rtmpPacket != null) {
+                    handleRxPacketImpl(rtmpPacket);
+                }
+            }
+        } finally {
+            // Also shut down if handling a packet failed, rather than leaving the ReadThread blocked on a full queue
+            active = false;
+            rxPacketQueue.close();
+            // Release the (pooled) payloads of packets that were received but not handled
+            for (RtmpPacket rtmpPacket = rxPacketQueue.drain(); rtmpPacket != null; rtmpPacket = rxPacketQueue.drain()) {
+                release(rtmpPacket);
+            }
+            shutdownImpl();
+        }
+    }
+
+    private static void release(RtmpPacket rtmpPacket) {
+        if (rtmpPacket instanceof ContentData) {
+            ((ContentData) rtmpPacket).release();
+        }
+    }
+
+    /**
+     * Converts an AMF3 data message to AMF0, so that stream writers (e.g. the
+     * FLV writer) only receive AMF0 data; AMF3 values are re-encoded as AMF0,
+     * which changes the length of the message
+     */
+    private static Data toAmf0(Data data) throws IOException {
+        if (data.getHeader().getMessageType() == RtmpHeader.MessageType.DATA_AMF0) {
+            return data;
+        }
+        Data amf0Data = new Data(data.getType());
+        amf0Data.getHeader().setMessageStreamId(data.getHeader().getMessageStreamId());
+        amf0Data.getHeader().setAbsoluteTimestamp(data.getHeader().getAbsoluteTimestamp());
+        if (data.getData() != null) {
+            for (AmfData dataItem : data.getData()) {
+                amf0Data.addData(dataItem);
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(data.getHeader().getPacketLength());
+        amf0Data.writeBody(body);
+        amf0Data.getHeader().setPacketLength(body.size());
+        return amf0Data;
+    }
+
+    private void handleRxPacketImpl(RtmpPacket rtmpPacket) throws IOException {
+        switch (rtmpPacket.getHeader().getMessageType()) {
+            case USER_CONTROL_MESSAGE: {
+                UserControl ping = (UserControl) rtmpPacket;
+                switch (ping.getType()) {
+                    case PING_REQUEST: {
+                        ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
+                        L.d("handleRxPacketImpl(): Sending PONG reply..");
+                        UserControl pong = new UserControl(ping, channelInfo);
+                        send(pong);
                         break;
-                    case USER_CONTROL_MESSAGE: {
-                        UserControl ping = (UserControl) rtmpPacket;
-                        switch (ping.getType()) {
-                            case PING_REQUEST: {
-                                ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
-                                L.d("handleRxPacketLoop(): Sending PONG reply..");
-                                UserControl pong = new UserControl(ping, channelInfo);
-                                writeThread.send(pong);
-                                break;
+                    }
+                    case STREAM_EOF: {
+                        final int streamId = ping.getFirstEventData();
+                        StreamSession streamSession = streamSessions.remove(streamId);
+                        if (streamSession != null) {
+                            L.i("handleRxPacketImpl(): Stream EOF reached, closing RTMP writer...");
+                            streamSession.closeWriter();
+                            if (streamSession != currentStream) {
+                                // Streams other than the current one are not reused once they end
+                                sendCloseStream(streamId);
                             }
-                            case STREAM_EOF:
-                                L.i("handleRxPacketLoop(): Stream EOF reached, closing RTMP writer...");
-                                rtmpStreamWriter.close();
-                                break;
                         }
                         break;
                     }
-                    case WINDOW_ACKNOWLEDGEMENT_SIZE: {
-                        WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
-                        if (L.isDebugEnabled()) {
-                            L.d("handleRxPacketLoop(): Setting acknowledgement window size to: " + windowAckSize.getAcknowledgementWindowSize());
+                }
+                break;
+            }
+            case WINDOW_ACKNOWLEDGEMENT_SIZE: {
+                WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
+                if (L.isDebugEnabled()) {
+                    L.d("handleRxPacketImpl(): Setting acknowledgement window size to: " + windowAckSize.getAcknowledgementWindowSize());
+                }
+                rtmpSessionInfo.setAcknowledgmentWindowSize(windowAckSize.getAcknowledgementWindowSize());
+                break;
+            }
+            case SET_PEER_BANDWIDTH: {
+                SetPeerBandwidth setPeerBandwidth = (SetPeerBandwidth) rtmpPacket;
+                if (L.isDebugEnabled()) {
+                    L.d("handleRxPacketImpl(): Peer bandwidth: " + setPeerBandwidth.getAcknowledgementWindowSize() + " (" + setPeerBandwidth.getLimitType() + ")");
+                }
+                if (rtmpSessionInfo.setPeerBandwidth(setPeerBandwidth.getAcknowledgementWindowSize(), setPeerBandwidth.getLimitType())) {
+                    // Tell the peer how often to acknowledge the bytes we send
+                    ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
+                    send(new WindowAckSize(rtmpSessionInfo.getPeerBandwidth(), channelInfo));
+                }
+                break;
+            }
+            case ACKNOWLEDGEMENT:
+                rtmpSessionInfo.setBytesAcknowledged(((Acknowledgement) rtmpPacket).getSequenceNumber());
+                if (nioTransport != null) {
+                    nioTransport.resumeSending();
+                }
+                break;
+            case COMMAND_AMF0:
+            case COMMAND_AMF3:
+                handleRxInvoke((Command) rtmpPacket);
+                break;
+            case DATA_AMF0:
+            case DATA_AMF3: {
+                Data data = (Data) rtmpPacket;
+                StreamSession streamSession = streamSessions.get(data.getHeader().getMessageStreamId());
+                if ("onMetaData".equals(data.getType()) && streamSession != null) {
+                    streamSession.write(toAmf0(data));
+                }
+                break;
+            }
+            case AGGREGATE_MESSAGE: {
+                // Handle the sub-messages in place of the aggregate; audio/video sub-messages share its payload
+                Aggregate aggregate = (Aggregate) rtmpPacket;
+                try {
+                    List<RtmpPacket> messages = aggregate.getMessages();
+                    int handled = 0;
+                    try {
+                        for (; handled < messages.size(); handled++) {
+                            handleRxPacketImpl(messages.get(handled));
                         }
-                        rtmpSessionInfo.setAcknowledgmentWindowSize(windowAckSize.getAcknowledgementWindowSize());
-                        break;
-                    }
-                    case COMMAND_AMF0:
-                        handleRxInvoke((Command) rtmpPacket);
-                        break;
-                    case DATA_AMF0: {
-                        Data data = (Data) rtmpPacket;
-                        if ("onMetaData".equals(data.getType())) {
-                            rtmpStreamWriter.write(data);
+                    } finally {
+                        // Release the sub-messages following one that could not be handled
+                        for (int i = handled + 1; i < messages.size(); i++) {
+                            if (messages.get(i) instanceof ContentData) {
+                                ((ContentData) messages.get(i)).release();
+                            }
                         }
-                        break;
                     }
-                    case AUDIO:
-                    case VIDEO:
-                        streamPosition = rtmpPacket.getHeader().getAbsoluteTimestamp();
-                        rtmpStreamWriter.write((ContentData) rtmpPacket);
-                        break;
-                    default:
-                        L.w("handleRxPacketLoop(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
-                        break;
+                } finally {
+                    aggregate.release();
                 }
-                // Get next packet (if any)
-                rtmpPacket = rxPacketQueue.poll();
+                break;
             }
-            // Wait for next received packet
-            synchronized (lock) {
+            case AUDIO:
+            case VIDEO: {
+                StreamSession streamSession = streamSessions.get(rtmpPacket.getHeader().getMessageStreamId());
                 try {
-                    lock.wait();
-                } catch (InterruptedException ex) {
-                    L.w("handleRxPacketLoop: Interrupted", ex);
+                    if (streamSession != null) {
+                        streamSession.setStreamPosition(rtmpPacket.getHeader().getAbsoluteTimestamp());
+                        streamSession.write((ContentData) rtmpPacket);
+                    } else {
+                        L.d("handleRxPacketImpl(): Discarding packet for unknown message stream: " + rtmpPacket.getHeader().getMessageStreamId());
+                    }
+                } finally {
+                    ((ContentData) rtmpPacket).release();
                 }
+                break;
             }
+            default:
+                L.w("handleRxPacketImpl(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
+                break;
         }
-        shutdownImpl();
     }
 
     private void handleRxInvoke(Command invoke) throws IOException {
@@ -360,27 +938,141 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
                 synchronized (connectingLock) {
                     connectingLock.notifyAll();
                 }
-            } else if ("createStream".contains(method)) {
+            } else if ("createStream".equals(method)) {
 
-                currentStreamId = (int) ((AmfNumber) invoke.getData().get(1)).getValue();
+                final int streamId = (int) ((AmfNumber) invoke.getData().get(1)).getValue();
                 if (L.isDebugEnabled()) {
-                    L.d("handleRxInvoke(): Stream ID to play: " + currentStreamId);
+                    L.d("handleRxInvoke(): Stream ID to play: " + streamId);
                 }
-                if (streamName != null) {
+                StreamSession streamSession = pendingStreamSessions.remove(invoke.getTransactionId());
+                if (streamSession != null && streamSession.getStreamId() == streamId) {
+                    L.d("handleRxInvoke(): Fast start stream ID confirmed");
+                } else if (streamSession != null) {
+                    final int assumedStreamId = streamSession.getStreamId();
+                    if (assumedStreamId != -1) {
+                        // Fast start assumed the wrong stream ID; play the stream on the assigned one, and close the other
+                        L.w("handleRxInvoke(): Fast start stream ID mismatch; replaying on stream ID: " + streamId);
+                        streamSessions.remove(assumedStreamId, streamSession);
+                        streamSession.setFastStart(false);
+                        sendCloseStream(assumedStreamId);
+                    }
                     // Start playing the requested stream immediately
-                    rtmpPlay(streamName, rtmpStreamWriter, false);
+                    streamSession.setStreamId(streamId);
+                    streamSessions.put(streamId, streamSession);
+                    if (streamSession == currentStream) {
+                        currentStreamId = streamId;
+                    }
+                    rtmpPlay(streamSession);
+                } else if (publishStreamName != null) {
+                    currentStreamId = streamId;
+                    rtmpPublish();
                 }
 
             } else {
                 L.w("handleRxInvoke(): '_result' message received for unknown method: " + method);
             }
-//        } else if (commandName.equals("onStatus")) {
-//            }
+        } else if (commandName.equals("_error")) {
+            String method = rtmpSessionInfo.takeInvokedCommand(invoke.getTransactionId());
+            if ("connect".equals(method)) {
+                handleConnectRejected(invoke);
+                return;
+            }
+            StreamSession streamSession = pendingStreamSessions.remove(invoke.getTransactionId());
+            if ("createStream".equals(method) && streamSession != null && streamSession.isFastStart()) {
+                // The server did not accept createStream before the "connect" result; retry now that it has been sent
+                L.w("handleRxInvoke(): Fast start createStream rejected; retrying");
+                streamSessions.remove(streamSession.getStreamId(), streamSession);
+                streamSession.setStreamId(-1);
+                streamSession.setFastStart(false);
+                if (streamSession == currentStream) {
+                    currentStreamId = -1;
+                }
+                rtmpCreateStream(streamSession);
+            } else {
+                L.e("handleRxInvoke(): '_error' received for method: " + method + ": " + invoke);
+            }
+        } else if (commandName.equals("onStatus")) {
+            handleRxStatus(invoke);
         } else {
             L.e("handleRxInvoke(): Uknown/unhandled server invoke: " + invoke);
         }
     }
 
+    /** Fails any streams started with fast start, and releases threads waiting for the "connect" result */
+    private void handleConnectRejected(Command error) {
+        L.e("handleRxInvoke(): 'connect' rejected: " + error);
+        for (StreamSession streamSession : pendingStreamSessions.values()) {
+            streamSession.fail("connect rejected by server");
+        }
+        for (StreamSession streamSession : streamSessions.values()) {
+            streamSession.fail("connect rejected by server");
+        }
+        pendingStreamSessions.clear();
+        streamSessions.clear();
+        currentStream = null;
+        currentStreamId = -1;
+        connecting = false;
+        synchronized (connectingLock) {
+            connectingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Handles the play status of a stream: a stream whose early (fast start)
+     * play command was rejected is played again, now that its stream has been
+     * created; any other rejected stream fails, closing its writer
+     */
+    private void handleRxPlayStatus(StreamSession streamSession, String code, String level) {
+        if ("NetStream.Play.Start".equals(code)) {
+            streamSession.setFastStart(false);
+        } else if ("error".equals(level)) {
+            final int streamId = streamSession.getStreamId();
+            if (streamSession.isFastStart()) {
+                L.w("handleRxPlayStatus(): Fast start play rejected (" + code + "); playing again");
+                streamSession.setFastStart(false);
+                rtmpPlay(streamSession);
+            } else {
+                L.e("handleRxPlayStatus(): Failed to play stream " + streamSession.getPlayPath() + ": " + code);
+                streamSessions.remove(streamId, streamSession);
+                if (streamSession != currentStream) {
+                    // Nothing else refers to the stream; the current stream is kept, to be reused or closed by closeStream()
+                    sendCloseStream(streamId);
+                }
+                streamSession.fail(code);
+            }
+        }
+    }
+
+    private void handleRxStatus(Command onStatus) {
+        String code = null;
+        String level = null;
+        for (AmfData data : onStatus.getData()) {
+            if (data instanceof AmfObject) {
+                AmfData property = ((AmfObject) data).getProperty("code");
+                code = (property instanceof AmfString) ? ((AmfString) property).getValue() : null;
+                property = ((AmfObject) data).getProperty("level");
+                level = (property instanceof AmfString) ? ((AmfString) property).getValue() : null;
+                break;
+            }
+        }
+        L.i("handleRxStatus(): onStatus received; code: " + code + ", level: " + level);
+        if (code != null && code.startsWith("NetStream.Publish.")) {
+            synchronized (publishLock) {
+                if ("NetStream.Publish.Start".equals(code)) {
+                    publishing = true;
+                } else if ("error".equals(level)) {
+                    publishError = code;
+                }
+                publishLock.notifyAll();
+            }
+        } else if (code != null && code.startsWith("NetStream.Play.")) {
+            StreamSession streamSession = streamSessions.get(onStatus.getHeader().getMessageStreamId());
+            if (streamSession != null) {
+                handleRxPlayStatus(streamSession, code, level);
+            }
+        }
+    }
+
     @Override
     public void threadHasExited(Thread thread) {
         shutdown();
@@ -388,24 +1080,34 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
 
     @Override
     public void shutdown() {
+        if (rxPacketQueue == null) {
+            // No packet handler thread in this mode; shut down immediately
+            synchronized (lock) {
+                if (!active) {
+                    return;
+                }
+                active = false;
+            }
+            shutdownImpl();
+            return;
+        }
         active = false;
-        synchronized (lock) {
-            lock.notify();
+        if (rxPacketQueue != null) {
+            rxPacketQueue.close();
         }
     }
 
     private void shutdownImpl() {
-        // Shut down read/write threads, if necessary
-        if (Thread.activeCount() > 1) {
+        if (nioTransport != null) {
+            nioTransport.close();
+        } else {
+            // Shut down this connection's read/write threads
             L.i("shutdown(): Shutting down read/write threads");
-            Thread[] threads = new Thread[Thread.activeCount()];
-            Thread.enumerate(threads);
-            for (Thread thread : threads) {
-                if (thread instanceof ReadThread && thread.isAlive()) {
-                    ((ReadThread) thread).shutdown();
-                } else if (thread instanceof WriteThread && thread.isAlive()) {
-                    ((WriteThread) thread).shutdown();
-                }
+            if (readThread != null) {
+                readThread.shutdown();
+            }
+            if (writeThread != null) {
+                writeThread.shutdown();
             }
         }
         if (socket != null) {
@@ -415,8 +1117,18 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
                 L.w("shutdown(): failed to close socket", ex);
             }
         }
-        if (rtmpStreamWriter != null) {
-            rtmpStreamWriter.close();
+        for (StreamSession streamSession : streamSessions.values()) {
+            streamSession.closeWriter();
+        }
+        for (StreamSession streamSession : pendingStreamSessions.values()) {
+            streamSession.closeWriter();
+        }
+        synchronized (publishLock) {
+            publishing = false;
+            publishLock.notifyAll();
+        }
+        synchronized (connectingLock) {
+            connectingLock.notifyAll();
         }
     }
 
@@ -424,6 +1136,6 @@ public class RtmpConnection implements RtmpClient, PacketRxHandler, ThreadContro
     public void notifyWindowAckRequired(final int numBytesReadThusFar) {
         L.i("RtmpConnection.notifyWindowAckRequired() called");
         // Create and send window bytes read acknowledgement        
-        writeThread.send(new Acknowledgement(numBytesReadThusFar));
+        send(new Acknowledgement(numBytesReadThusFar));
     }
 }
@@ -0,0 +1,346 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.github.faucamp.simplertmp.util.L;
+
+/**
+ * Pool of connected RtmpConnections, keyed by host, port and application.
+ *
+ * Leasing a pooled connection skips the TCP connect, the RTMP handshake and
+ * the "connect" command, so repeated play sessions against the same origin
+ * only pay for createStream and play. Connections are returned with
+ * <code>release()</code>, which closes any streams still open on them.
+ *
+ * Idle connections are evicted (lazily, whenever the pool is used) once they
+ * have been idle for longer than the idle timeout, or if the server closed
+ * them. The number of connections (leased and idle) per origin is capped;
+ * <code>acquire()</code> waits for a connection to be released if the cap
+ * has been reached.
+ *
+ * Connections are shut down outside the pool's lock, so that a slow socket
+ * close does not hold up leases to other origins.
+ *
+ * @author francois
+ */
+public class RtmpConnectionPool {
+
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 10000;
+    private final int maxConnectionsPerOrigin;
+    private final long idleTimeoutNanos;
+    private final NioEventLoopGroup nioEventLoopGroup;
+    private long acquireTimeoutMs = DEFAULT_ACQUIRE_TIMEOUT_MS;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when a connection is released or closed */
+    private final Condition connectionAvailable = lock.newCondition();
+    private final Map<String, Origin> origins = new HashMap<String, Origin>();
+    /** Connections currently leased out */
+    private final Set<RtmpConnection> leasedConnections = Collections.newSetFromMap(new IdentityHashMap<RtmpConnection, Boolean>());
+    private boolean shutdown = false;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong connectNanos = new AtomicLong();
+
+    /** Connections of a single host/port/application */
+    private static class Origin {
+
+        /** Idle connections; the most recently released connection is at the head */
+        final ArrayDeque<IdleConnection> idleConnections = new ArrayDeque<IdleConnection>();
+        /** Number of connections (leased, idle, or being connected) */
+        int connectionCount;
+    }
+
+    private static class IdleConnection {
+
+        final RtmpConnection connection;
+        final long idleSince;
+
+        IdleConnection(RtmpConnection connection, long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /**
+     * @param maxConnectionsPerOrigin maximum number of connections (leased and idle) per host/port/application
+     * @param idleTimeoutMs time after which an idle connection is closed
+     */
+    public RtmpConnectionPool(int maxConnectionsPerOrigin, long idleTimeoutMs) {
+        this(maxConnectionsPerOrigin, idleTimeoutMs, null);
+    }
+
+    /**
+     * Creates a pool whose connections use non-blocking I/O on the specified
+     * event loop group (or dedicated threads if it is <code>null</code>)
+     */
+    public RtmpConnectionPool(int maxConnectionsPerOrigin, long idleTimeoutMs, NioEventLoopGroup nioEventLoopGroup) {
+        if (maxConnectionsPerOrigin < 1) {
+            throw new IllegalArgumentException("Invalid maximum number of connections: " + maxConnectionsPerOrigin);
+        }
+        this.maxConnectionsPerOrigin = maxConnectionsPerOrigin;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.nioEventLoopGroup = nioEventLoopGroup;
+    }
+
+    /** Sets how long <code>acquire()</code> waits for a connection when the per-origin cap has been reached */
+    public void setAcquireTimeout(long acquireTimeoutMs) {
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    /**
+     * Leases a fully connected connection to the specified origin; an idle
+     * pooled connection is reused if available, otherwise a new one is
+     * connected. The connection must be returned with <code>release()</code>.
+     *
+     * @throws IOException if connecting failed, or no connection became
+     * available within the acquire timeout
+     */
+    public RtmpConnection acquire(String host, int port, String appName) throws IOException {
+        final String key = host + ":" + port + "/" + appName;
+        final List<RtmpConnection> evicted = new ArrayList<RtmpConnection>();
+        Origin origin;
+        lock.lock();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+            while (true) {
+                if (shutdown) {
+                    throw new IllegalStateException("Connection pool has been shut down");
+                }
+                origin = origins.get(key);
+                if (origin == null) {
+                    origin = new Origin();
+                    origins.put(key, origin);
+                }
+                evictIdle(origin, System.nanoTime(), evicted);
+                IdleConnection idleConnection = origin.idleConnections.pollFirst();
+                if (idleConnection != null) {
+                    hits.incrementAndGet();
+                    leasedConnections.add(idleConnection.connection);
+                    return idleConnection.connection;
+                }
+                if (origin.connectionCount < maxConnectionsPerOrigin) {
+                    origin.connectionCount++;
+                    break;
+                }
+                if (remainingNanos <= 0) {
+                    throw new IOException("Timed out waiting for a connection to " + key);
+                }
+                try {
+                    remainingNanos = connectionAvailable.awaitNanos(remainingNanos);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Thread interrupted while waiting for a connection to " + key);
+                }
+            }
+        } finally {
+            lock.unlock();
+            shutdownAll(evicted);
+        }
+
+        // Connect outside the lock, so that other origins are not held up
+        misses.incrementAndGet();
+        final long start = System.nanoTime();
+        RtmpConnection connection = createConnection(host, port, appName);
+        try {
+            connection.connect();
+            connection.awaitConnected();
+        } catch (IOException ex) {
+            closeConnection(key, connection);
+            throw ex;
+        } catch (RuntimeException ex) {
+            closeConnection(key, connection);
+            throw ex;
+        }
+        connectNanos.addAndGet(System.nanoTime() - start);
+        connects.incrementAndGet();
+        lock.lock();
+        try {
+            leasedConnections.add(connection);
+        } finally {
+            lock.unlock();
+        }
+        return connection;
+    }
+
+    /**
+     * Returns a leased connection to the pool; any streams still open on it
+     * are closed. Connections that have been shut down are discarded.
+     *
+     * @throws IllegalStateException if the connection is not leased from
+     * this pool, e.g. because it has already been released
+     */
+    public void release(RtmpConnection connection) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (!leasedConnections.remove(connection)) {
+                throw new IllegalStateException("Connection is not leased from this pool, or has already been released");
+            }
+        } finally {
+            lock.unlock();
+        }
+        final String key = connection.getHost() + ":" + connection.getPort() + "/" + connection.getAppName();
+        if (connection.isConnected()) {
+            try {
+                connection.closeAllStreams();
+            } catch (RuntimeException ex) {
+                L.w("RtmpConnectionPool: Failed to close streams of released connection", ex);
+                closeConnection(key, connection);
+                return;
+            }
+        }
+        lock.lock();
+        try {
+            Origin origin = origins.get(key);
+            if (!shutdown && origin != null && connection.isConnected()) {
+                origin.idleConnections.addFirst(new IdleConnection(connection, System.nanoTime()));
+                connectionAvailable.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        closeConnection(key, connection);
+    }
+
+    /**
+     * Creates a (not yet connected) connection for the pool; subclasses can
+     * override this to configure connections, e.g. with a BufferPool
+     */
+    protected RtmpConnection createConnection(String host, int port, String appName) {
+        if (nioEventLoopGroup != null) {
+            return new RtmpConnection(host, port, appName, nioEventLoopGroup);
+        }
+        return new RtmpConnection(host, port, appName);
+    }
+
+    /** Closes all connections that have been idle for longer than the idle timeout */
+    public void evictIdle() {
+        final List<RtmpConnection> evicted = new ArrayList<RtmpConnection>();
+        lock.lock();
+        try {
+            final long now = System.nanoTime();
+            for (Origin origin : origins.values()) {
+                evictIdle(origin, now, evicted);
+            }
+        } finally {
+            lock.unlock();
+            shutdownAll(evicted);
+        }
+    }
+
+    /**
+     * Removes the origin's expired or disconnected idle connections, adding
+     * them to the list of connections to shut down once the lock is released;
+     * must be called with the lock held
+     */
+    private void evictIdle(Origin origin, long now, List<RtmpConnection> evicted) {
+        Iterator<IdleConnection> it = origin.idleConnections.iterator();
+        while (it.hasNext()) {
+            IdleConnection idleConnection = it.next();
+            if (now - idleConnection.idleSince > idleTimeoutNanos || !idleConnection.connection.isConnected()) {
+                it.remove();
+                origin.connectionCount--;
+                evictions.incrementAndGet();
+                evicted.add(idleConnection.connection);
+                connectionAvailable.signal();
+            }
+        }
+    }
+
+    /** Shuts down the specified connections; must be called without the lock held */
+    private static void shutdownAll(List<RtmpConnection> connections) {
+        for (RtmpConnection connection : connections) {
+            connection.shutdown();
+        }
+    }
+
+    /** Shuts down a connection that is not (or no longer) pooled, freeing up its slot; must be called without the lock held */
+    private void closeConnection(String key, RtmpConnection connection) {
+        connection.shutdown();
+        lock.lock();
+        try {
+            Origin origin = origins.get(key);
+            if (origin != null) {
+                origin.connectionCount--;
+            }
+            connectionAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Shuts down all idle connections; leased connections are shut down when
+     * they are released
+     */
+    public void shutdown() {
+        final List<RtmpConnection> idle = new ArrayList<RtmpConnection>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Origin origin : origins.values()) {
+                for (IdleConnection idleConnection : origin.idleConnections) {
+                    origin.connectionCount--;
+                    idle.add(idleConnection.connection);
+                }
+                origin.idleConnections.clear();
+            }
+            connectionAvailable.signalAll();
+        } finally {
+            lock.unlock();
+            shutdownAll(idle);
+        }
+    }
+
+    /** @return the number of leases served by an idle pooled connection */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of leases for which a new connection had to be connected */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of idle connections closed because they timed out, or were closed by the server */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the average time taken to connect a new connection (TCP connect,
+     * handshake and RTMP "connect" command), in milliseconds; this is the
+     * time saved on the first frame of each lease that is a hit
+     */
+    public double getAverageConnectTimeMillis() {
+        final long connects = this.connects.get();
+        return connects == 0 ? 0 : connectNanos.get() / (connects * 1000000.0);
+    }
+
+    /** @return the number of idle connections in the pool */
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            int idleCount = 0;
+            for (Origin origin : origins.values()) {
+                idleCount += origin.idleConnections.size();
+            }
+            return idleCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,16 +1,21 @@
 package com.github.faucamp.simplertmp.io;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.io.packets.Abort;
+import com.github.faucamp.simplertmp.io.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.io.packets.Aggregate;
 import com.github.faucamp.simplertmp.io.packets.Audio;
 import com.github.faucamp.simplertmp.io.packets.Command;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
 import com.github.faucamp.simplertmp.io.packets.Data;
 import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
 import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
 import com.github.faucamp.simplertmp.io.packets.SetChunkSize;
 import com.github.faucamp.simplertmp.io.packets.SetPeerBandwidth;
 import com.github.faucamp.simplertmp.io.packets.UserControl;
+import com.github.faucamp.simplertmp.io.packets.VariableBodyRtmpPacket;
 import com.github.faucamp.simplertmp.io.packets.Video;
 import com.github.faucamp.simplertmp.io.packets.WindowAckSize;
 import com.github.faucamp.simplertmp.util.L;
@@ -21,46 +26,245 @@ import com.github.faucamp.simplertmp.util.L;
  */
 public class RtmpDecoder {
 
+    /** Initial size of receive buffers used with <code>decodePackets()</code>; these grow as needed */
+    public static final int RX_BUFFER_SIZE = 16 * 1024;
     private RtmpSessionInfo rtmpSessionInfo;
+    /** Reused to read single-chunk packet bodies straight from the receive buffer */
+    private final ByteBufferInputStream bodyInputStream = new ByteBufferInputStream(null);
 
     public RtmpDecoder(RtmpSessionInfo rtmpSessionInfo) {
         this.rtmpSessionInfo = rtmpSessionInfo;
     }
 
-    public RtmpPacket readPacket(InputStream in) throws IOException {
-
-        L.d("\n====  readPacket(): called =====");
-        RtmpHeader header = RtmpHeader.readHeader(in, rtmpSessionInfo);
-        RtmpPacket rtmpPacket;
-        L.d("readPacket(): header.messageType: " + header.getMessageType());
-
-        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(header.getChunkStreamId());
+    /**
+     * Reads a single chunk from the specified buffer, without blocking.
+     *
+     * Chunk header state is kept (and updated in place) per chunk stream, so
+     * no objects are allocated for chunks that do not complete a packet.
+     *
+     * @return the decoded packet, or <code>null</code> if the chunk did not
+     * complete a packet, or if the buffer does not contain a complete chunk yet
+     * (in which case the buffer's position is left unchanged)
+     */
+    public RtmpPacket readPacket(ByteBuffer in) throws IOException {
+        final int chunkStart = in.position();
+        if (!in.hasRemaining()) {
+            return null;
+        }
+        final int basicHeaderByte = in.get(chunkStart) & 0xff;
+        final RtmpHeader.ChunkType chunkType = RtmpHeader.ChunkType.valueOf((byte) (basicHeaderByte >>> 6));
+        int chunkStreamId = basicHeaderByte & 0x3F;
+        int basicHeaderSize = 1;
+        if (chunkStreamId < 2) {
+            // 2- or 3-byte basic header
+            basicHeaderSize = chunkStreamId + 2;
+            if (in.remaining() < basicHeaderSize) {
+                return null;
+            }
+            chunkStreamId = 64 + (in.get(chunkStart + 1) & 0xff) + (chunkStreamId == 1 ? (in.get(chunkStart + 2) & 0xff) << 8 : 0);
+        }
+        int headerSize = chunkType.getSize() + basicHeaderSize - 1;
+        if (in.remaining() < headerSize) {
+            return null;
+        }
+        final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId);
+        RtmpHeader header = chunkStreamInfo.prevHeaderRx();
+        if (header == null) {
+            header = new RtmpHeader();
+            chunkStreamInfo.setPrevHeaderRx(header);
+        }
+        // The 4-byte extended timestamp follows if the timestamp field is 0xFFFFFF (type 3 chunks: if it was in the previous chunk)
+        if (chunkType == RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE
+                ? header.hasExtendedTimestamp() : Util.getUnsignedInt24(in, chunkStart + basicHeaderSize) == RtmpHeader.EXTENDED_TIMESTAMP_MARKER) {
+            headerSize += 4;
+            if (in.remaining() < headerSize) {
+                return null;
+            }
+        }
+        final boolean messageStart = (chunkType != RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE || chunkStreamInfo.getStoredBytes() == 0);
+        final int storedBytes = messageStart ? 0 : chunkStreamInfo.getStoredBytes();
+        // Peek at the packet length to determine whether the full chunk body is available
+        final int packetLength = (chunkType == RtmpHeader.ChunkType.TYPE_0_FULL || chunkType == RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE)
+                ? Util.getUnsignedInt24(in, chunkStart + basicHeaderSize + 3) : header.getPacketLength();
+        final int chunkBodySize = Math.min(packetLength - storedBytes, rtmpSessionInfo.getRxChunkSize());
+        if (in.remaining() < headerSize + chunkBodySize) {
+            return null;
+        }
 
-        chunkStreamInfo.setPrevHeaderRx(header);
+        if (messageStart && chunkStreamInfo.getStoredBytes() > 0) {
+            L.w("readPacket(): new message started before previous message was complete; discarding stored chunks");
+            chunkStreamInfo.clearStoredChunks();
+        }
+        header.readHeader(in, messageStart);
 
-        if (header.getPacketLength() > rtmpSessionInfo.getChunkSize()) {
-            L.d("readPacket(): packet size (" + header.getPacketLength() + ") is bigger than chunk size (" + rtmpSessionInfo.getChunkSize() + "); storing chunk data");
+        if (storedBytes > 0 || chunkBodySize < packetLength) {
             // This packet consists of more than one chunk; store the chunks in the chunk stream until everything is read
-            if (!chunkStreamInfo.storePacketChunk(in, rtmpSessionInfo.getChunkSize())) {
-                L.d(" readPacket(): returning null because of incomplete packet");                
+            if (!chunkStreamInfo.storePacketChunk(in, chunkBodySize, rtmpSessionInfo.getBufferPool())) {
                 return null; // packet is not yet complete
-            } else {
-                L.d(" readPacket(): stored chunks complete packet; reading packet");
-                in = chunkStreamInfo.getStoredPacketInputStream();
             }
+            return readPacketBody(new RtmpHeader(header), chunkStreamInfo.takeStoredPacket());
         } else {
-            L.d("readPacket(): packet size (" + header.getPacketLength() + ") is LESS than chunk size (" + rtmpSessionInfo.getChunkSize() + "); reading packet fully");
+            // Read the body straight from the buffer, limited to this chunk
+            final int bodyEnd = in.position() + chunkBodySize;
+            final int limit = in.limit();
+            in.limit(bodyEnd);
+            try {
+                return readPacketBody(new RtmpHeader(header), in);
+            } finally {
+                in.limit(limit);
+                in.position(bodyEnd);
+            }
         }
+    }
 
-        switch (header.getMessageType()) {
+    /**
+     * Decodes all complete chunks in the specified buffer, passing completed
+     * packets to the specified handler. Bytes of an incomplete chunk are left
+     * in the buffer.
+     *
+     * Consumed bytes are counted against the acknowledgement window; the
+     * handler is notified whenever an Acknowledgement should be sent.
+     */
+    public void decodePackets(ByteBuffer in, PacketRxHandler packetRxHandler) throws IOException {
+        while (in.hasRemaining()) {
+            final int chunkStart = in.position();
+            RtmpPacket rtmpPacket = readPacket(in);
+            final int chunkLength = in.position() - chunkStart;
+            if (chunkLength == 0) {
+                return; // chunk not fully received yet
+            }
+            if (rtmpPacket != null) {
+                packetRxHandler.handleRxPacket(rtmpPacket);
+            }
+            if (rtmpSessionInfo.addToWindowBytesRead(chunkLength)) {
+                packetRxHandler.notifyWindowAckRequired(rtmpSessionInfo.getTotalBytesRead());
+            }
+        }
+    }
 
-            case SET_CHUNK_SIZE: {
-                SetChunkSize setChunkSize = new SetChunkSize(header);
-                setChunkSize.readBody(in);
-                L.d("readPacket(): Setting chunk size to: " + setChunkSize.getChunkSize());
-                rtmpSessionInfo.setChunkSize(setChunkSize.getChunkSize());                
-                return null;
+    /**
+     * Compacts a receive buffer after <code>decodePackets()</code>, growing it if
+     * it is too small to hold a full chunk
+     *
+     * @return the buffer to read into next (this is a new buffer if the buffer was grown)
+     */
+    public static ByteBuffer compactRxBuffer(ByteBuffer rxBuffer) {
+        rxBuffer.compact();
+        if (!rxBuffer.hasRemaining()) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(rxBuffer.capacity() * 2);
+            rxBuffer.flip();
+            newBuffer.put(rxBuffer);
+            return newBuffer;
+        }
+        return rxBuffer;
+    }
+
+    /**
+     * Reads a packet body from the remaining bytes of the specified buffer.
+     * Audio/video payloads are copied straight into a buffer leased from the
+     * session's BufferPool, if one is configured.
+     */
+    private RtmpPacket readPacketBody(RtmpHeader header, ByteBuffer in) throws IOException {
+        RtmpPacket rtmpPacket = createPacket(header);
+        if (rtmpPacket == null) {
+            in.position(in.limit()); // skip the body
+            return null;
+        } else if (rtmpPacket instanceof ContentData) {
+            final BufferPool bufferPool = rtmpSessionInfo.getBufferPool();
+            if (bufferPool != null) {
+                PooledBuffer pooledBuffer = bufferPool.acquire(in.remaining());
+                pooledBuffer.getBuffer().put(in).flip();
+                ((ContentData) rtmpPacket).setData(pooledBuffer);
+            } else {
+                byte[] data = new byte[in.remaining()];
+                in.get(data);
+                ((ContentData) rtmpPacket).setData(data);
+            }
+            return rtmpPacket;
+        }
+        return readBody(rtmpPacket, in);
+    }
+
+    /**
+     * Reads a packet body from a reassembled multi-chunk message buffer.
+     * Audio/video packets take over the buffer as their payload, without
+     * copying; the buffer is released after reading any other packet type.
+     */
+    private RtmpPacket readPacketBody(RtmpHeader header, PooledBuffer storedPacket) throws IOException {
+        RtmpPacket rtmpPacket;
+        try {
+            rtmpPacket = createPacket(header);
+        } catch (IOException ex) {
+            storedPacket.release();
+            throw ex;
+        }
+        if (rtmpPacket == null) {
+            storedPacket.release();
+            return null;
+        } else if (rtmpPacket instanceof ContentData) {
+            ((ContentData) rtmpPacket).setData(storedPacket);
+            return rtmpPacket;
+        }
+        try {
+            return readBody(rtmpPacket, storedPacket.getBuffer());
+        } finally {
+            storedPacket.release();
+        }
+    }
+
+    /**
+     * Reads the body of a packet other than audio/video from the specified
+     * buffer. A command or data message whose AMF values cannot be decoded
+     * (e.g. an unsupported AMF3 type) is skipped, like a message of an
+     * unsupported type, rather than failing the connection.
+     */
+    private RtmpPacket readBody(RtmpPacket rtmpPacket, ByteBuffer body) throws IOException {
+        bodyInputStream.setBuffer(body);
+        try {
+            rtmpPacket.readBody(bodyInputStream);
+        } catch (IOException ex) {
+            if (!(rtmpPacket instanceof VariableBodyRtmpPacket)) {
+                throw ex;
             }
+            L.w("readPacket(): Skipping " + rtmpPacket.getHeader().getMessageType() + " message that could not be decoded", ex);
+            return null;
+        } finally {
+            bodyInputStream.setBuffer(null);
+        }
+        return handleProtocolControl(rtmpPacket);
+    }
+
+    /**
+     * Applies SetChunkSize and Abort packets to the session's chunk streams;
+     * these are not passed on. They are applied here, on the reading thread,
+     * since that thread owns the chunk streams' partially-received messages.
+     */
+    private RtmpPacket handleProtocolControl(RtmpPacket rtmpPacket) {
+        if (rtmpPacket instanceof SetChunkSize) {
+            SetChunkSize setChunkSize = (SetChunkSize) rtmpPacket;
+            L.d("readPacket(): Setting chunk size to: " + setChunkSize.getChunkSize());
+            rtmpSessionInfo.setRxChunkSize(setChunkSize.getChunkSize());
+            return null;
+        } else if (rtmpPacket instanceof Abort) {
+            final int chunkStreamId = ((Abort) rtmpPacket).getChunkStreamId();
+            L.d("readPacket(): Aborting message on chunk stream: " + chunkStreamId);
+            rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).clearStoredChunks();
+            return null;
+        }
+        return rtmpPacket;
+    }
+
+    /**
+     * @return a packet for the header's message type, or <code>null</code> if
+     * the message type is not supported (its body is then skipped)
+     */
+    private RtmpPacket createPacket(RtmpHeader header) throws IOException {
+        RtmpPacket rtmpPacket;
+        switch (header.getMessageType()) {
+
+            case SET_CHUNK_SIZE:
+                rtmpPacket = new SetChunkSize(header);
+                break;
             case ABORT:
                 rtmpPacket = new Abort(header);
                 break;
@@ -73,21 +277,30 @@ public class RtmpDecoder {
             case SET_PEER_BANDWIDTH:
                 rtmpPacket = new SetPeerBandwidth(header);
                 break;
+            case ACKNOWLEDGEMENT:
+                rtmpPacket = new Acknowledgement(header);
+                break;
             case AUDIO:
                 rtmpPacket = new Audio(header);
                 break;
             case VIDEO:
                 rtmpPacket = new Video(header);
+                break;
             case COMMAND_AMF0:
+            case COMMAND_AMF3:
                 rtmpPacket = new Command(header);
                 break;
             case DATA_AMF0:
+            case DATA_AMF3:
                 rtmpPacket = new Data(header);
                 break;
+            case AGGREGATE_MESSAGE:
+                rtmpPacket = new Aggregate(header);
+                break;
             default:
-                throw new IOException("No packet body implementation for message type: " + header.getMessageType());
-        }                
-        rtmpPacket.readBody(in);                        
+                L.w("readPacket(): Skipping message of unimplemented type: " + header.getMessageType());
+                return null;
+        }
         return rtmpPacket;
     }
 }
@@ -3,7 +3,10 @@ package com.github.faucamp.simplertmp.io;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.github.faucamp.simplertmp.io.packets.SetPeerBandwidth;
 
 /**
  *
@@ -14,14 +17,41 @@ public class RtmpSessionInfo {
     /** The (total) number of bytes read for this window (resets to 0 if the agreed-upon RTMP window acknowledgement size is reached) */
     private int windowBytesRead;
     /** The window acknowledgement size for this RTMP session, in bytes; default to max to avoid unnecessary "Acknowledgment" messages from being sent */
-    private int acknowledgementWindowSize = Integer.MAX_VALUE;
+    private volatile int acknowledgementWindowSize = Integer.MAX_VALUE;
     /** Used internally to store the total number of bytes read (used when sending Acknowledgement messages) */
     private int totalBytesRead = 0;
+    /** Guards the send window state below (a lock rather than a monitor, so that waiting virtual threads are not pinned) */
+    private final ReentrantLock sendWindowLock = new ReentrantLock();
+    /** Signalled when the send window may have opened */
+    private final Condition sendWindowChanged = sendWindowLock.newCondition();
+    /** The peer's bandwidth limit (set with SetPeerBandwidth): the maximum number of unacknowledged bytes that may be sent */
+    private int peerBandwidth = Integer.MAX_VALUE;
+    /** Limit type of the last applied SetPeerBandwidth message, or <code>null</code> if none was received */
+    private SetPeerBandwidth.LimitType peerBandwidthLimitType;
+    /** The (total) number of bytes sent; wraps around like the peer's acknowledgement sequence numbers */
+    private int totalBytesSent;
+    /** The sequence number of the last Acknowledgement received from the peer */
+    private int totalBytesAcknowledged;
+    /** Set once the connection is shut down, to release threads waiting for the send window */
+    private boolean sendWindowReleased;
     
+    /**
+     * Maximum time that sending is held back when the peer bandwidth is used up;
+     * if no Acknowledgement arrives in time, sending resumes anyway (some peers
+     * set a peer bandwidth without ever acknowledging), and all bytes sent so far
+     * are assumed to be acknowledged
+     */
+    public static final long SEND_WINDOW_TIMEOUT_MS = 5000;
     /** Default chunk size is 128 bytes */
-    private int chunkSize = 128;
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+    /** Chunk size used by the peer for received chunks */
+    private volatile int rxChunkSize = DEFAULT_CHUNK_SIZE;
+    /** Chunk size for transmitted chunks; only changed once the corresponding SetChunkSize message has been written */
+    private volatile int txChunkSize = DEFAULT_CHUNK_SIZE;
     private Map<Integer, ChunkStreamInfo> chunkChannels = new HashMap<Integer, ChunkStreamInfo>();
     private Map<Integer, String> invokedMethods = new ConcurrentHashMap<Integer, String>();
+    /** Pool that audio/video payload buffers are leased from; <code>null</code> to allocate a new array for each packet */
+    private BufferPool bufferPool;
 
     public ChunkStreamInfo getChunkStreamInfo(int chunkStreamId) {
         ChunkStreamInfo chunkStreamInfo = chunkChannels.get(chunkStreamId);
@@ -40,12 +70,28 @@ public class RtmpSessionInfo {
         return invokedMethods.put(transactionId, commandName);
     }
 
-    public int getChunkSize() {
-        return chunkSize;
+    public int getRxChunkSize() {
+        return rxChunkSize;
+    }
+
+    public void setRxChunkSize(int rxChunkSize) {
+        this.rxChunkSize = rxChunkSize;
+    }
+
+    public int getTxChunkSize() {
+        return txChunkSize;
     }
 
-    public void setChunkSize(int chunkSize) {
-        this.chunkSize = chunkSize;
+    public void setTxChunkSize(int txChunkSize) {
+        this.txChunkSize = txChunkSize;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
     }
 
     public int getAcknowledgementWindowSize() {
@@ -57,16 +103,153 @@ public class RtmpSessionInfo {
     }
 
     /**
-     * Add the specified amount of bytes to the total number of bytes read for this RTMP window;     
+     * Add the specified amount of bytes to the total number of bytes read for this RTMP window;
+     * this must only be called by the (single) decoding thread
      * @param numBytes the number of bytes to add
      * @return <code>true</code> if an "acknowledgement" packet should be sent, <code>false</code> otherwise
      */
-    public final void addToWindowBytesRead(final int numBytes, final RtmpPacket packet) throws WindowAckRequired {
+    public final boolean addToWindowBytesRead(final int numBytes) {
         windowBytesRead += numBytes;
         totalBytesRead += numBytes;
-        if (windowBytesRead >= acknowledgementWindowSize) {            
-            windowBytesRead -= acknowledgementWindowSize;                       
-            throw new WindowAckRequired(totalBytesRead, packet);
+        final int windowSize = acknowledgementWindowSize;
+        if (windowBytesRead >= windowSize) {
+            windowBytesRead -= windowSize;
+            if (windowBytesRead >= windowSize) {
+                windowBytesRead = 0; // the window size was reduced; acknowledge once, and restart counting
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the total number of bytes read (wraps around after 4GB, as the Acknowledgement sequence number does) */
+    public int getTotalBytesRead() {
+        return totalBytesRead;
+    }
+
+    /**
+     * Applies a SetPeerBandwidth message received from the peer: a hard limit
+     * sets the send window, a soft limit can only reduce it, and a dynamic
+     * limit is treated as hard if the previous limit was hard (and ignored
+     * otherwise)
+     * @return <code>true</code> if the send window size changed, in which case
+     * a WindowAckSize message with the new size should be sent to the peer
+     */
+    public boolean setPeerBandwidth(int bandwidth, SetPeerBandwidth.LimitType limitType) {
+        if (limitType == null || bandwidth <= 0) {
+            return false;
+        }
+        sendWindowLock.lock();
+        try {
+            final int previousBandwidth = peerBandwidth;
+            switch (limitType) {
+                case HARD:
+                    peerBandwidth = bandwidth;
+                    peerBandwidthLimitType = limitType;
+                    break;
+                case SOFT:
+                    peerBandwidth = Math.min(peerBandwidth, bandwidth);
+                    peerBandwidthLimitType = limitType;
+                    break;
+                case DYNAMIC:
+                    if (peerBandwidthLimitType == SetPeerBandwidth.LimitType.HARD) {
+                        peerBandwidth = bandwidth;
+                    }
+                    break;
+            }
+            sendWindowChanged.signalAll();
+            return peerBandwidth != previousBandwidth;
+        } finally {
+            sendWindowLock.unlock();
+        }
+    }
+
+    public int getPeerBandwidth() {
+        sendWindowLock.lock();
+        try {
+            return peerBandwidth;
+        } finally {
+            sendWindowLock.unlock();
+        }
+    }
+
+    /** Adds the specified amount of bytes to the total number of bytes sent */
+    public void addToBytesSent(final int numBytes) {
+        sendWindowLock.lock();
+        try {
+            totalBytesSent += numBytes;
+        } finally {
+            sendWindowLock.unlock();
+        }
+    }
+
+    /** Records an Acknowledgement received from the peer, possibly opening the send window */
+    public void setBytesAcknowledged(final int sequenceNumber) {
+        sendWindowLock.lock();
+        try {
+            totalBytesAcknowledged = sequenceNumber;
+            sendWindowChanged.signalAll();
+        } finally {
+            sendWindowLock.unlock();
+        }
+    }
+
+    /** @return <code>true</code> if fewer than "peer bandwidth" bytes are unacknowledged, i.e. more data may be sent */
+    public boolean isSendWindowOpen() {
+        sendWindowLock.lock();
+        try {
+            return isSendWindowOpenImpl();
+        } finally {
+            sendWindowLock.unlock();
+        }
+    }
+
+    private boolean isSendWindowOpenImpl() {
+        // Both counters wrap around, so compare their difference; a peer acknowledging more than was sent does not count as credit
+        final int unacknowledged = Math.max(0, totalBytesSent - totalBytesAcknowledged);
+        return sendWindowReleased || unacknowledged < peerBandwidth;
+    }
+
+    /**
+     * Blocks until the send window is open, or the specified timeout elapsed;
+     * on timeout, all bytes sent so far are assumed to be acknowledged
+     * @return <code>true</code> if the send window opened, <code>false</code> if it timed out
+     */
+    public boolean awaitSendWindow(long timeoutMs) throws InterruptedException {
+        sendWindowLock.lock();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (!isSendWindowOpenImpl()) {
+                if (remainingNanos <= 0) {
+                    totalBytesAcknowledged = totalBytesSent;
+                    return false;
+                }
+                remainingNanos = sendWindowChanged.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            sendWindowLock.unlock();
         }
-    }       
+    }
+
+    /** Treats all bytes sent so far as acknowledged, opening a new send window (used when the peer does not acknowledge in time) */
+    public void assumeBytesSentAcknowledged() {
+        sendWindowLock.lock();
+        try {
+            totalBytesAcknowledged = totalBytesSent;
+        } finally {
+            sendWindowLock.unlock();
+        }
+    }
+
+    /** Opens the send window permanently, releasing any thread blocked in <code>awaitSendWindow()</code> (used on shutdown) */
+    public void releaseSendWindow() {
+        sendWindowLock.lock();
+        try {
+            sendWindowReleased = true;
+            sendWindowChanged.signalAll();
+        } finally {
+            sendWindowLock.unlock();
+        }
+    }
 }
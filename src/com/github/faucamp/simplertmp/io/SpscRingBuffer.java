@@ -0,0 +1,193 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated, lock-free ring buffer for handing objects from exactly one
+ * producer thread to exactly one consumer thread (used to pass received
+ * packets from the ReadThread to the packet handler thread).
+ *
+ * When the ring is empty (or full), the waiting thread either parks until it
+ * is unparked by the other side, or busy-spins, depending on the WaitStrategy.
+ *
+ * @author francois
+ */
+public class SpscRingBuffer<E> {
+
+    /** How a thread waits for the ring to become non-empty (consumer) or non-full (producer) */
+    public static enum WaitStrategy {
+
+        /** Park the waiting thread; lowest CPU usage */
+        PARK,
+        /** Spin on the waiting thread's core; lowest latency, but burns a CPU core per waiting thread */
+        BUSY_SPIN
+    }
+    /** Number of spins before a thread using the PARK strategy actually parks */
+    private static final int SPINS_BEFORE_PARK = 100;
+    private final Object[] buffer;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    /** Index of the next element to be consumed; only written by the consumer */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Index of the next element to be produced; only written by the producer,
+     * except that the consumer sets the SEALED bit once it has drained a closed ring
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private static final long SEALED = 1L << 62;
+    private volatile Thread consumerThread;
+    private volatile Thread producerThread;
+    private volatile boolean consumerWaiting = false;
+    private volatile boolean producerWaiting = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity the number of elements the ring can hold; rounded up to a power of 2
+     */
+    public SpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new Object[size];
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds the specified element, waiting for space if the ring is full (producer thread only)
+     * @return <code>false</code> if the ring has been closed, in which case
+     * the element was not added, and is still owned by the caller
+     */
+    boolean put(E element) {
+        final long t = tail.get();
+        if (closed || (t & SEALED) != 0) {
+            return false;
+        }
+        if (t - head.get() == buffer.length) {
+            producerThread = Thread.currentThread();
+            int spins = 0;
+            while (t - head.get() == buffer.length) {
+                if (closed) {
+                    return false;
+                }
+                if (waitStrategy == WaitStrategy.BUSY_SPIN || ++spins < SPINS_BEFORE_PARK) {
+                    continue;
+                }
+                producerWaiting = true;
+                if (t - head.get() == buffer.length && !closed) {
+                    LockSupport.park(this);
+                }
+                producerWaiting = false;
+            }
+        }
+        final int index = (int) t & mask;
+        buffer[index] = element;
+        // Volatile write: publishes the element, and orders the consumerWaiting read below
+        if (!tail.compareAndSet(t, t + 1)) {
+            // The consumer sealed the ring after draining it; the element will never be taken
+            buffer[index] = null;
+            return false;
+        }
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+        return true;
+    }
+
+    /** @return the next element, or <code>null</code> if the ring is empty (consumer thread only) */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        final long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        final int index = (int) h & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.set(h + 1);
+        if (producerWaiting) {
+            LockSupport.unpark(producerThread);
+        }
+        return element;
+    }
+
+    /**
+     * Waits for, and returns, the next element (consumer thread only)
+     * @return the next element, or <code>null</code> if the ring has been closed
+     */
+    E take() {
+        consumerThread = Thread.currentThread();
+        int spins = 0;
+        while (true) {
+            E element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (closed) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.BUSY_SPIN || ++spins < SPINS_BEFORE_PARK) {
+                continue;
+            }
+            consumerWaiting = true;
+            if (head.get() == tail.get() && !closed) {
+                LockSupport.park(this);
+            }
+            consumerWaiting = false;
+        }
+    }
+
+    /**
+     * Removes the elements left in a closed ring (consumer thread only, once
+     * it has stopped taking elements), so that they can be released. Once
+     * this returns <code>null</code>, the ring is sealed: <code>put()</code>
+     * rejects any further elements, so each element is either returned here
+     * or left with the producer.
+     *
+     * @return the next remaining element, or <code>null</code> if there are none
+     */
+    E drain() {
+        while (true) {
+            final long t = tail.get();
+            if ((t & SEALED) != 0) {
+                return null;
+            }
+            E element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (tail.compareAndSet(t, t | SEALED)) {
+                return null;
+            }
+            // The producer added an element after the poll; take it first
+        }
+    }
+
+    /** Wakes up any waiting threads; <code>take()</code> returns <code>null</code> once the ring is empty */
+    void close() {
+        closed = true;
+        Thread thread = consumerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        thread = producerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /** @return the (approximate) number of elements in the ring */
+    public int size() {
+        return (int) ((tail.get() & ~SEALED) - head.get());
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+}
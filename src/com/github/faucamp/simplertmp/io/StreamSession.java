@@ -0,0 +1,135 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.Data;
+import com.github.faucamp.simplertmp.output.RtmpStreamWriter;
+
+/**
+ * State of a single stream being played on an RtmpConnection; received
+ * packets are routed to its RtmpStreamWriter by message stream ID.
+ *
+ * The writer is closed exactly once, when the stream ends or is closed;
+ * since that may happen on another thread than the one receiving packets,
+ * writes and closing are serialized, and packets arriving after closing
+ * are discarded.
+ *
+ * @author francois
+ */
+class StreamSession {
+
+    private final String playPath;
+    private final RtmpStreamWriter rtmpStreamWriter;
+    /** The message stream ID assigned by the server; -1 until the createStream command has completed */
+    private volatile int streamId = -1;
+    /** Timestamp of the last received audio/video packet */
+    private volatile int streamPosition = 0;
+    /** Stream position at which the stream was paused, or -1 if it is not paused */
+    private int pauseTimeStamp = -1;
+    /** Guards the writer; a ReentrantLock, so that a blocking writer does not pin a virtual thread's carrier */
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private volatile boolean closed = false;
+    /** Set while the stream is played on an assumed stream ID (fast start), until it falls back to a normal start */
+    private volatile boolean fastStart = false;
+    /** Reason why the stream could not be played, or <code>null</code> */
+    private volatile String failure;
+
+    public StreamSession(String playPath, RtmpStreamWriter rtmpStreamWriter) {
+        this.playPath = playPath;
+        this.rtmpStreamWriter = rtmpStreamWriter;
+    }
+
+    public String getPlayPath() {
+        return playPath;
+    }
+
+    public RtmpStreamWriter getRtmpStreamWriter() {
+        return rtmpStreamWriter;
+    }
+
+    /** Passes a received data packet to the writer, unless the stream has been closed */
+    public void write(Data dataPacket) throws IOException {
+        writerLock.lock();
+        try {
+            if (!closed) {
+                rtmpStreamWriter.write(dataPacket);
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /** Passes a received audio/video packet to the writer, unless the stream has been closed */
+    public void write(ContentData packet) throws IOException {
+        writerLock.lock();
+        try {
+            if (!closed) {
+                rtmpStreamWriter.write(packet);
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /** Closes the writer, after any write in progress; does nothing if it was already closed */
+    public void closeWriter() {
+        writerLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            rtmpStreamWriter.close();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /** Closes the writer (see <code>closeWriter()</code>), recording why the stream could not be played */
+    public void fail(String failure) {
+        this.failure = failure;
+        closeWriter();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** @return the reason why the stream could not be played, or <code>null</code> */
+    public String getFailure() {
+        return failure;
+    }
+
+    public boolean isFastStart() {
+        return fastStart;
+    }
+
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public void setStreamId(int streamId) {
+        this.streamId = streamId;
+    }
+
+    public int getStreamPosition() {
+        return streamPosition;
+    }
+
+    public void setStreamPosition(int streamPosition) {
+        this.streamPosition = streamPosition;
+    }
+
+    public int getPauseTimeStamp() {
+        return pauseTimeStamp;
+    }
+
+    public void setPauseTimeStamp(int pauseTimeStamp) {
+        this.pauseTimeStamp = pauseTimeStamp;
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ThreadFactory that creates virtual threads, for running many connections
+ * without a platform thread per read/write/handler loop (see
+ * <code>RtmpConnection.setThreadFactory()</code>).
+ *
+ * Virtual threads are only available on JDK 21 and later; they are created
+ * reflectively, so that this library still builds and runs on older JDKs.
+ *
+ * @author francois
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+    private final ThreadFactory factory;
+
+    /**
+     * @param namePrefix prefix for the names of the created threads; a counter is appended to it
+     * @throws UnsupportedOperationException if virtual threads are not supported by this JVM
+     */
+    public VirtualThreadFactory(String namePrefix) {
+        if (OF_VIRTUAL == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = OF_VIRTUAL.getReturnType();
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception ex) {
+            throw new UnsupportedOperationException("Failed to create virtual thread factory", ex);
+        }
+    }
+
+    /** @return <code>true</code> if this JVM supports virtual threads */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        return factory.newThread(runnable);
+    }
+
+    private static Method findMethod(Class<?> cls, String name) {
+        try {
+            return cls.getMethod(name);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+}
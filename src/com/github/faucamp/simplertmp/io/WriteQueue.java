@@ -0,0 +1,289 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.github.faucamp.simplertmp.io.packets.Audio;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.io.packets.Video;
+
+/**
+ * Bounded queue of RTMP packets waiting to be written
+ *
+ * Protocol control messages (chunk size, acknowledgements, user control
+ * messages, etc) are kept in a separate high-priority lane, which is always
+ * written first and is never subject to the capacity limit. All other packets
+ * are kept in a bounded lane; what happens when that lane is full is
+ * determined by the queue's OverflowPolicy.
+ *
+ * @author francois
+ */
+public class WriteQueue {
+
+    /** What to do with a packet that is sent while the queue is full */
+    public static enum OverflowPolicy {
+
+        /** Block the sending thread until there is space in the queue */
+        BLOCK,
+        /**
+         * Drop the oldest queued audio or non-key video frame to make space;
+         * blocks if no such frame is queued
+         */
+        DROP_OLDEST_NON_KEYFRAME,
+        /**
+         * Throw an IllegalStateException from the sending thread; only applies
+         * to packets published by the application (connection-internal
+         * packets, such as commands, are queued over capacity instead)
+         */
+        FAIL
+    }
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ArrayDeque<RtmpPacket> controlLane = new ArrayDeque<RtmpPacket>();
+    private final ArrayDeque<RtmpPacket> packetLane;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long bytesQueued = 0;
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private boolean closed = false;
+
+    /**
+     * @param capacity the maximum number of (non-control) packets that can be queued
+     * @param overflowPolicy what to do when a packet is sent while the queue is full
+     */
+    public WriteQueue(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid write queue capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        packetLane = new ArrayDeque<RtmpPacket>(capacity);
+    }
+
+    /**
+     * Queues the specified packet for writing. A packet that is not queued
+     * (because the queue is closed or full), or that is dropped later, is
+     * released, returning any pooled payload to its pool.
+     *
+     * @param mayBlock if <code>false</code>, the calling thread is never
+     * blocked or failed; if the queue is full, droppable frames are dropped
+     * and any other packet is queued regardless of the capacity limit (used
+     * for connection-internal packets, and on the event loop thread)
+     * @throws IllegalStateException if the queue is full, the overflow policy
+     * is FAIL, and <code>mayBlock</code> is <code>true</code>
+     */
+    void offer(RtmpPacket rtmpPacket, boolean mayBlock) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (closed) {
+                release(rtmpPacket);
+                return;
+            }
+            if (isControlPacket(rtmpPacket)) {
+                controlLane.add(rtmpPacket);
+                notEmpty.signal();
+                return;
+            }
+            while (packetLane.size() >= capacity && !closed) {
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST_NON_KEYFRAME && dropOldestDroppable()) {
+                    break;
+                }
+                if (!mayBlock) {
+                    if (isDroppable(rtmpPacket)) {
+                        drop(rtmpPacket);
+                        return;
+                    }
+                    break; // over capacity, rather than blocking or failing the calling thread
+                }
+                if (overflowPolicy == OverflowPolicy.FAIL) {
+                    release(rtmpPacket);
+                    throw new IllegalStateException("Write queue is full (" + capacity + " packets)");
+                }
+                try {
+                    notFull.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    drop(rtmpPacket);
+                    return;
+                }
+            }
+            if (closed) {
+                release(rtmpPacket);
+                return;
+            }
+            packetLane.add(rtmpPacket);
+            bytesQueued += sizeOf(rtmpPacket);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the next packet to write, or <code>null</code> if the queue is empty */
+    RtmpPacket poll() {
+        lock.lock();
+        try {
+            return pollImpl();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next protocol control message to write, or <code>null</code>
+     * if there is none (used while other packets are held back)
+     */
+    RtmpPacket pollControl() {
+        lock.lock();
+        try {
+            return controlLane.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next packet to write
+     * @return the next packet, or <code>null</code> if the queue has been closed
+     */
+    RtmpPacket take() throws InterruptedException {
+        lock.lock();
+        try {
+            RtmpPacket rtmpPacket = pollImpl();
+            while (rtmpPacket == null && !closed) {
+                notEmpty.await();
+                rtmpPacket = pollImpl();
+            }
+            return rtmpPacket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Discards all queued packets, and wakes up any waiting threads */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (RtmpPacket rtmpPacket : packetLane) {
+                release(rtmpPacket);
+            }
+            packetLane.clear();
+            controlLane.clear();
+            bytesQueued = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of packets currently queued (including control messages) */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return packetLane.size() + controlLane.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of audio/video payload bytes currently queued */
+    public long getBytesQueued() {
+        lock.lock();
+        try {
+            return bytesQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the total number of packets dropped because the queue was full */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    private RtmpPacket pollImpl() {
+        RtmpPacket rtmpPacket = controlLane.poll();
+        if (rtmpPacket == null) {
+            rtmpPacket = packetLane.poll();
+            if (rtmpPacket != null) {
+                bytesQueued -= sizeOf(rtmpPacket);
+                notFull.signal();
+            }
+        }
+        return rtmpPacket;
+    }
+
+    private boolean dropOldestDroppable() {
+        Iterator<RtmpPacket> it = packetLane.iterator();
+        while (it.hasNext()) {
+            RtmpPacket queued = it.next();
+            if (isDroppable(queued)) {
+                it.remove();
+                bytesQueued -= sizeOf(queued);
+                drop(queued);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(RtmpPacket rtmpPacket) {
+        droppedPackets.incrementAndGet();
+        release(rtmpPacket);
+    }
+
+    private static void release(RtmpPacket rtmpPacket) {
+        if (rtmpPacket instanceof ContentData) {
+            ((ContentData) rtmpPacket).release();
+        }
+    }
+
+    private static int sizeOf(RtmpPacket rtmpPacket) {
+        return (rtmpPacket instanceof ContentData) ? ((ContentData) rtmpPacket).getDataLength() : 0;
+    }
+
+    static boolean isControlPacket(RtmpPacket rtmpPacket) {
+        switch (rtmpPacket.getHeader().getMessageType()) {
+            case SET_CHUNK_SIZE:
+            case ABORT:
+            case ACKNOWLEDGEMENT:
+            case USER_CONTROL_MESSAGE:
+            case WINDOW_ACKNOWLEDGEMENT_SIZE:
+            case SET_PEER_BANDWIDTH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> for audio frames and non-key video frames;
+     * codec sequence headers and keyframes are never dropped
+     */
+    private static boolean isDroppable(RtmpPacket rtmpPacket) {
+        if (rtmpPacket instanceof Video) {
+            ContentData video = (ContentData) rtmpPacket;
+            // FLV video tag: upper 4 bits of the first byte are the frame type; 1 == keyframe
+            return video.getDataLength() > 0 && ((video.getDataByte(0) >>> 4) & 0x0f) != 1;
+        } else if (rtmpPacket instanceof Audio) {
+            ContentData audio = (ContentData) rtmpPacket;
+            // AAC sequence header: sound format 10 (AAC), AAC packet type 0
+            return !(audio.getDataLength() > 1 && ((audio.getDataByte(0) >>> 4) & 0x0f) == 10 && audio.getDataByte(1) == 0);
+        }
+        return false;
+    }
+}
@@ -2,49 +2,52 @@ package com.github.faucamp.simplertmp.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import com.github.faucamp.simplertmp.io.packets.Command;
 import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
 import com.github.faucamp.simplertmp.util.L;
 
 /**
- * RTMPConnection's write thread
+ * RTMPConnection's write thread loop; this is run on a thread created by the
+ * connection's ThreadFactory
  * 
  * @author francois
  */
-public class WriteThread extends Thread {
+public class WriteThread implements Runnable {
 
     private RtmpSessionInfo rtmpSessionInfo;
     private OutputStream out;
-    private ConcurrentLinkedQueue<RtmpPacket> writeQueue = new ConcurrentLinkedQueue<RtmpPacket>();
-    private final Object lock = new Object();
+    private final WriteQueue writeQueue;
     private volatile boolean active = true;
     private ThreadController threadController;
+    private final ChunkEncoder chunkEncoder;
 
-    public WriteThread(RtmpSessionInfo rtmpSessionInfo, OutputStream out, ThreadController threadController) {
-        super("RtmpWriteThread");
+    public WriteThread(RtmpSessionInfo rtmpSessionInfo, OutputStream out, WriteQueue writeQueue, ThreadController threadController) {
         this.rtmpSessionInfo = rtmpSessionInfo;
         this.out = out;
+        this.writeQueue = writeQueue;
         this.threadController = threadController;
+        this.chunkEncoder = new ChunkEncoder(rtmpSessionInfo);
     }
 
     @Override
     public void run() {
 
         while (active) {
-            RtmpPacket rtmpPacket = writeQueue.poll();
+            // Wait for next command
+            RtmpPacket rtmpPacket;
+            try {
+                rtmpPacket = writeQueue.take();
+            } catch (InterruptedException ex) {
+                L.w("WriteThread: Interrupted", ex);
+                continue;
+            }
             // Write all queued RTMP packets
             while (rtmpPacket != null) {
                 try {
-                    final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
-                    chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
-                    L.d("WriteThread: writing packet: " + rtmpPacket);
-                    rtmpPacket.writeTo(out, rtmpSessionInfo.getChunkSize(), chunkStreamInfo);
-                    System.out.println("writethread wrote packet: "+rtmpPacket+", size: "+rtmpPacket.getHeader().getPacketLength());
-                    if (rtmpPacket instanceof Command) {
-                        rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+                    if (!WriteQueue.isControlPacket(rtmpPacket)) {
+                        awaitSendWindow();
                     }
+                    writePacket(rtmpPacket);
                 } catch (IOException ex) {
                     L.e("WriteThread: Caught IOException during write loop, shutting down", ex);
                     active = false;
@@ -56,15 +59,6 @@ public class WriteThread extends Thread {
             } catch (IOException ex) {
                 L.e("WriteThread: Caught IOException while flushing stream, shutting down", ex);
                 active = false;
-                continue;
-            }
-            // Wait for next command
-            synchronized (lock) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException ex) {
-                    L.w("WriteThread: Interrupted", ex);
-                }
             }
         }
         // Close outputstream
@@ -75,31 +69,65 @@ public class WriteThread extends Thread {
         }
         L.d("WriteThread: exiting");
         if (threadController != null) {
-            threadController.threadHasExited(this);
+            threadController.threadHasExited(Thread.currentThread());
+        }
+    }
+
+    private void writePacket(RtmpPacket rtmpPacket) throws IOException {
+        final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
+        L.d("WriteThread: writing packet: " + rtmpPacket);
+        chunkEncoder.reset();
+        chunkEncoder.encode(rtmpPacket, chunkStreamInfo);
+        chunkEncoder.write(out);
+        if (rtmpPacket instanceof Command) {
+            rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
         }
     }
 
-    /** Transmit the specified RTMP packet (thread-safe) */
-    public void send(RtmpPacket rtmpPacket) {
-        writeQueue.add(rtmpPacket);
-        synchronized (lock) {
-            lock.notify();
+    /**
+     * Holds back sending while the peer bandwidth is used up; queued protocol
+     * control messages (e.g. our own acknowledgements) are written first, and
+     * everything written so far is flushed so that the peer can acknowledge it
+     */
+    private void awaitSendWindow() throws IOException {
+        if (rtmpSessionInfo.isSendWindowOpen()) {
+            return;
+        }
+        RtmpPacket controlPacket = writeQueue.pollControl();
+        while (controlPacket != null) {
+            writePacket(controlPacket);
+            controlPacket = writeQueue.pollControl();
+        }
+        out.flush();
+        L.d("WriteThread: peer bandwidth reached, waiting for acknowledgement");
+        try {
+            if (!rtmpSessionInfo.awaitSendWindow(RtmpSessionInfo.SEND_WINDOW_TIMEOUT_MS)) {
+                L.w("WriteThread: no acknowledgement received from peer within " + RtmpSessionInfo.SEND_WINDOW_TIMEOUT_MS + "ms; sending anyway");
+            }
+        } catch (InterruptedException ex) {
+            L.w("WriteThread: Interrupted while waiting for acknowledgement", ex);
         }
     }
-    
-    /** Transmit the specified RTMP packet (thread-safe) */
-    public void send(RtmpPacket... rtmpPackets) {                
-        writeQueue.addAll(Arrays.asList(rtmpPackets));
-        synchronized (lock) {
-            lock.notify();
+
+    /** Transmit the specified (connection-internal) RTMP packets, without blocking (thread-safe) */
+    public void send(RtmpPacket... rtmpPackets) {
+        for (RtmpPacket rtmpPacket : rtmpPackets) {
+            writeQueue.offer(rtmpPacket, false);
         }
     }
 
+    /**
+     * Transmit the specified packet published by the application, applying
+     * the write queue's overflow policy (thread-safe)
+     */
+    public void sendPublished(RtmpPacket rtmpPacket) throws IllegalStateException {
+        writeQueue.offer(rtmpPacket, true);
+    }
+
     public void shutdown() {
         L.d("WriteThread: Stopping write thread...");
         active = false;
-        synchronized (lock) {
-            lock.notify();
-        }
+        writeQueue.close();
+        rtmpSessionInfo.releaseSendWindow();
     }
 }
@@ -0,0 +1,135 @@
+package com.github.faucamp.simplertmp.io.packets;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import com.github.faucamp.simplertmp.util.L;
+
+/**
+ * Aggregate message: a batch of audio/video/data sub-messages, each with its
+ * own (FLV tag-like) header:
+ * (1 byte) message type
+ * (3 bytes) payload length
+ * (3 bytes + 1 byte) timestamp (lower 24 bits, then upper 8 bits)
+ * (3 bytes) message stream ID
+ * (payload length bytes) payload
+ * (4 bytes) back pointer: size of the sub-message header and payload
+ * 
+ * Audio/video sub-messages are slices of the aggregate's payload, without
+ * copying; each retains a reference to a pooled payload, and must be
+ * released as usual.
+ * 
+ * @author francois
+ */
+public class Aggregate extends ContentData {
+
+    private static final int SUB_MESSAGE_HEADER_SIZE = 11;
+    private static final int BACK_POINTER_SIZE = 4;
+
+    public Aggregate(RtmpHeader header) {
+        super(header);
+    }
+
+    /**
+     * Splits this aggregate into its sub-messages. The sub-messages are sent
+     * on the aggregate's chunk and message stream; their timestamps are
+     * rebased so that the first sub-message has the aggregate's timestamp.
+     * Sub-messages of types other than audio, video and data are skipped.
+     * 
+     * @throws IOException if a sub-message extends past the end of the
+     * aggregate, or a data sub-message could not be decoded
+     */
+    public List<RtmpPacket> getMessages() throws IOException {
+        final int length = getDataLength();
+        List<RtmpPacket> messages = new ArrayList<RtmpPacket>();
+        int firstTimestamp = 0;
+        int pos = 0;
+        try {
+            while (pos + SUB_MESSAGE_HEADER_SIZE <= length) {
+                final byte messageTypeId = getDataByte(pos);
+                final int payloadLength = getUnsignedInt24(pos + 1);
+                final int timestamp = getUnsignedInt24(pos + 4) | ((getDataByte(pos + 7) & 0xff) << 24);
+                final int payloadStart = pos + SUB_MESSAGE_HEADER_SIZE;
+                if (payloadStart + payloadLength > length) {
+                    throw new IOException("Aggregate sub-message extends past end of aggregate message (" + (payloadStart + payloadLength) + " > " + length + ")");
+                }
+                if (pos == 0) {
+                    firstTimestamp = timestamp;
+                }
+                RtmpPacket message = createMessage(messageTypeId, payloadStart, payloadLength);
+                if (message != null) {
+                    message.getHeader().setChunkStreamId(header.getChunkStreamId());
+                    message.getHeader().setMessageStreamId(header.getMessageStreamId());
+                    message.getHeader().setAbsoluteTimestamp(header.getAbsoluteTimestamp() + (timestamp - firstTimestamp));
+                    messages.add(message);
+                }
+                // The back pointer is absent in some implementations' last sub-message
+                pos = Math.min(payloadStart + payloadLength + BACK_POINTER_SIZE, length);
+            }
+        } catch (IOException ex) {
+            releaseAll(messages);
+            throw ex;
+        }
+        return messages;
+    }
+
+    private RtmpPacket createMessage(byte messageTypeId, int offset, int length) throws IOException {
+        final RtmpHeader.MessageType messageType;
+        try {
+            messageType = RtmpHeader.MessageType.valueOf(messageTypeId);
+        } catch (IllegalArgumentException ex) {
+            L.w("Aggregate: Skipping sub-message of unknown type: " + messageTypeId);
+            return null;
+        }
+        RtmpHeader messageHeader = new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, header.getChunkStreamId(), messageType);
+        messageHeader.setPacketLength(length);
+        switch (messageType) {
+            case AUDIO:
+            case VIDEO: {
+                ContentData contentData = (messageType == RtmpHeader.MessageType.AUDIO) ? new Audio(messageHeader) : new Video(messageHeader);
+                contentData.setData(this, offset, length);
+                return contentData;
+            }
+            case DATA_AMF0:
+            case DATA_AMF3: {
+                // Data is decoded into objects, so the payload is copied (in bulk) rather than sliced
+                byte[] body = new byte[length];
+                ByteBuffer payload = getDataBuffer();
+                payload.position(offset);
+                payload.get(body);
+                Data data = new Data(messageHeader);
+                try {
+                    data.readBody(new ByteArrayInputStream(body));
+                } catch (IOException ex) {
+                    // As in RtmpDecoder, undecodable data only loses this sub-message
+                    L.w("Aggregate: Skipping " + messageType + " sub-message that could not be decoded", ex);
+                    return null;
+                }
+                return data;
+            }
+            default:
+                L.w("Aggregate: Skipping sub-message of unimplemented type: " + messageType);
+                return null;
+        }
+    }
+
+    /** Releases the payloads of the specified sub-messages */
+    private static void releaseAll(List<RtmpPacket> messages) {
+        for (RtmpPacket message : messages) {
+            if (message instanceof ContentData) {
+                ((ContentData) message).release();
+            }
+        }
+    }
+
+    private int getUnsignedInt24(int index) {
+        return ((getDataByte(index) & 0xff) << 16) | ((getDataByte(index + 1) & 0xff) << 8) | (getDataByte(index + 2) & 0xff);
+    }
+
+    @Override
+    public String toString() {
+        return "RTMP Aggregate (length: " + getDataLength() + ")";
+    }
+}
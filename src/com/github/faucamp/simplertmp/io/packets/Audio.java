@@ -1,5 +1,7 @@
 package com.github.faucamp.simplertmp.io.packets;
 
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
 /**
  * Audio data packet
  *  
@@ -10,4 +12,11 @@ public class Audio extends ContentData {
     public Audio(RtmpHeader header) {
         super(header);
     }
+
+    /** Creates a packet for publishing on the specified message stream */
+    public Audio(int messageStreamId, int timestamp) {
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_AUDIO_CHANNEL, RtmpHeader.MessageType.AUDIO));
+        header.setMessageStreamId(messageStreamId);
+        header.setAbsoluteTimestamp(timestamp);
+    }
 }
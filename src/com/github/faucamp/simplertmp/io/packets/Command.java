@@ -10,6 +10,7 @@ import com.github.faucamp.simplertmp.amf.AmfDecoder;
 import com.github.faucamp.simplertmp.amf.AmfNull;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.amf.AmfWriter;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 import com.github.faucamp.simplertmp.util.L;
 
@@ -62,17 +63,18 @@ public class Command extends VariableBodyRtmpPacket {
 
     @Override
     public void readBody(InputStream in) throws IOException {
+        int bytesRead = readFormatSelector(in);
         // The command name and transaction ID are always present (AMF string followed by number)
         commandName = AmfString.readStringFrom(in, false);
         transactionId = (int) AmfNumber.readNumberFrom(in);        
-        int bytesRead = AmfString.sizeOf(commandName, false) + AmfNumber.SIZE;
+        bytesRead += AmfString.sizeOf(commandName, false) + AmfNumber.SIZE;
         readVariableData(in, bytesRead);
     }
 
     @Override
     protected void writeBody(OutputStream out) throws IOException {
-        AmfString.writeStringTo(out, commandName, false);
-        AmfNumber.writeNumberTo(out, transactionId);
+        writeFormatSelector(out);
+        AmfWriter.forStream(out).string(commandName).number(transactionId);
         // Write body data
         writeVariableData(out);
     }
@@ -3,33 +3,121 @@ package com.github.faucamp.simplertmp.io.packets;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.io.PooledBuffer;
 
 /**
  * Content (audio/video) data packet base
+ * 
+ * The payload may be leased from a BufferPool; in that case it is returned to
+ * the pool by <code>release()</code>. Writers that keep hold of a packet after
+ * <code>RtmpStreamWriter.write()</code> returns must <code>retain()</code> it,
+ * and release it when done.
  *  
  * @author francois
  */
 public abstract class ContentData extends RtmpPacket {
 
-    protected byte[] data;
+    /** Payload; position is always 0, and the limit is the payload length */
+    private ByteBuffer data;
+    /** The pooled buffer backing the payload, or <code>null</code> if it is not pooled */
+    private PooledBuffer pooledBuffer;
 
     public ContentData(RtmpHeader header) {
         super(header);
     }
 
+    /**
+     * @return the payload as a byte array; for pooled payloads this is a copy,
+     * so prefer <code>getDataLength()</code>, <code>getDataByte()</code> and
+     * <code>writeBody()</code> where possible
+     */
     public byte[] getData() {
-        return data;
+        if (data == null) {
+            return null;
+        }
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.limit()) {
+            return data.array();
+        }
+        byte[] copy = new byte[data.limit()];
+        data.duplicate().get(copy);
+        return copy;
     }
 
     public void setData(byte[] data) {
-        this.data = data;
+        setData(ByteBuffer.wrap(data));
+    }
+
+    /** Sets the payload to the remaining bytes of the specified buffer */
+    public void setData(ByteBuffer data) {
+        releasePooledBuffer();
+        this.data = data.slice();
+    }
+
+    /**
+     * Sets the payload to the (flipped) contents of a pooled buffer; this
+     * packet takes over the caller's reference to it
+     */
+    public void setData(PooledBuffer pooledBuffer) {
+        releasePooledBuffer();
+        this.pooledBuffer = pooledBuffer;
+        this.data = pooledBuffer.getBuffer();
+    }
+
+    /**
+     * Sets the payload to a region of another packet's payload, without
+     * copying; if that payload is pooled, this packet retains a reference to it
+     */
+    public void setData(ContentData source, int offset, int length) {
+        releasePooledBuffer();
+        ByteBuffer region = source.data.duplicate();
+        region.limit(offset + length).position(offset);
+        this.data = region.slice();
+        if (source.pooledBuffer != null) {
+            this.pooledBuffer = source.pooledBuffer.retain();
+        }
+    }
+
+    /** @return a read-only view of the payload, positioned at its start */
+    public ByteBuffer getDataBuffer() {
+        return data.asReadOnlyBuffer();
+    }
+
+    public int getDataLength() {
+        return data.limit();
+    }
+
+    public byte getDataByte(int index) {
+        return data.get(index);
+    }
+
+    /** Increments the reference count of a pooled payload; this is a no-op for unpooled payloads */
+    public void retain() {
+        if (pooledBuffer != null) {
+            pooledBuffer.retain();
+        }
+    }
+
+    /** Decrements the reference count of a pooled payload; this is a no-op for unpooled payloads */
+    public void release() {
+        if (pooledBuffer != null) {
+            pooledBuffer.release();
+        }
+    }
+
+    private void releasePooledBuffer() {
+        if (pooledBuffer != null) {
+            pooledBuffer.release();
+            pooledBuffer = null;
+        }
     }
 
     @Override
     public void readBody(InputStream in) throws IOException {
-        data = new byte[this.header.getPacketLength()];
-        Util.readBytesUntilFull(in, data);
+        byte[] bytes = new byte[this.header.getPacketLength()];
+        Util.readBytesUntilFull(in, bytes);
+        setData(bytes);
     }
 
     /**
@@ -39,6 +127,24 @@ public abstract class ContentData extends RtmpPacket {
      */
     @Override
     public void writeBody(OutputStream out) throws IOException {
-        out.write(data);
+        writeBody(out, 0);
+    }
+
+    /** Writes the payload, starting at the specified offset, to the specified stream */
+    public void writeBody(OutputStream out, int offset) throws IOException {
+        final int length = data.limit() - offset;
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + offset, length);
+        } else {
+            // Direct buffer; copy via a small intermediate array
+            ByteBuffer source = data.duplicate();
+            source.position(offset);
+            byte[] bytes = new byte[Math.min(length, 4096)];
+            while (source.hasRemaining()) {
+                final int count = Math.min(bytes.length, source.remaining());
+                source.get(bytes, 0, count);
+                out.write(bytes, 0, count);
+            }
+        }
     }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.amf.AmfWriter;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 
 /**
@@ -40,9 +41,10 @@ public class Data extends VariableBodyRtmpPacket {
 
     @Override
     public void readBody(InputStream in) throws IOException {
+        int bytesRead = readFormatSelector(in);
         // Read notification type
         type = AmfString.readStringFrom(in, false);
-        int bytesRead = AmfString.sizeOf(type, false);
+        bytesRead += AmfString.sizeOf(type, false);
         // Read data body
         readVariableData(in, bytesRead);
     }
@@ -53,7 +55,8 @@ public class Data extends VariableBodyRtmpPacket {
      */
     @Override
     public void writeBody(OutputStream out) throws IOException {
-        AmfString.writeStringTo(out, type, false);
+        writeFormatSelector(out);
+        AmfWriter.forStream(out).string(type);
         writeVariableData(out);
     }
 }
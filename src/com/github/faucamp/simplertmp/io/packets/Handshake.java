@@ -1,10 +1,10 @@
 package com.github.faucamp.simplertmp.io.packets;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import com.github.faucamp.simplertmp.Crypto;
 import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.util.L;
@@ -15,17 +15,21 @@ import com.github.faucamp.simplertmp.util.L;
  * Thanks to http://thompsonng.blogspot.com/2010/11/rtmp-part-10-handshake.html for some very useful information on
  * the the hidden "features" of the RTMP handshake
  * 
+ * C1, S1 and S2 are built and checked in place in a single buffer; the
+ * digests in S1 and S2 are validated if the server uses the digest-based
+ * (Flash Player 9+) handshake.
+ * 
  * @author francois
  */
 public final class Handshake {
 
-    /** S1 as sent by the server */
-    private byte[] s1;
     private static final int PROTOCOL_VERSION = 0x03;
     private static final int HANDSHAKE_SIZE = 1536;
-    private static final int SHA256_DIGEST_SIZE = 32;
+    private static final int SHA256_DIGEST_SIZE = Crypto.SHA256_DIGEST_SIZE;
     
     private static final int DIGEST_OFFSET_INDICATOR_POS = 772; // should either be byte 772 or byte 8
+    /** Position of the digest offset indicator in the other ("scheme 0") digest layout */
+    private static final int SCHEME0_DIGEST_OFFSET_INDICATOR_POS = 8;
     
     private static final byte[] GENUINE_FP_KEY = {
         (byte) 0x47, (byte) 0x65, (byte) 0x6E, (byte) 0x75, (byte) 0x69, (byte) 0x6E, (byte) 0x65, (byte) 0x20,
@@ -37,6 +41,37 @@ public final class Handshake {
         (byte) 0x6E, (byte) 0xEC, (byte) 0x5D, (byte) 0x2D, (byte) 0x29, (byte) 0x80, (byte) 0x6F, (byte) 0xAB,
         (byte) 0x93, (byte) 0xB8, (byte) 0xE6, (byte) 0x36, (byte) 0xCF, (byte) 0xEB, (byte) 0x31, (byte) 0xAE};
 
+    /** "Genuine Adobe Flash Media Server 001", followed by the same 32 bytes as the Flash Player key */
+    private static final byte[] GENUINE_FMS_KEY = {
+        (byte) 0x47, (byte) 0x65, (byte) 0x6E, (byte) 0x75, (byte) 0x69, (byte) 0x6E, (byte) 0x65, (byte) 0x20,
+        (byte) 0x41, (byte) 0x64, (byte) 0x6F, (byte) 0x62, (byte) 0x65, (byte) 0x20, (byte) 0x46, (byte) 0x6C,
+        (byte) 0x61, (byte) 0x73, (byte) 0x68, (byte) 0x20, (byte) 0x4D, (byte) 0x65, (byte) 0x64, (byte) 0x69,
+        (byte) 0x61, (byte) 0x20, (byte) 0x53, (byte) 0x65, (byte) 0x72, (byte) 0x76, (byte) 0x65, (byte) 0x72,
+        (byte) 0x20, (byte) 0x30, (byte) 0x30, (byte) 0x31, // Genuine Adobe Flash Media Server 001
+        (byte) 0xF0, (byte) 0xEE, (byte) 0xC2, (byte) 0x4A, (byte) 0x80, (byte) 0x68, (byte) 0xBE, (byte) 0xE8,
+        (byte) 0x2E, (byte) 0x00, (byte) 0xD0, (byte) 0xD1, (byte) 0x02, (byte) 0x9E, (byte) 0x7E, (byte) 0x57,
+        (byte) 0x6E, (byte) 0xEC, (byte) 0x5D, (byte) 0x2D, (byte) 0x29, (byte) 0x80, (byte) 0x6F, (byte) 0xAB,
+        (byte) 0x93, (byte) 0xB8, (byte) 0xE6, (byte) 0x36, (byte) 0xCF, (byte) 0xEB, (byte) 0x31, (byte) 0xAE};
+    /** Length of the text part of the Flash Player key, which is used for the C1 digest */
+    private static final int GENUINE_FP_KEY_TEXT_LENGTH = 30;
+    /** Length of the text part of the Flash Media Server key, which is used for the S1 digest */
+    private static final int GENUINE_FMS_KEY_TEXT_LENGTH = 36;
+    /** The keys used by every handshake; their Macs are only initialized once per thread */
+    private static final Crypto.HmacKey C1_DIGEST_KEY = new Crypto.HmacKey(GENUINE_FP_KEY, GENUINE_FP_KEY_TEXT_LENGTH);
+    private static final Crypto.HmacKey S1_DIGEST_KEY = new Crypto.HmacKey(GENUINE_FMS_KEY, GENUINE_FMS_KEY_TEXT_LENGTH);
+    private static final Crypto.HmacKey S2_KEY_DIGEST_KEY = new Crypto.HmacKey(GENUINE_FMS_KEY, GENUINE_FMS_KEY.length);
+
+    /** Offsets of C1, S1 and S2 in the handshake buffer */
+    private static final int C1_OFFSET = 0;
+    private static final int S1_OFFSET = HANDSHAKE_SIZE;
+    private static final int S2_OFFSET = 2 * HANDSHAKE_SIZE;
+    /** C1 as sent, followed by S1 and S2 as received from the server */
+    private final byte[] buffer = new byte[3 * HANDSHAKE_SIZE];
+    /** Position of the digest in C1; -1 if C1 has not been written */
+    private int c1DigestPos = -1;
+    private boolean s1Read = false;
+    private final Crypto crypto = new Crypto();
+
     /** Generates and writes the first handshake packet (C0) */
     public final void writeC0(OutputStream out) throws IOException {
         L.d("writeC0");
@@ -58,180 +93,129 @@ public final class Handshake {
     /** Generates and writes the second handshake packet (C1) */
     public final void writeC1(OutputStream out) throws IOException {
         L.d("writeC1");
-//        Util.writeUnsignedInt32(out, (int) (System.currentTimeMillis() / 1000)); // Bytes 0 - 3 bytes: current epoch (timestamp)
-        //out.write(new byte[]{0x09, 0x00, 0x7c, 0x02}); // Bytes 4 - 7: Flash player version: 9.0.124.2
-
-//        out.write(new byte[]{(byte) 0x80, 0x00, 0x07, 0x02}); // Bytes 4 - 7: Flash player version: 11.2.202.233
-
-
-        L.d("writeC1(): Calculating digest offset");
-        Random random = new Random();
+        final Random random = ThreadLocalRandom.current();
         // Since we are faking a real Flash Player handshake, include a digest in C1        
         // Choose digest offset point (scheme 1; that is, offset is indicated by bytes 772 - 775 (4 bytes) )
-        final int digestOffset = random.nextInt(HANDSHAKE_SIZE - DIGEST_OFFSET_INDICATOR_POS - 4 - 8 - SHA256_DIGEST_SIZE); //random.nextInt(DIGEST_OFFSET_INDICATOR_POS - SHA256_DIGEST_SIZE);
-
-        final int absoluteDigestOffset = ((digestOffset % 728) + DIGEST_OFFSET_INDICATOR_POS + 4);
-        L.d("writeC1(): (real value of) digestOffset: " + digestOffset);
-        
-        
-        L.d("writeC1(): recalculated digestOffset: " + absoluteDigestOffset);
+        final int digestOffset = random.nextInt(HANDSHAKE_SIZE - DIGEST_OFFSET_INDICATOR_POS - 4 - 8 - SHA256_DIGEST_SIZE);
+        c1DigestPos = C1_OFFSET + (digestOffset % 728) + DIGEST_OFFSET_INDICATOR_POS + 4; // Thanks to librtmp for the mod 728
+        if (L.isDebugEnabled()) {
+            L.d("writeC1(): digestOffset: " + digestOffset + ", digest position: " + c1DigestPos);
+        }
 
+        fillRandom(random, buffer, C1_OFFSET + 8, HANDSHAKE_SIZE - 8);
+        // Bytes 0 - 3: current epoch timestamp
+        final int timestamp = (int) (System.currentTimeMillis() / 1000);
+        buffer[C1_OFFSET] = (byte) (timestamp >>> 24);
+        buffer[C1_OFFSET + 1] = (byte) (timestamp >>> 16);
+        buffer[C1_OFFSET + 2] = (byte) (timestamp >>> 8);
+        buffer[C1_OFFSET + 3] = (byte) timestamp;
+        // Bytes 4 - 7: Flash player version: 11.2.202.233
+        buffer[C1_OFFSET + 4] = (byte) 0x80;
+        buffer[C1_OFFSET + 5] = 0x00;
+        buffer[C1_OFFSET + 6] = 0x07;
+        buffer[C1_OFFSET + 7] = 0x02;
+
+        // The digest offset is the sum of the 4 offset indicator bytes
         int remaining = digestOffset;
-        final byte[] digestOffsetBytes = new byte[4];
-        for (int i = 3; i >= 0; i--) {            
-            if (remaining > 255) {
-                digestOffsetBytes[i] = (byte)255;
-                remaining -= 255;
-            } else {
-                digestOffsetBytes[i] = (byte)remaining;
-                remaining -= remaining;
-            }
-        }
-        
-        
-        
-        
-        // Calculate the offset value that will be written
-        //inal byte[] digestOffsetBytes = Util.unsignedInt32ToByteArray(digestOffset);// //((digestOffset - DIGEST_OFFSET_INDICATOR_POS) % 728)); // Thanks to librtmp for the mod 728                
-        L.d("writeC1(): digestOffsetBytes: " + Util.toHexString(digestOffsetBytes));  //Util.unsignedInt32ToByteArray((digestOffset % 728))));
-
-        // Create random bytes up to the digest offset point
-        byte[] partBeforeDigest = new byte[absoluteDigestOffset];
-        L.d("partBeforeDigest(): size: " + partBeforeDigest.length);
-        random.nextBytes(partBeforeDigest);
-
-        L.d("writeC1(): Writing timestamp and Flash Player version");
-        byte[] timeStamp = Util.unsignedInt32ToByteArray((int) (System.currentTimeMillis() / 1000));
-        System.arraycopy(timeStamp, 0, partBeforeDigest, 0, 4); // Bytes 0 - 3 bytes: current epoch timestamp
-        System.arraycopy(new byte[]{(byte) 0x80, 0x00, 0x07, 0x02}, 0, partBeforeDigest, 4, 4); // Bytes 4 - 7: Flash player version: 11.2.202.233
-
-        // Create random bytes for the part after the digest
-        byte[] partAfterDigest = new byte[HANDSHAKE_SIZE - absoluteDigestOffset - SHA256_DIGEST_SIZE]; // subtract 8 because of initial 8 bytes already written
-        L.d("partAfterDigest(): size: " + partAfterDigest.length);
-        random.nextBytes(partAfterDigest);
-
-
-        // Set the offset byte
-//        if (digestOffset > 772) {                      
-            L.d("copying digest offset bytes in partBeforeDigest");
-            System.arraycopy(digestOffsetBytes, 0, partBeforeDigest, 772, 4);          
-//        } else {
-        // Implied offset of partAfterDigest is digestOffset + 32
-///        L.d("copying digest offset bytes in partAfterDigest");
-///        L.d(" writing to location: " + (DIGEST_OFFSET_INDICATOR_POS - digestOffset - SHA256_DIGEST_SIZE - 8));
-//        System.arraycopy(digestOffsetBytes, 0, partAfterDigest, (DIGEST_OFFSET_INDICATOR_POS - digestOffset - SHA256_DIGEST_SIZE - 8), 4);
-//        }
-
-        L.d("writeC1(): Calculating digest");
-        byte[] tempBuffer = new byte[HANDSHAKE_SIZE - SHA256_DIGEST_SIZE];
-        System.arraycopy(partBeforeDigest, 0, tempBuffer, 0, partBeforeDigest.length);
-        System.arraycopy(partAfterDigest, 0, tempBuffer, partBeforeDigest.length, partAfterDigest.length);
-        
-       // L.d("temp: "+Util.toHexString(tempBuffer));
-        
-        Crypto crypto = new Crypto();
-        byte[] digest = crypto.calculateHmacSHA256(tempBuffer, GENUINE_FP_KEY, 30);
-        
-        tempBuffer = null;
-        if (L.isDebugEnabled()) {
-            L.d("writeC1(): Digest: " + Util.toHexString(digest));
+        for (int i = 3; i >= 0; i--) {
+            final int indicatorByte = Math.min(remaining, 255);
+            buffer[C1_OFFSET + DIGEST_OFFSET_INDICATOR_POS + i] = (byte) indicatorByte;
+            remaining -= indicatorByte;
         }
 
-        // Now write the packet
+        // Calculate the digest of everything else, straight into its place in C1
+        crypto.calculateHmacSHA256(C1_DIGEST_KEY, buffer, C1_OFFSET, HANDSHAKE_SIZE, c1DigestPos, SHA256_DIGEST_SIZE, buffer, c1DigestPos);
+
         L.d("writeC1(): writing C1 packet");
-        out.write(partBeforeDigest);
-        out.write(digest);
-        out.write(partAfterDigest);
+        out.write(buffer, C1_OFFSET, HANDSHAKE_SIZE);
     }
 
     public final void readS1(InputStream in) throws IOException {
-        // S1 == 1536 bytes. We do not bother with checking the content of it
         L.d("readS1");
-        s1 = new byte[HANDSHAKE_SIZE];
-
-        // Read server time (4 bytes)
-        int totalBytesRead = 0;
-        int read;
-        do {
-            read = in.read(s1, totalBytesRead, (HANDSHAKE_SIZE - totalBytesRead));
-            if (read != -1) {
-                totalBytesRead += read;
-            }
-        } while (totalBytesRead < HANDSHAKE_SIZE);
-
-        if (totalBytesRead != HANDSHAKE_SIZE) {
-            throw new IOException("Unexpected EOF while reading S1, expected " + HANDSHAKE_SIZE + " bytes, but only read " + totalBytesRead + " bytes");
+        Util.readBytesUntilFull(in, buffer, S1_OFFSET, HANDSHAKE_SIZE);
+        s1Read = true;
+        if (isSimpleHandshake()) {
+            L.d("readS1(): server uses simple handshake; no digest to validate");
+        } else if (findDigest(S1_OFFSET, S1_DIGEST_KEY) == -1) {
+            throw new IOException("Invalid S1 digest");
         } else {
-            L.d("readS1(): S1 total bytes read OK");
+            L.d("readS1(): S1 digest OK");
         }
     }
 
     /** Generates and writes the third handshake packet (C2) */
     public final void writeC2(OutputStream out) throws IOException {
-        L.d("readC2");
+        L.d("writeC2");
         // C2 is an echo of S1
-        if (s1 == null) {
+        if (!s1Read) {
             throw new IllegalStateException("C2 cannot be written without S1 being read first");
         }
-        out.write(s1);
+        out.write(buffer, S1_OFFSET, HANDSHAKE_SIZE);
     }
 
     public final void readS2(InputStream in) throws IOException {
-        // S2 should be an echo of C1, but we are not too strict
         L.d("readS2");
-        byte[] sr_serverTime = new byte[4];
-        byte[] s2_serverVersion = new byte[4];
-        byte[] s2_rest = new byte[HANDSHAKE_SIZE - 8]; // subtract 4+4 bytes for time and version
-
-        // Read server time (4 bytes)
-        int totalBytesRead = 0;
-        int read;
-        do {
-            read = in.read(sr_serverTime, totalBytesRead, (4 - totalBytesRead));
-            if (read == -1) {
-                // End of stream reached - should not have happened at this point
-                throw new IOException("Unexpected EOF while reading S2 bytes 0-3");
-            } else {
-                totalBytesRead += read;
-            }
-        } while (totalBytesRead < 4);
-
+        Util.readBytesUntilFull(in, buffer, S2_OFFSET, HANDSHAKE_SIZE);
         if (L.isDebugEnabled()) {
-            L.d("readS2(): Server time: " + Util.toHexString(sr_serverTime));
+            L.d("readS2(): Server time: " + Util.toHexString(buffer, S2_OFFSET, 4) + ", server version: " + Util.toHexString(buffer, S2_OFFSET + 4, 4));
+        }
+        if (isSimpleHandshake() || c1DigestPos == -1) {
+            return; // S2 should be an echo of C1, but we are not too strict
         }
+        // S2 is either an echo of C1's random bytes, or ends with a digest keyed with a hash of C1's digest
+        if (regionsEqual(buffer, C1_OFFSET + 8, S2_OFFSET + 8, HANDSHAKE_SIZE - 8)) {
+            L.d("readS2(): S2 echoes C1");
+            return;
+        }
+        // The S2 key differs per handshake, so only this Mac is initialized per use
+        final byte[] s2Key = new byte[SHA256_DIGEST_SIZE];
+        crypto.calculateHmacSHA256(S2_KEY_DIGEST_KEY, buffer, c1DigestPos, SHA256_DIGEST_SIZE, c1DigestPos + SHA256_DIGEST_SIZE, 0, s2Key, 0);
+        if (!crypto.verifyHmacSHA256(s2Key, s2Key.length, buffer, S2_OFFSET, HANDSHAKE_SIZE, S2_OFFSET + HANDSHAKE_SIZE - SHA256_DIGEST_SIZE)) {
+            throw new IOException("Invalid S2 digest");
+        }
+        L.d("readS2(): S2 digest OK");
+    }
 
-        // Read server version (4 bytes)
-        totalBytesRead = 0;
-        do {
-            read = in.read(s2_serverVersion, totalBytesRead, (4 - totalBytesRead));
-            if (read == -1) {
-                // End of stream reached - should not have happened at this point
-                throw new IOException("Unexpected EOF while reading S2 bytes 4-7");
-            } else {
-                totalBytesRead += read;
-            }
-        } while (totalBytesRead < 4);
+    /** @return <code>true</code> if the server version in S1 is 0, i.e. the server does not use digests */
+    private boolean isSimpleHandshake() {
+        return buffer[S1_OFFSET + 4] == 0 && buffer[S1_OFFSET + 5] == 0 && buffer[S1_OFFSET + 6] == 0 && buffer[S1_OFFSET + 7] == 0;
+    }
 
-        if (L.isDebugEnabled()) {
-            L.d("readS2(): Server version: " + Util.toHexString(s2_serverVersion));
+    /**
+     * Locates and validates the digest of the handshake packet at the specified
+     * offset, trying both digest layouts
+     * 
+     * @return the position of the valid digest, or -1 if there is none
+     */
+    private int findDigest(int packetOffset, Crypto.HmacKey key) {
+        for (int indicatorPos : new int[]{DIGEST_OFFSET_INDICATOR_POS, SCHEME0_DIGEST_OFFSET_INDICATOR_POS}) {
+            final int indicator = packetOffset + indicatorPos;
+            final int offset = (buffer[indicator] & 0xff) + (buffer[indicator + 1] & 0xff) + (buffer[indicator + 2] & 0xff) + (buffer[indicator + 3] & 0xff);
+            final int digestPos = indicator + 4 + (offset % 728);
+            if (crypto.verifyHmacSHA256(key, buffer, packetOffset, HANDSHAKE_SIZE, digestPos)) {
+                return digestPos;
+            }
         }
+        return -1;
+    }
 
-        // Read 1528 bytes (to make up S1 total size of 1536 bytes)
-        final int remainingBytes = HANDSHAKE_SIZE - 8;
-        totalBytesRead = 0;
-        do {
-            read = in.read(s2_rest, totalBytesRead, (remainingBytes - totalBytesRead));
-            if (read != -1) {
-                totalBytesRead += read;
+    private static void fillRandom(Random random, byte[] bytes, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            long value = random.nextLong();
+            for (int n = 0; n < 8 && i < end; n++, value >>>= 8) {
+                bytes[i++] = (byte) value;
             }
-        } while (totalBytesRead < remainingBytes && read != -1);
-
-        if (totalBytesRead != remainingBytes) {
-            throw new IOException("Unexpected EOF while reading remainder of S2, expected " + remainingBytes + " bytes, but only read " + totalBytesRead + " bytes");
-        } else {
-            L.d("readS2(): S2 total bytes read OK");
         }
+    }
 
-        // Technically we should check that S2 == C1, but for now this is ignored
+    private static boolean regionsEqual(byte[] bytes, int offset1, int offset2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset1 + i] != bytes[offset2 + i]) {
+                return false;
+            }
+        }
+        return true;
     }
 }
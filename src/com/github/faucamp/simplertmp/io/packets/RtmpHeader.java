@@ -5,14 +5,12 @@
 package com.github.faucamp.simplertmp.io.packets;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
-import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
-import com.github.faucamp.simplertmp.util.L;
 
 /**
  *
@@ -207,6 +205,10 @@ public class RtmpHeader {
             }
         }
     }
+    /** Timestamp field value indicating that the timestamp is in the 4-byte extended timestamp field */
+    public static final int EXTENDED_TIMESTAMP_MARKER = 0xFFFFFF;
+    /** Largest chunk stream ID; this needs a 3-byte basic header */
+    public static final int MAX_CHUNK_STREAM_ID = 65599;
     private ChunkType chunkType;
     private int chunkStreamId;
     private int absoluteTimestamp;
@@ -214,6 +216,8 @@ public class RtmpHeader {
     private int packetLength;
     private MessageType messageType;
     private int messageStreamId;
+    /** <code>true</code> if the chunks of the current message carry an extended timestamp (including type 3 chunks) */
+    private boolean extendedTimestamp;
 
     public RtmpHeader() {
     }
@@ -224,89 +228,94 @@ public class RtmpHeader {
         this.messageType = messageType;
     }
 
-    public static RtmpHeader readHeader(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
-        RtmpHeader rtmpHeader = new RtmpHeader();
-        rtmpHeader.readHeaderImpl(in, rtmpSessionInfo);
-        return rtmpHeader;
+    /** Copy constructor */
+    public RtmpHeader(RtmpHeader other) {
+        this.chunkType = other.chunkType;
+        this.chunkStreamId = other.chunkStreamId;
+        this.absoluteTimestamp = other.absoluteTimestamp;
+        this.timestampDelta = other.timestampDelta;
+        this.packetLength = other.packetLength;
+        this.messageType = other.messageType;
+        this.messageStreamId = other.messageStreamId;
+        this.extendedTimestamp = other.extendedTimestamp;
     }
 
-    private void readHeaderImpl(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
-
-        int basicHeaderByte = in.read();
-        L.d("readHeaderImpl(): basicHeaderByte: " + Util.toHexString((byte) basicHeaderByte));
-        if (basicHeaderByte == -1) {
-            throw new IOException("Unexpected EOF while reading RTMP packet basic header");
+    /**
+     * Parses a chunk header from the specified buffer, updating this header in place.
+     * 
+     * This header must contain the previous header received on the same chunk
+     * stream (relative chunk headers only contain the fields that changed), and the
+     * caller must ensure that the complete chunk header is available in the buffer.
+     * 
+     * @param in the buffer to read from
+     * @param messageStart <code>false</code> if this chunk continues a partially-received message
+     */
+    public void readHeader(ByteBuffer in, boolean messageStart) throws IOException {
+        final int basicHeaderByte = in.get() & 0xff;
+        chunkType = ChunkType.valueOf((byte) (basicHeaderByte >>> 6)); // 2 most significant bits define the chunk type
+        chunkStreamId = basicHeaderByte & 0x3F; // 6 least significant bits define chunk stream ID
+        if (chunkStreamId < 2) {
+            // 2- or 3-byte basic header
+            chunkStreamId = 64 + (in.get() & 0xff) + (chunkStreamId == 1 ? (in.get() & 0xff) << 8 : 0);
         }
-        // Read byte 0: chunk type and chunk stream ID        
-        parseBasicHeader((byte) basicHeaderByte);
-
         switch (chunkType) {
-            case TYPE_0_FULL: { //  b00 = 12 byte header (full header) 
-                // Read bytes 1-3: Absolute timestamp
+            case TYPE_0_FULL: //  b00 = 12 byte header (full header)
                 absoluteTimestamp = Util.readUnsignedInt24(in);
                 timestampDelta = 0;
-                // Read bytes 4-6: Packet length
                 packetLength = Util.readUnsignedInt24(in);
-                // Read byte 7: Message type ID
-                messageType = MessageType.valueOf((byte) in.read());
-                // Read bytes 8-11: Message stream ID (apparently little-endian order)
-                byte[] messageStreamIdBytes = new byte[4];
-                Util.readBytesUntilFull(in, messageStreamIdBytes);
-                messageStreamId = Util.toUnsignedInt32LittleEndian(messageStreamIdBytes);
+                messageType = MessageType.valueOf(in.get());
+                messageStreamId = Util.readUnsignedInt32LittleEndian(in);
+                extendedTimestamp = (absoluteTimestamp == EXTENDED_TIMESTAMP_MARKER);
+                if (extendedTimestamp) {
+                    absoluteTimestamp = in.getInt();
+                }
                 break;
-            }
-            case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message stream ID (4 last bytes)
-                // Read bytes 1-3: Timestamp delta
+            case TYPE_1_RELATIVE_LARGE: // b01 = 8 bytes - like type 0. not including message stream ID (4 last bytes)
                 timestampDelta = Util.readUnsignedInt24(in);
-                // Read bytes 4-6: Packet length
                 packetLength = Util.readUnsignedInt24(in);
-                // Read byte 7: Message type ID
-                messageType = MessageType.valueOf((byte) in.read());
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                try {
-                    messageStreamId = prevHeader.messageStreamId;
-                    absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
-                } catch (NullPointerException ex) {
-                    messageStreamId = 0;
-                    absoluteTimestamp = timestampDelta;
+                messageType = MessageType.valueOf(in.get());
+                extendedTimestamp = (timestampDelta == EXTENDED_TIMESTAMP_MARKER);
+                if (extendedTimestamp) {
+                    timestampDelta = in.getInt();
                 }
+                absoluteTimestamp += timestampDelta;
                 break;
-            }
-            case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
-                // Read bytes 1-3: Timestamp delta
+            case TYPE_2_RELATIVE_TIMESTAMP_ONLY: // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
                 timestampDelta = Util.readUnsignedInt24(in);
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                packetLength = prevHeader.packetLength;
-                messageType = prevHeader.messageType;
-                messageStreamId = prevHeader.messageStreamId;
-                absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
+                extendedTimestamp = (timestampDelta == EXTENDED_TIMESTAMP_MARKER);
+                if (extendedTimestamp) {
+                    timestampDelta = in.getInt();
+                }
+                absoluteTimestamp += timestampDelta;
                 break;
-            }
-            case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only 
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                timestampDelta = prevHeader.timestampDelta;
-                absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
-                packetLength = prevHeader.packetLength;
-                messageType = prevHeader.messageType;
-                messageStreamId = prevHeader.messageStreamId;
+            case TYPE_3_RELATIVE_SINGLE_BYTE: // b11 = 1 byte: basic header only
+                if (extendedTimestamp) {
+                    in.getInt(); // repeats the extended timestamp of the previous chunk
+                }
+                if (messageStart) {
+                    // Continuation chunks of a message do not advance the timestamp
+                    absoluteTimestamp += timestampDelta;
+                }
                 break;
-            }
             default:
-                L.e("readHeaderImpl(): Invalid chunk type; basic header byte was: " + Util.toHexString((byte) basicHeaderByte));
                 throw new IOException("Invalid chunk type; basic header byte was: " + Util.toHexString((byte) basicHeaderByte));
         }
     }
 
     public void writeTo(OutputStream out, final ChunkStreamInfo chunkStreamInfo) throws IOException {
-        // Write basic header byte        
-        out.write(((byte) (chunkType.getValue() << 6) | chunkStreamId));
+        // Write basic header byte(s)
+        writeBasicHeader(out, chunkType, chunkStreamId);
         switch (chunkType) {
             case TYPE_0_FULL: { //  b00 = 12 byte header (full header)
                 chunkStreamInfo.markRealAbsoluteTimestampTx();
-                Util.writeUnsignedInt24(out, absoluteTimestamp);
+                extendedTimestamp = isExtendedTimestamp(absoluteTimestamp);
+                Util.writeUnsignedInt24(out, extendedTimestamp ? EXTENDED_TIMESTAMP_MARKER : absoluteTimestamp);
                 Util.writeUnsignedInt24(out, packetLength);
                 out.write(messageType.getValue());
                 Util.writeUnsignedInt32LittleEndian(out, messageStreamId);
+                if (extendedTimestamp) {
+                    Util.writeUnsignedInt32(out, absoluteTimestamp);
+                }
                 break;
             }
             case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message ID (4 last bytes)
@@ -314,9 +323,13 @@ public class RtmpHeader {
                     timestampDelta = (int) chunkStreamInfo.markRealAbsoluteTimestampTx();
                 }
                 absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, timestampDelta);
+                extendedTimestamp = isExtendedTimestamp(timestampDelta);
+                Util.writeUnsignedInt24(out, extendedTimestamp ? EXTENDED_TIMESTAMP_MARKER : timestampDelta);
                 Util.writeUnsignedInt24(out, packetLength);
                 out.write(messageType.getValue());
+                if (extendedTimestamp) {
+                    Util.writeUnsignedInt32(out, timestampDelta);
+                }
                 break;
             }
             case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
@@ -324,7 +337,11 @@ public class RtmpHeader {
                     timestampDelta = (int) chunkStreamInfo.markRealAbsoluteTimestampTx();
                 }
                 absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, timestampDelta);
+                extendedTimestamp = isExtendedTimestamp(timestampDelta);
+                Util.writeUnsignedInt24(out, extendedTimestamp ? EXTENDED_TIMESTAMP_MARKER : timestampDelta);
+                if (extendedTimestamp) {
+                    Util.writeUnsignedInt32(out, timestampDelta);
+                }
                 break;
             }
             case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only 
@@ -332,6 +349,10 @@ public class RtmpHeader {
                     timestampDelta = (int) chunkStreamInfo.markRealAbsoluteTimestampTx();
                 }
                 absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
+                extendedTimestamp = isExtendedTimestamp(timestampDelta);
+                if (extendedTimestamp) {
+                    Util.writeUnsignedInt32(out, timestampDelta);
+                }
                 break;
             }
             default:
@@ -339,11 +360,34 @@ public class RtmpHeader {
         }
     }
 
-    private void parseBasicHeader(byte basicHeaderByte) {
-        chunkType = ChunkType.valueOf((byte) ((0xff & basicHeaderByte) >>> 6)); // 2 most significant bits define the chunk type
-        chunkStreamId = basicHeaderByte & 0x3F; // 6 least significant bits define chunk stream ID
-        L.d("parseBasicHeader(): chunkType: " + chunkType);
-        L.d("parseBasicHeader(): chunkStreamId: " + Util.toHexString((byte) chunkStreamId));
+    /**
+     * Writes a basic header: 1 byte for chunk stream IDs 2-63, 2 bytes for
+     * IDs 64-319, and 3 bytes for IDs 320-65599
+     */
+    private static void writeBasicHeader(OutputStream out, ChunkType chunkType, int chunkStreamId) throws IOException {
+        final int chunkTypeBits = chunkType.getValue() << 6;
+        if (chunkStreamId >= 2 && chunkStreamId < 64) {
+            out.write(chunkTypeBits | chunkStreamId);
+        } else if (chunkStreamId >= 64 && chunkStreamId < 320) {
+            out.write(chunkTypeBits);
+            out.write(chunkStreamId - 64);
+        } else if (chunkStreamId >= 320 && chunkStreamId <= MAX_CHUNK_STREAM_ID) {
+            out.write(chunkTypeBits | 1);
+            out.write((chunkStreamId - 64) & 0xff);
+            out.write((chunkStreamId - 64) >>> 8);
+        } else {
+            throw new IOException("Invalid chunk stream ID: " + chunkStreamId);
+        }
+    }
+
+    /** @return the size of the basic header for the specified chunk stream ID */
+    public static int getBasicHeaderSize(int chunkStreamId) {
+        return chunkStreamId < 64 ? 1 : (chunkStreamId < 320 ? 2 : 3);
+    }
+
+    /** @return <code>true</code> if the specified (unsigned) timestamp or delta does not fit the 3-byte timestamp field */
+    private static boolean isExtendedTimestamp(int timestamp) {
+        return timestamp < 0 || timestamp >= EXTENDED_TIMESTAMP_MARKER;
     }
 
     /** @return the RTMP chunk stream ID (channel ID) for this chunk */
@@ -383,6 +427,11 @@ public class RtmpHeader {
         this.timestampDelta = timestampDelta;
     }
 
+    /** @return <code>true</code> if the chunks of this header's message carry the 4-byte extended timestamp field */
+    public boolean hasExtendedTimestamp() {
+        return extendedTimestamp;
+    }
+
 //
 //    /** Get the timestamp as specified by the server */
 //    public int getTimestamp() {
@@ -421,13 +470,20 @@ public class RtmpHeader {
 //        }
 //        timestamp = 0;
 //    }
+    /**
+     * Writes the type 3 header of a continuation chunk of this header's
+     * message, including the extended timestamp if the message has one
+     */
     public void writeAggregateHeaderByte(OutputStream out) throws IOException {
         // Aggregate header 0x11 : 11.. ....
-        out.write(0xC0 | chunkStreamId);
+        writeBasicHeader(out, ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamId);
+        if (extendedTimestamp) {
+            Util.writeUnsignedInt32(out, chunkType == ChunkType.TYPE_0_FULL ? absoluteTimestamp : timestampDelta);
+        }
     }
 
     public static void writeAggregateHeaderByte(OutputStream out, int chunkStreamId) throws IOException {
         // Aggregate header 0x11 : 11.. ....
-        out.write(0xC0 | chunkStreamId);
+        writeBasicHeader(out, ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamId);
     }
 }
@@ -26,6 +26,11 @@ public abstract class RtmpPacket {
     public abstract void readBody(InputStream in) throws IOException;    
     
     protected abstract void writeBody(OutputStream out) throws IOException;
+
+    /** Writes this packet's body without chunking; used by ChunkEncoder */
+    public void writeBodyTo(OutputStream out) throws IOException {
+        writeBody(out);
+    }
            
     public void writeTo(OutputStream out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {     
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
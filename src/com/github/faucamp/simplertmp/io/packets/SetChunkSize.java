@@ -20,7 +20,7 @@ public class SetChunkSize extends RtmpPacket {
     }
 
     public SetChunkSize(int chunkSize) {
-        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE, ChunkStreamInfo.CONTROL_CHANNEL, RtmpHeader.MessageType.SET_CHUNK_SIZE));
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.CONTROL_CHANNEL, RtmpHeader.MessageType.SET_CHUNK_SIZE));
         this.chunkSize = chunkSize;
     }
 
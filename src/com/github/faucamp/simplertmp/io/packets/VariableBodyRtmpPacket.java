@@ -5,12 +5,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.amf.AmfBoolean;
 import com.github.faucamp.simplertmp.amf.AmfData;
-import com.github.faucamp.simplertmp.amf.AmfDecoder;
+import com.github.faucamp.simplertmp.amf.AmfLazyList;
 import com.github.faucamp.simplertmp.amf.AmfNull;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.amf.AmfWritable;
+import com.github.faucamp.simplertmp.amf.AmfWriter;
 import com.github.faucamp.simplertmp.util.L;
 
 /**
@@ -25,6 +28,8 @@ import com.github.faucamp.simplertmp.util.L;
 public abstract class VariableBodyRtmpPacket extends RtmpPacket {
 
     protected List<AmfData> data;
+    /** Writes the arguments straight to the output when sending; if set, this is used instead of <code>data</code> */
+    protected AmfWritable arguments;
 
     public VariableBodyRtmpPacket(RtmpHeader header) {
         super(header);
@@ -34,6 +39,15 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
         return data;
     }
 
+    /**
+     * Sets the arguments of an outgoing packet, to be encoded straight into
+     * the output when it is sent (rather than building them as AmfData
+     * objects with <code>addData()</code>)
+     */
+    public void setArguments(AmfWritable arguments) {
+        this.arguments = arguments;
+    }
+
     public void addData(String string) {
         addData(new AmfString(string));
     }
@@ -56,19 +70,54 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
         this.data.add(dataItem);
     }
 
+    /** @return <code>true</code> if this is an AMF3 message type (COMMAND_AMF3 or DATA_AMF3) */
+    protected boolean isAmf3() {
+        return header.getMessageType() == RtmpHeader.MessageType.COMMAND_AMF3 || header.getMessageType() == RtmpHeader.MessageType.DATA_AMF3;
+    }
+
+    /**
+     * Skips the format selector byte that starts the body of AMF3 messages;
+     * the body that follows is AMF0 encoded, with any AMF3 values preceded by
+     * the AMF3 switch marker
+     *
+     * @return the number of bytes read
+     */
+    protected int readFormatSelector(InputStream in) throws IOException {
+        if (!isAmf3()) {
+            return 0;
+        }
+        if (in.read() == -1) {
+            throw new IOException("Unexpected EOF reached before AMF3 format selector was read");
+        }
+        return 1;
+    }
+
+    /** Writes the format selector byte (0) that starts the body of AMF3 messages */
+    protected void writeFormatSelector(OutputStream out) throws IOException {
+        if (isAmf3()) {
+            out.write(0x00);
+        }
+    }
+
+    /**
+     * Reads the remaining AMF arguments of the packet body; these are only
+     * decoded when accessed (see AmfLazyList)
+     */
     protected void readVariableData(final InputStream in, int bytesAlreadyRead) throws IOException {
         // ...now read in arguments (if any)
         L.d("VBRP.readVariableData(): about to read data. Bytes read: " + bytesAlreadyRead + ", total: " + header.getPacketLength());
-        do {
-            AmfData dataItem = AmfDecoder.readFrom(in);
-            addData(dataItem);
-            bytesAlreadyRead += dataItem.getSize();
-        } while (bytesAlreadyRead < header.getPacketLength());
-        L.d("VBRP.readVariableData(): data is: " + data);
+        final int length = header.getPacketLength() - bytesAlreadyRead;
+        if (length > 0) {
+            byte[] encodedData = new byte[length];
+            Util.readBytesUntilFull(in, encodedData);
+            data = new AmfLazyList(encodedData, 0, length);
+        }
     }
 
     protected void writeVariableData(final OutputStream out) throws IOException {
-        if (data != null) {
+        if (arguments != null) {
+            arguments.writeTo(AmfWriter.forStream(out));
+        } else if (data != null) {
             for (AmfData dataItem : data) {
                 dataItem.writeTo(out);
             }
@@ -1,5 +1,7 @@
 package com.github.faucamp.simplertmp.io.packets;
 
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
 /**
  * Video data packet
  *  
@@ -10,4 +12,11 @@ public class Video extends ContentData {
     public Video(RtmpHeader header) {
         super(header);
     }
+
+    /** Creates a packet for publishing on the specified message stream */
+    public Video(int messageStreamId, int timestamp) {
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_VIDEO_CHANNEL, RtmpHeader.MessageType.VIDEO));
+        header.setMessageStreamId(messageStreamId);
+        header.setAbsoluteTimestamp(timestamp);
+    }
 }
@@ -46,11 +46,10 @@ public class AacWriter extends RtmpStreamWriter {
     @Override
     public void write(ContentData packet) throws IOException {
         if (packet.getHeader().getMessageType() == RtmpHeader.MessageType.AUDIO) {
-            byte[] data = packet.getData();
-            if (data.length > 0) {
-                if (!sequenceHeaderParsed && data[0] == (byte) 0xAF && data[1] == 0x00) {  // FLV audio sequence header/config frame (starts with 0xAF 0x00)           
+            if (packet.getDataLength() > 0) {
+                if (!sequenceHeaderParsed && packet.getDataByte(0) == (byte) 0xAF && packet.getDataByte(1) == 0x00) {  // FLV audio sequence header/config frame (starts with 0xAF 0x00)           
                     try {
-                        parseFlvSequenceHeader(data);
+                        parseFlvSequenceHeader(packet.getData());
                     } catch (IllegalArgumentException ex) {
                         // Not valid AAC data
                         throw new IOException(ex.getMessage());
@@ -58,7 +57,7 @@ public class AacWriter extends RtmpStreamWriter {
                     sequenceHeaderParsed = true;
                 } else { // AAC raw data (starts with 0xAF 0x01)     
                     writeAdtsFrameHeader(packet);
-                    out.write(data, 2, data.length - 2); // skip past 0xAF 0x01 FLV AAC audio tag sub-header
+                    packet.writeBody(out, 2); // skip past 0xAF 0x01 FLV AAC audio tag sub-header
                 }
             } else {
                 L.w("write(): Zero-length audio data packet found; ignoring");
@@ -0,0 +1,289 @@
+package com.github.faucamp.simplertmp.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.Data;
+import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.util.L;
+
+/**
+ * FLV file writer that never touches the disk on the calling (packet
+ * handling) thread.
+ *
+ * Tag headers are assembled in a reusable buffer, and audio/video payloads
+ * are referenced in place (pooled payloads are retained until written); the
+ * resulting batch is handed to a shared FileWriteStage, which writes it with
+ * a single gathering write. While one batch is being written, the next one is
+ * filled. If the disk falls behind by more than the maximum number of pending
+ * bytes, <code>write()</code> blocks until it catches up.
+ *
+ * Write errors are reported by the next call to <code>write()</code>.
+ *
+ * @author francois
+ */
+public class AsyncFlvWriter extends RtmpStreamWriter {
+
+    public static final long DEFAULT_MAX_PENDING_BYTES = 8 * 1024 * 1024;
+    /** Space for the tag headers and previous tag sizes of a batch */
+    private static final int HEADER_BUFFER_SIZE = 16 * 1024;
+    private static final int TAG_OVERHEAD = FlvWriter.TAG_HEADER_SIZE + 4;
+    private final FileWriteStage fileWriteStage;
+    private final FileChannel channel;
+    private final long maxPendingBytes;
+    private final Object lock = new Object();
+    /** The batch being filled; never <code>null</code> */
+    private Batch pending;
+    /** The batch being written by the write stage, or <code>null</code> */
+    private Batch inFlight;
+    /** The batch to fill next; <code>null</code> while a batch is in flight */
+    private Batch spare;
+    /** Set while a writing thread is blocked because too many bytes are pending */
+    private boolean blocked = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    /** Tags (as buffer slices) waiting to be written with a single gathering write */
+    private static final class Batch {
+
+        final ByteBuffer headers = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+        ByteBuffer[] slices = new ByteBuffer[64];
+        int sliceCount = 0;
+        final ArrayList<ContentData> retainedPackets = new ArrayList<ContentData>();
+        long bytes = 0;
+        /** Time at which the first slice was added */
+        long firstAddedNanos;
+
+        boolean isEmpty() {
+            return sliceCount == 0;
+        }
+
+        /** Adds the header bytes that were put since the specified position */
+        void addHeaders(int start) {
+            ByteBuffer slice = headers.duplicate();
+            slice.limit(headers.position());
+            slice.position(start);
+            add(slice);
+        }
+
+        void add(ByteBuffer slice) {
+            if (sliceCount == 0) {
+                firstAddedNanos = System.nanoTime();
+            }
+            if (sliceCount == slices.length) {
+                ByteBuffer[] newSlices = new ByteBuffer[slices.length * 2];
+                System.arraycopy(slices, 0, newSlices, 0, sliceCount);
+                slices = newSlices;
+            }
+            slices[sliceCount++] = slice;
+            bytes += slice.remaining();
+        }
+
+        void clear() {
+            for (ContentData packet : retainedPackets) {
+                packet.release();
+            }
+            retainedPackets.clear();
+            for (int i = 0; i < sliceCount; i++) {
+                slices[i] = null;
+            }
+            sliceCount = 0;
+            bytes = 0;
+            headers.clear();
+        }
+    }
+
+    public AsyncFlvWriter(String filename, FileWriteStage fileWriteStage) throws IOException {
+        this(filename, fileWriteStage, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param maxPendingBytes number of bytes that may be waiting to be
+     * written before <code>write()</code> blocks
+     */
+    public AsyncFlvWriter(String filename, FileWriteStage fileWriteStage, long maxPendingBytes) throws IOException {
+        this.fileWriteStage = fileWriteStage;
+        this.maxPendingBytes = maxPendingBytes;
+        this.channel = new FileOutputStream(filename).getChannel();
+        pending = new Batch();
+        spare = new Batch();
+        FlvWriter.putFileHeader(pending.headers);
+        pending.addHeaders(0);
+        fileWriteStage.register(this);
+    }
+
+    @Override
+    public void write(Data dataPacket) throws IOException {
+        final RtmpHeader header = dataPacket.getHeader();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(header.getPacketLength());
+        dataPacket.writeBody(baos);
+        append(header.getMessageType(), header.getAbsoluteTimestamp(), ByteBuffer.wrap(baos.toByteArray()), null);
+    }
+
+    @Override
+    public void write(ContentData packet) throws IOException {
+        final RtmpHeader header = packet.getHeader();
+        // The payload is written after this method returns; keep a (pooled) payload from being recycled until then
+        packet.retain();
+        append(header.getMessageType(), header.getAbsoluteTimestamp(), packet.getDataBuffer(), packet);
+    }
+
+    /**
+     * Adds a tag to the pending batch
+     * @param retainedPacket packet to release once the tag has been written (or if adding it fails)
+     */
+    private void append(RtmpHeader.MessageType packetType, int packetTimestamp, ByteBuffer data, ContentData retainedPacket) throws IOException {
+        final int dataLength = data.remaining();
+        boolean added = false;
+        try {
+            synchronized (lock) {
+                awaitCapacity(TAG_OVERHEAD + dataLength);
+                final int start = pending.headers.position();
+                FlvWriter.putTagHeader(pending.headers, packetType, dataLength, packetTimestamp);
+                pending.addHeaders(start);
+                pending.add(data);
+                final int trailerStart = pending.headers.position();
+                pending.headers.putInt(dataLength + FlvWriter.TAG_HEADER_SIZE);
+                pending.addHeaders(trailerStart);
+                if (retainedPacket != null) {
+                    pending.retainedPackets.add(retainedPacket);
+                }
+                added = true;
+                if (isReady(pending)) {
+                    submit();
+                }
+            }
+        } finally {
+            if (!added && retainedPacket != null) {
+                retainedPacket.release();
+            }
+        }
+    }
+
+    /** Waits until a tag of the specified size can be added to the pending batch; must be called with the lock held */
+    private void awaitCapacity(int size) throws IOException {
+        try {
+            while (true) {
+                checkState();
+                final long pendingBytes = pending.bytes + (inFlight == null ? 0 : inFlight.bytes);
+                if (pending.headers.remaining() >= TAG_OVERHEAD && (pendingBytes + size <= maxPendingBytes || pending.isEmpty())) {
+                    return;
+                }
+                // Header space or the pending byte limit is used up; wait for the write stage to catch up
+                blocked = true;
+                submit();
+                lock.wait();
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Thread interrupted while waiting for pending FLV tags to be written");
+        } finally {
+            blocked = false;
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing FLV file failed", failure);
+        }
+        if (closed) {
+            throw new IOException("FLV writer has been closed");
+        }
+    }
+
+    /** @return <code>true</code> if the specified batch should be written now; must be called with the lock held */
+    private boolean isReady(Batch batch) {
+        return !batch.isEmpty() && (closed || blocked || batch.bytes >= fileWriteStage.getFlushThresholdBytes() || batch.headers.remaining() < TAG_OVERHEAD);
+    }
+
+    /** Hands the pending batch to the write stage, unless a batch is already in flight; must be called with the lock held */
+    private void submit() {
+        if (inFlight == null && !pending.isEmpty()) {
+            inFlight = pending;
+            pending = spare;
+            spare = null;
+            fileWriteStage.submit(this);
+        }
+    }
+
+    /** Hands the pending batch to the write stage if it has been pending since before the specified time */
+    void submitIfPendingSince(long deadlineNanos) {
+        synchronized (lock) {
+            if (!pending.isEmpty() && pending.firstAddedNanos - deadlineNanos <= 0) {
+                submit();
+            }
+        }
+    }
+
+    /** Writes the batch in flight; called on the write stage's thread */
+    void writeBatch(FileWriteStage fileWriteStage) {
+        final Batch batch;
+        synchronized (lock) {
+            batch = inFlight;
+        }
+        if (batch == null) {
+            return;
+        }
+        IOException error = null;
+        long written = 0;
+        final long start = System.nanoTime();
+        try {
+            int firstSlice = 0;
+            while (firstSlice < batch.sliceCount) {
+                written += channel.write(batch.slices, firstSlice, batch.sliceCount - firstSlice);
+                while (firstSlice < batch.sliceCount && !batch.slices[firstSlice].hasRemaining()) {
+                    firstSlice++;
+                }
+            }
+        } catch (IOException ex) {
+            L.e("AsyncFlvWriter: Caught IOException while writing FLV file", ex);
+            error = ex;
+        }
+        fileWriteStage.recordWrite(written, System.nanoTime() - start);
+        synchronized (lock) {
+            batch.clear();
+            inFlight = null;
+            spare = batch;
+            if (error != null) {
+                failure = error;
+                pending.clear();
+            } else if (isReady(pending)) {
+                submit();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /** Writes all pending tags, and closes the file */
+    @Override
+    public void close() {
+        super.close();
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            submit();
+            boolean interrupted = false;
+            while (inFlight != null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        fileWriteStage.unregister(this);
+        try {
+            channel.close();
+        } catch (Exception e) {
+            L.e("Caught exception while attempting to close file channel", e);
+        }
+    }
+}
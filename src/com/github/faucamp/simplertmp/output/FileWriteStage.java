@@ -0,0 +1,162 @@
+package com.github.faucamp.simplertmp.output;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.github.faucamp.simplertmp.util.L;
+
+/**
+ * Dedicated file I/O thread shared by many AsyncFlvWriters, so that a slow
+ * disk never stalls the threads that receive and handle RTMP packets.
+ *
+ * Writers batch their tags in memory, and hand a batch to this stage once it
+ * reaches the flush threshold size, or once it has been pending for longer
+ * than the maximum flush delay; each batch is written with a single gathering
+ * FileChannel write. One stage per physical disk is usually sufficient.
+ *
+ * @author francois
+ */
+public class FileWriteStage implements Runnable {
+
+    public static final int DEFAULT_FLUSH_THRESHOLD_BYTES = 256 * 1024;
+    public static final long DEFAULT_MAX_FLUSH_DELAY_MS = 250;
+    /** Number of (power of two) latency histogram buckets, in microseconds */
+    private static final int LATENCY_BUCKETS = 32;
+    private final int flushThresholdBytes;
+    private final long maxFlushDelayNanos;
+    private final Thread thread;
+    private final LinkedBlockingQueue<AsyncFlvWriter> readyQueue = new LinkedBlockingQueue<AsyncFlvWriter>();
+    private final Set<AsyncFlvWriter> writers = Collections.newSetFromMap(new ConcurrentHashMap<AsyncFlvWriter, Boolean>());
+    private volatile boolean active = true;
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLongArray writeLatencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+    public FileWriteStage(String name) {
+        this(name, DEFAULT_FLUSH_THRESHOLD_BYTES, DEFAULT_MAX_FLUSH_DELAY_MS);
+    }
+
+    /**
+     * @param flushThresholdBytes number of pending bytes at which a writer's batch is written
+     * @param maxFlushDelayMs maximum time that bytes are held back before they are written
+     */
+    public FileWriteStage(String name, int flushThresholdBytes, long maxFlushDelayMs) {
+        if (flushThresholdBytes < 1 || maxFlushDelayMs < 1) {
+            throw new IllegalArgumentException("Invalid flush threshold (" + flushThresholdBytes + ") or delay (" + maxFlushDelayMs + ")");
+        }
+        this.flushThresholdBytes = flushThresholdBytes;
+        this.maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushDelayMs);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    void register(AsyncFlvWriter writer) {
+        if (!active) {
+            throw new IllegalStateException("File write stage has been shut down");
+        }
+        writers.add(writer);
+    }
+
+    void unregister(AsyncFlvWriter writer) {
+        writers.remove(writer);
+    }
+
+    /** Queues a writer whose batch is ready to be written (thread-safe) */
+    void submit(AsyncFlvWriter writer) {
+        readyQueue.add(writer);
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = System.nanoTime() + maxFlushDelayNanos;
+        while (active || !readyQueue.isEmpty()) {
+            AsyncFlvWriter writer;
+            try {
+                writer = readyQueue.poll(Math.max(0, nextSweep - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                L.w("FileWriteStage: Interrupted", ex);
+                continue;
+            }
+            if (writer != null) {
+                writer.writeBatch(this);
+            }
+            final long now = System.nanoTime();
+            if (now - nextSweep >= 0) {
+                // Hand off batches that have been pending for too long
+                for (AsyncFlvWriter registered : writers) {
+                    registered.submitIfPendingSince(now - maxFlushDelayNanos);
+                }
+                nextSweep = now + maxFlushDelayNanos / 2;
+            }
+        }
+        L.d("FileWriteStage: exiting");
+    }
+
+    /** Records a completed (gathering) write */
+    void recordWrite(long bytes, long nanos) {
+        bytesWritten.addAndGet(bytes);
+        writeCount.incrementAndGet();
+        writeNanos.addAndGet(nanos);
+        final long micros = nanos / 1000;
+        final int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        writeLatencyHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Stops the stage once all batches that have already been handed to it
+     * are written; writers should be closed before this is called.
+     *
+     * The thread is not interrupted, as that would close the FileChannel
+     * being written; it exits within the flush delay.
+     */
+    public void shutdown() {
+        active = false;
+    }
+
+    /** @return the total number of bytes written by this stage */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /** @return the number of (gathering) writes performed by this stage */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /** @return the average duration of a (batched) write, in milliseconds */
+    public double getAverageWriteTimeMillis() {
+        final long writeCount = this.writeCount.get();
+        return writeCount == 0 ? 0 : writeNanos.get() / (writeCount * 1000000.0);
+    }
+
+    /**
+     * @param percentile the percentile, e.g. 99.0
+     * @return an upper bound (rounded up to a power of two microseconds) of
+     * the specified percentile of write durations, in milliseconds
+     */
+    public double getWriteTimePercentileMillis(double percentile) {
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            total += writeLatencyHistogram.get(i);
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100.0);
+        long count = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            count += writeLatencyHistogram.get(i);
+            if (count >= rank && count > 0) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.faucamp.simplertmp.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.github.faucamp.simplertmp.amf.AmfData;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfWriter;
+import com.github.faucamp.simplertmp.io.packets.Data;
+import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
+
+/**
+ * Index of the video keyframes (timestamps and file positions) of an FLV file
+ * being written, from which an onMetaData tag with "duration", "filesize" and
+ * a "keyframes" object ({times, filepositions}, as used by players to seek)
+ * is generated once the file is complete.
+ *
+ * The tag is either inserted at the head of the file, replacing the stream's
+ * own onMetaData (which requires copying the file once), or written to a
+ * sidecar file: an FLV file containing only the onMetaData tag, whose
+ * positions refer to the original file.
+ *
+ * @author francois
+ */
+public class FlvKeyframeIndex {
+
+    /** Suffix of sidecar index files */
+    public static final String SIDECAR_SUFFIX = ".idx.flv";
+    private int[] timestamps = new int[256];
+    private long[] positions = new long[256];
+    private int count = 0;
+    private boolean hasTimestamps = false;
+    private int firstTimestamp;
+    private int lastTimestamp;
+    /** Properties of the stream's own onMetaData; these are carried over */
+    private Map<String, AmfData> metaDataProperties = new LinkedHashMap<String, AmfData>();
+    /** File position and length of the stream's own onMetaData tag, or -1 if there is none */
+    private long metaDataPosition = -1;
+    private long metaDataLength;
+
+    /** Records the timestamp of a tag, for the duration */
+    void addTimestamp(int timestamp) {
+        if (!hasTimestamps) {
+            hasTimestamps = true;
+            firstTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+    }
+
+    /** Records a video keyframe tag that starts at the specified file position */
+    void addKeyframe(int timestamp, long position) {
+        if (count == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        timestamps[count] = timestamp;
+        positions[count] = position;
+        count++;
+    }
+
+    /** Records the stream's (first) onMetaData tag, whose properties are carried over into the generated one */
+    void setMetaData(Data metaData, long position, long tagLength) {
+        if (metaDataPosition >= 0) {
+            return;
+        }
+        metaDataPosition = position;
+        metaDataLength = tagLength;
+        List<AmfData> arguments = metaData.getData();
+        if (arguments != null && !arguments.isEmpty() && arguments.get(0) instanceof AmfObject) {
+            metaDataProperties.putAll(((AmfObject) arguments.get(0)).getProperties());
+        }
+        metaDataProperties.remove("duration");
+        metaDataProperties.remove("filesize");
+        metaDataProperties.remove("keyframes");
+    }
+
+    public int getKeyframeCount() {
+        return count;
+    }
+
+    public int getKeyframeTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public long getKeyframePosition(int index) {
+        return positions[index];
+    }
+
+    /** @return the index of the last keyframe at or before the specified timestamp, or -1 if there is none */
+    public int findKeyframe(int timestamp) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /** @return the duration of the stream, in seconds */
+    public double getDuration() {
+        return hasTimestamps ? (lastTimestamp - firstTimestamp) / 1000.0 : 0;
+    }
+
+    /**
+     * Encodes the onMetaData tag (including its previous tag size); keyframe
+     * positions before the stream's own onMetaData tag are shifted by
+     * <code>shiftBefore</code>, and those after it by <code>shiftAfter</code>
+     */
+    private ByteBuffer encodeMetaDataTag(long fileSize, long shiftBefore, long shiftAfter) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256 + count * 18);
+        AmfWriter writer = AmfWriter.forStream(body);
+        writer.string("onMetaData").startMap();
+        for (Map.Entry<String, AmfData> property : metaDataProperties.entrySet()) {
+            writer.key(property.getKey()).value(property.getValue());
+        }
+        writer.property("duration", getDuration());
+        writer.property("filesize", fileSize);
+        writer.key("keyframes").startObject();
+        writer.key("times").startArray(count);
+        for (int i = 0; i < count; i++) {
+            writer.number(timestamps[i] / 1000.0);
+        }
+        writer.key("filepositions").startArray(count);
+        for (int i = 0; i < count; i++) {
+            writer.number(positions[i] + (metaDataPosition >= 0 && positions[i] > metaDataPosition ? shiftAfter : shiftBefore));
+        }
+        writer.endObject();
+        writer.endObject();
+
+        ByteBuffer tag = ByteBuffer.allocate(FlvWriter.TAG_HEADER_SIZE + body.size() + 4);
+        FlvWriter.putTagHeader(tag, RtmpHeader.MessageType.DATA_AMF0, body.size(), 0);
+        tag.put(body.toByteArray());
+        tag.putInt(FlvWriter.TAG_HEADER_SIZE + body.size());
+        tag.flip();
+        return tag;
+    }
+
+    /**
+     * Rewrites the specified (complete) FLV file with the generated onMetaData
+     * tag directly after the FLV header; the stream's own onMetaData tag is
+     * dropped. The file is written to a temporary file first, which then
+     * replaces the original.
+     */
+    public void rewriteHead(String filename) throws IOException {
+        final String tempFilename = filename + ".tmp";
+        RandomAccessFile source = new RandomAccessFile(filename, "r");
+        try {
+            FileOutputStream target = new FileOutputStream(tempFilename);
+            try {
+                final FileChannel in = source.getChannel();
+                final FileChannel out = target.getChannel();
+                final long length = in.size();
+                final long droppedLength = metaDataPosition >= 0 ? metaDataLength : 0;
+                // Numbers are fixed-size in AMF0, so the tag's size does not depend on the values in it
+                final long insertedLength = encodeMetaDataTag(0, 0, 0).remaining();
+                ByteBuffer tag = encodeMetaDataTag(length + insertedLength - droppedLength, insertedLength, insertedLength - droppedLength);
+
+                transfer(in, 0, FlvWriter.FILE_HEADER_SIZE, out);
+                while (tag.hasRemaining()) {
+                    out.write(tag);
+                }
+                if (metaDataPosition >= 0) {
+                    transfer(in, FlvWriter.FILE_HEADER_SIZE, metaDataPosition, out);
+                    transfer(in, metaDataPosition + metaDataLength, length, out);
+                } else {
+                    transfer(in, FlvWriter.FILE_HEADER_SIZE, length, out);
+                }
+            } finally {
+                target.close();
+            }
+        } finally {
+            source.close();
+        }
+        Files.move(Paths.get(tempFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Writes the generated onMetaData tag for the specified (complete) FLV file to its sidecar index file */
+    public void writeSidecar(String filename) throws IOException {
+        final long length = new File(filename).length();
+        ByteBuffer header = ByteBuffer.allocate(FlvWriter.FILE_HEADER_SIZE);
+        FlvWriter.putFileHeader(header);
+        header.flip();
+        ByteBuffer[] buffers = new ByteBuffer[]{header, encodeMetaDataTag(length, 0, 0)};
+        FileOutputStream out = new FileOutputStream(filename + SIDECAR_SUFFIX);
+        try {
+            while (buffers[1].hasRemaining()) {
+                out.getChannel().write(buffers);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void transfer(FileChannel in, long start, long end, FileChannel out) throws IOException {
+        long position = start;
+        while (position < end) {
+            position += in.transferTo(position, end - position, out);
+        }
+    }
+}
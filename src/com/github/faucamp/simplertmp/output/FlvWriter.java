@@ -1,86 +1,307 @@
-package com.github.faucamp.simplertmp.output;
-
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import com.github.faucamp.simplertmp.Util;
-import com.github.faucamp.simplertmp.io.packets.ContentData;
-import com.github.faucamp.simplertmp.io.packets.Data;
-import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
-import com.github.faucamp.simplertmp.util.L;
-
-public class FlvWriter extends RtmpStreamWriter {
-
-    // Signature == "FLV
-    private static final byte[] HEADER_SIGNATURE = new byte[]{(byte) 0x46, (byte) 0x4C, (byte) 0x56};
-    private static final byte HEADER_VERSION = 0x01; // version 1
-    private static final byte HEADER_FLAGS = 0x05; // flags: 5 is audio+video
-    private static final int HEADER_SIZE = 9; // always 9 for known FLV files    
-    /** 4 zeros for reserved blocks */
-    private static final byte[] RESERVED = new byte[]{0, 0, 0, 0};
-    protected OutputStream out;
-
-    public FlvWriter() {
-    }
-    
-    public FlvWriter(OutputStream out) throws IOException {
-        this.out = out;
-        writeHeader();
-    }
-
-    public void open(String filename) throws FileNotFoundException, IOException {
-        out = new BufferedOutputStream(new FileOutputStream(filename));
-        writeHeader();
-    }
-
-    @Override
-    public void close() {
-        super.close();
-        try {
-            out.close();
-        } catch (Exception e) {
-            L.e("Caught exception while attempting to close output stream", e);
-        }
-    }
-
-    protected void writeHeader() throws IOException {
-        out.write(HEADER_SIGNATURE);
-        out.write(HEADER_VERSION);
-        out.write(HEADER_FLAGS);
-        Util.writeUnsignedInt32(out, HEADER_SIZE);
-        // Write "previous" tag size (== 0 because no tags have been written yet)
-        Util.writeUnsignedInt32(out, 0);
-    }
-    
-    @Override
-    public void write(Data dataPacket) throws IOException {
-        final RtmpHeader header = dataPacket.getHeader();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(header.getPacketLength());
-        dataPacket.writeBody(baos);
-        write(header.getMessageType(), baos.toByteArray(), header.getAbsoluteTimestamp());
-    }
-
-    @Override
-    public void write(ContentData packet) throws IOException {
-        final RtmpHeader header = packet.getHeader();
-        write(header.getMessageType(), packet.getData(), header.getAbsoluteTimestamp());
-    }
-
-    private void write(final RtmpHeader.MessageType packetType, final byte[] data, final int packetTimestamp) throws IOException {
-        out.write(packetType.getValue());
-        // Write packet size
-        Util.writeUnsignedInt24(out, data.length);
-        // Write absolute time
-        Util.writeUnsignedInt24(out, packetTimestamp);
-        // Write reserved block
-        out.write(RESERVED);
-        // Write actual data
-        out.write(data);
-
-        // Now write previous tag size
-        Util.writeUnsignedInt32(out, data.length + 11);
-    }
-}
+package com.github.faucamp.simplertmp.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.Data;
+import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.util.L;
+
+public class FlvWriter extends RtmpStreamWriter {
+
+    /** Where the keyframe index (an onMetaData tag with duration, filesize and keyframes) is written when the file is closed */
+    public static enum KeyframeIndexMode {
+
+        /** No keyframe index is collected */
+        NONE,
+        /**
+         * The file is rewritten once, with the index at its head. This copies
+         * the whole file, so it is done after <code>close()</code> returns, on
+         * another thread (see <code>setKeyframeIndexExecutor()</code>); for
+         * long recordings, SIDECAR is recommended instead.
+         */
+        REWRITE_HEAD,
+        /** The index is written to a sidecar file (see FlvKeyframeIndex); only the index is written, on close */
+        SIDECAR
+    }
+
+    // Signature == "FLV
+    private static final byte[] HEADER_SIGNATURE = new byte[]{(byte) 0x46, (byte) 0x4C, (byte) 0x56};
+    private static final byte HEADER_VERSION = 0x01; // version 1
+    private static final byte HEADER_FLAGS = 0x05; // flags: 5 is audio+video
+    private static final int HEADER_SIZE = 9; // always 9 for known FLV files    
+    /** FLV header, including the first (zero) previous tag size */
+    static final int FILE_HEADER_SIZE = HEADER_SIZE + 4;
+    /** Tag type, data size, timestamp (24 bits + 8 extended bits) and stream ID (always 0) */
+    static final int TAG_HEADER_SIZE = 11;
+    protected OutputStream out;
+    /** Reused to assemble each tag header, so that it is written with a single call */
+    private final ByteBuffer tagHeader = ByteBuffer.allocate(TAG_HEADER_SIZE);
+    /** Number of bytes written so far, i.e. the file position of the next tag */
+    private long position = 0;
+    /** Name of the file being written, if opened by filename */
+    private String filename;
+    private KeyframeIndexMode keyframeIndexMode = KeyframeIndexMode.NONE;
+    private FlvKeyframeIndex keyframeIndex;
+    /** Runs the REWRITE_HEAD rewrite after close(); if <code>null</code>, a thread is started for it */
+    private Executor keyframeIndexExecutor;
+    /** Counted down once the keyframe index (if any) has been written after close() */
+    private final CountDownLatch keyframeIndexWritten = new CountDownLatch(1);
+    /** Set once closed; closing again must not rewrite the file or its keyframe index */
+    private boolean closed = false;
+
+    public FlvWriter() {
+    }
+    
+    public FlvWriter(OutputStream out) throws IOException {
+        this.out = out;
+        writeHeader();
+    }
+
+    public void open(String filename) throws FileNotFoundException, IOException {
+        out = new BufferedOutputStream(new FileOutputStream(filename));
+        this.filename = filename;
+        writeHeader();
+    }
+
+    /**
+     * Collects the timestamps and file positions of video keyframes, and writes
+     * them (as an onMetaData tag) to the specified place when the file is
+     * closed; this must be called before the file is opened, and only applies
+     * to files opened by filename
+     */
+    public void setKeyframeIndexMode(KeyframeIndexMode keyframeIndexMode) {
+        this.keyframeIndexMode = keyframeIndexMode;
+        keyframeIndex = keyframeIndexMode == KeyframeIndexMode.NONE ? null : new FlvKeyframeIndex();
+    }
+
+    /**
+     * Sets the executor that rewrites the file with the REWRITE_HEAD keyframe
+     * index after <code>close()</code>, rather than the thread that closes
+     * the writer (usually a thread that handles RTMP packets). By default,
+     * a new thread is started for each rewrite.
+     */
+    public void setKeyframeIndexExecutor(Executor keyframeIndexExecutor) {
+        this.keyframeIndexExecutor = keyframeIndexExecutor;
+    }
+
+    /**
+     * Waits until the keyframe index has been written after <code>close()</code>
+     * @return <code>false</code> if the timeout elapsed first
+     */
+    public boolean awaitKeyframeIndex(long timeout, TimeUnit unit) throws InterruptedException {
+        return keyframeIndexWritten.await(timeout, unit);
+    }
+
+    /** @return the keyframe index collected so far, or <code>null</code> if not enabled */
+    public FlvKeyframeIndex getKeyframeIndex() {
+        return keyframeIndex;
+    }
+
+    /**
+     * Opens the specified file for writing through a memory-mapped,
+     * preallocated window (see MappedFileOutputStream); if the process dies
+     * before the writer is closed, use <code>recover()</code> on the file
+     */
+    public void openMapped(String filename) throws IOException {
+        out = new MappedFileOutputStream(filename);
+        this.filename = filename;
+        writeHeader();
+    }
+
+    /**
+     * Truncates a partially written FLV file (e.g. a preallocated, mapped file
+     * that was never closed) after its last complete tag
+     * @return the length of the recovered file
+     * @throws IOException if the file does not start with a valid FLV header
+     */
+    public static long recover(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+            final long length = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            if (channel.read(header, 0) < FILE_HEADER_SIZE || header.get(0) != HEADER_SIGNATURE[0] || header.get(1) != HEADER_SIGNATURE[1] || header.get(2) != HEADER_SIGNATURE[2]) {
+                throw new IOException("Not an FLV file: " + filename);
+            }
+            long position = header.getInt(5) + 4;
+            ByteBuffer tagHeader = ByteBuffer.allocate(TAG_HEADER_SIZE);
+            ByteBuffer previousTagSize = ByteBuffer.allocate(4);
+            while (position + TAG_HEADER_SIZE <= length) {
+                tagHeader.clear();
+                channel.read(tagHeader, position);
+                final int tagType = tagHeader.get(0) & 0x1f;
+                if (tagType != RtmpHeader.MessageType.AUDIO.getValue() && tagType != RtmpHeader.MessageType.VIDEO.getValue() && tagType != RtmpHeader.MessageType.DATA_AMF0.getValue()) {
+                    break; // preallocated zeros, or garbage
+                }
+                final int dataLength = tagHeader.getInt(0) & 0xffffff;
+                final long end = position + TAG_HEADER_SIZE + dataLength + 4;
+                if (end > length) {
+                    break; // incomplete tag
+                }
+                previousTagSize.clear();
+                channel.read(previousTagSize, end - 4);
+                if (previousTagSize.getInt(0) != dataLength + TAG_HEADER_SIZE) {
+                    break; // incomplete tag
+                }
+                position = end;
+            }
+            if (position < length) {
+                L.i("FlvWriter.recover(): truncating " + filename + " from " + length + " to " + position + " bytes");
+                channel.truncate(position);
+            }
+            return position;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (Exception e) {
+            L.e("Caught exception while attempting to close output stream", e);
+        }
+        if (keyframeIndex == null || filename == null) {
+            keyframeIndexWritten.countDown();
+        } else if (keyframeIndexMode == KeyframeIndexMode.REWRITE_HEAD) {
+            final Runnable rewriteHead = new Runnable() {
+
+                @Override
+                public void run() {
+                    writeKeyframeIndex();
+                }
+            };
+            if (keyframeIndexExecutor != null) {
+                keyframeIndexExecutor.execute(rewriteHead);
+            } else {
+                new Thread(rewriteHead, "FlvWriter keyframe index: " + filename).start();
+            }
+        } else {
+            writeKeyframeIndex();
+        }
+    }
+
+    private void writeKeyframeIndex() {
+        try {
+            if (keyframeIndexMode == KeyframeIndexMode.REWRITE_HEAD) {
+                keyframeIndex.rewriteHead(filename);
+            } else {
+                keyframeIndex.writeSidecar(filename);
+            }
+        } catch (IOException e) {
+            L.e("Caught exception while attempting to write keyframe index", e);
+        } finally {
+            keyframeIndexWritten.countDown();
+        }
+    }
+
+    protected void writeHeader() throws IOException {
+        out.write(HEADER_SIGNATURE);
+        out.write(HEADER_VERSION);
+        out.write(HEADER_FLAGS);
+        Util.writeUnsignedInt32(out, HEADER_SIZE);
+        // Write "previous" tag size (== 0 because no tags have been written yet)
+        Util.writeUnsignedInt32(out, 0);
+        position = FILE_HEADER_SIZE;
+    }
+    
+    @Override
+    public void write(Data dataPacket) throws IOException {
+        final RtmpHeader header = dataPacket.getHeader();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(header.getPacketLength());
+        dataPacket.writeBody(baos);
+        if (keyframeIndex != null) {
+            keyframeIndex.addTimestamp(header.getAbsoluteTimestamp());
+            if ("onMetaData".equals(dataPacket.getType())) {
+                keyframeIndex.setMetaData(dataPacket, position, TAG_HEADER_SIZE + baos.size() + 4);
+            }
+        }
+        write(header.getMessageType(), baos.toByteArray(), header.getAbsoluteTimestamp());
+    }
+
+    @Override
+    public void write(ContentData packet) throws IOException {
+        final RtmpHeader header = packet.getHeader();
+        final int dataLength = packet.getDataLength();
+        if (keyframeIndex != null) {
+            keyframeIndex.addTimestamp(header.getAbsoluteTimestamp());
+            if (header.getMessageType() == RtmpHeader.MessageType.VIDEO && isKeyframe(packet)) {
+                keyframeIndex.addKeyframe(header.getAbsoluteTimestamp(), position);
+            }
+        }
+        writeTagHeader(header.getMessageType(), dataLength, header.getAbsoluteTimestamp());
+        // Write actual data straight from the packet's (possibly pooled) payload buffer
+        packet.writeBody(out);
+        // Now write previous tag size
+        Util.writeUnsignedInt32(out, dataLength + TAG_HEADER_SIZE);
+    }
+
+    private void write(final RtmpHeader.MessageType packetType, final byte[] data, final int packetTimestamp) throws IOException {
+        writeTagHeader(packetType, data.length, packetTimestamp);
+        // Write actual data
+        out.write(data);
+
+        // Now write previous tag size
+        Util.writeUnsignedInt32(out, data.length + TAG_HEADER_SIZE);
+    }
+
+    private void writeTagHeader(final RtmpHeader.MessageType packetType, final int dataLength, final int packetTimestamp) throws IOException {
+        tagHeader.clear();
+        putTagHeader(tagHeader, packetType, dataLength, packetTimestamp);
+        out.write(tagHeader.array(), 0, TAG_HEADER_SIZE);
+        position += TAG_HEADER_SIZE + dataLength + 4;
+    }
+
+    /** @return <code>true</code> if the video packet is a keyframe (FLV frame type 1), other than an AVC sequence header */
+    private static boolean isKeyframe(ContentData packet) {
+        if (packet.getDataLength() < 2 || ((packet.getDataByte(0) >> 4) & 0x0f) != 1) {
+            return false;
+        }
+        return (packet.getDataByte(0) & 0x0f) != 7 || packet.getDataByte(1) != 0;
+    }
+
+    /** Puts the FLV header (including the first previous tag size) into the specified buffer */
+    static void putFileHeader(ByteBuffer buffer) {
+        buffer.put(HEADER_SIGNATURE);
+        buffer.put(HEADER_VERSION);
+        buffer.put(HEADER_FLAGS);
+        buffer.putInt(HEADER_SIZE);
+        buffer.putInt(0);
+    }
+
+    /** Puts an FLV tag header into the specified buffer */
+    static void putTagHeader(ByteBuffer buffer, final RtmpHeader.MessageType packetType, final int dataLength, final int packetTimestamp) {
+        buffer.put(packetType.getValue());
+        // Packet size
+        putUnsignedInt24(buffer, dataLength);
+        // Absolute time: lower 24 bits, followed by the upper 8 bits
+        putUnsignedInt24(buffer, packetTimestamp);
+        buffer.put((byte) (packetTimestamp >>> 24));
+        // Stream ID (always 0)
+        putUnsignedInt24(buffer, 0);
+    }
+
+    private static void putUnsignedInt24(ByteBuffer buffer, int value) {
+        buffer.put((byte) (value >>> 16));
+        buffer.put((byte) (value >>> 8));
+        buffer.put((byte) value);
+    }
+}
@@ -78,8 +78,7 @@ public class GenericAudioWriter extends RtmpStreamWriter {
             delegateWriter.write(packet);
         } catch (NullPointerException ex) { // will happen on first attempt (before delegate writer has been initialized
             if (packet.getHeader().getMessageType() == RtmpHeader.MessageType.AUDIO) {
-                byte[] data = packet.getData();
-                if (data.length > 0) {
+                if (packet.getDataLength() > 0) {
                     try {
                         parseFlvSequenceHeader(packet.getData());
                     } catch (UnsupportedOperationException ex2) {
@@ -0,0 +1,135 @@
+package com.github.faucamp.simplertmp.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * OutputStream that writes into a memory-mapped window of a file, instead
+ * of issuing a write system call per (buffered) block.
+ *
+ * The file is extended one window at a time, so that it grows in large
+ * contiguous steps; each window is twice the size of the previous one, up to
+ * a maximum. On <code>close()</code> the file is truncated to the number of
+ * bytes actually written. If the process dies before that, the file keeps
+ * its preallocated length, with zeros after the last byte written (see
+ * <code>FlvWriter.recover()</code>).
+ *
+ * Mapped windows are only unmapped when they are garbage collected. Each
+ * window is forced to the storage device before the next one is mapped.
+ *
+ * @author francois
+ */
+public class MappedFileOutputStream extends OutputStream {
+
+    public static final int DEFAULT_INITIAL_WINDOW_SIZE = 1024 * 1024;
+    public static final int MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    /** File position of the start of the current window */
+    private long windowStart = 0;
+    private int windowSize;
+    private boolean closed = false;
+
+    public MappedFileOutputStream(String filename) throws IOException {
+        this(filename, DEFAULT_INITIAL_WINDOW_SIZE);
+    }
+
+    /** Creates (or truncates) the specified file, and maps its first window */
+    public MappedFileOutputStream(String filename, int initialWindowSize) throws IOException {
+        if (initialWindowSize < 1 || initialWindowSize > MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Invalid window size: " + initialWindowSize);
+        }
+        file = new RandomAccessFile(filename, "rw");
+        channel = file.getChannel();
+        try {
+            file.setLength(0);
+            windowSize = initialWindowSize;
+            mapWindow(0);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /** Extends the file to the end of the window starting at the specified position, and maps it */
+    private void mapWindow(long start) throws IOException {
+        file.setLength(start + windowSize);
+        window = channel.map(FileChannel.MapMode.READ_WRITE, start, windowSize);
+        windowStart = start;
+    }
+
+    /**
+     * Maps the window following the current one. The current window is forced
+     * first: once dropped, its pending writes could no longer be forced by
+     * <code>sync()</code>, which only forces the current window.
+     */
+    private void nextWindow() throws IOException {
+        window.force();
+        final long start = windowStart + window.position();
+        windowSize = Math.min(windowSize * 2, MAX_WINDOW_SIZE);
+        mapWindow(start);
+    }
+
+    /** Writing to the mapped window after the file was truncated would crash the VM, rather than fail */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (!window.hasRemaining()) {
+            nextWindow();
+        }
+        window.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (!window.hasRemaining()) {
+                nextWindow();
+            }
+            final int count = Math.min(len, window.remaining());
+            window.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /** @return the number of bytes written so far */
+    public long getPosition() {
+        return windowStart + window.position();
+    }
+
+    /**
+     * Forces the bytes written so far to the storage device. Writes made through
+     * a mapped buffer are not flushed by <code>FileChannel.force()</code>, so
+     * this forces the current window (earlier windows were forced when dropped).
+     */
+    public void sync() throws IOException {
+        checkOpen();
+        window.force();
+    }
+
+    /** Truncates the file to the number of bytes written, and closes it */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.truncate(getPosition());
+        } finally {
+            file.close();
+        }
+    }
+}
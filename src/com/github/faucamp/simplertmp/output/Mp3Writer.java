@@ -29,8 +29,7 @@ public class Mp3Writer extends RtmpStreamWriter {
     @Override
     public void write(ContentData packet) throws IOException {
         if (packet.getHeader().getMessageType() == RtmpHeader.MessageType.AUDIO) {
-            byte[] data = packet.getData();
-            out.write(data, 1, data.length - 1); // skip past 0x2F FLV MP3 audio tag sub-header
+            packet.writeBody(out, 1); // skip past 0x2F FLV MP3 audio tag sub-header
         }
     }
 }
@@ -0,0 +1,214 @@
+package com.github.faucamp.simplertmp.output;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import com.github.faucamp.simplertmp.io.packets.Audio;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.Data;
+import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.io.packets.Video;
+import com.github.faucamp.simplertmp.util.L;
+
+/**
+ * Records a stream as a sequence of FLV files ("segments"), rolling to a new
+ * file once the current one reaches a maximum duration or size.
+ *
+ * Segments are only cut on video keyframes (or on any audio frame, for
+ * audio-only streams), so that each segment can be played on its own; the
+ * most recent onMetaData and AAC/AVC sequence headers are written at the start
+ * of each new segment. A SegmentListener is notified of each completed
+ * segment, so that it can be processed while recording continues.
+ *
+ * @author francois
+ */
+public class SegmentedFlvWriter extends RtmpStreamWriter {
+
+    /** Notified (on the writing thread) whenever a segment file has been completed */
+    public static interface SegmentListener {
+
+        /**
+         * @param filename the completed segment file
+         * @param segmentIndex index of the segment, starting at 0
+         * @param startTimestamp stream timestamp of the first tag in the segment
+         * @param durationMs stream time covered by the segment
+         * @param bytes (approximate) size of the segment
+         */
+        void segmentCompleted(String filename, int segmentIndex, int startTimestamp, int durationMs, long bytes);
+    }
+    /** FLV SoundFormat (upper nibble of the first audio byte) for AAC */
+    private static final int SOUND_FORMAT_AAC = 10;
+    /** FLV CodecID (lower nibble of the first video byte) for AVC */
+    private static final int CODEC_ID_AVC = 7;
+    /** FLV FrameType (upper nibble of the first video byte) for keyframes */
+    private static final int FRAME_TYPE_KEYFRAME = 1;
+    /** AACPacketType / AVCPacketType (second byte) for sequence headers */
+    private static final int PACKET_TYPE_SEQUENCE_HEADER = 0;
+    private static final int TAG_OVERHEAD = FlvWriter.TAG_HEADER_SIZE + 4;
+    private final String filenamePattern;
+    private final long maxSegmentDurationMs;
+    private final long maxSegmentBytes;
+    private SegmentListener segmentListener;
+    private RtmpStreamWriter segmentWriter;
+    private String segmentFilename;
+    private int segmentIndex = -1;
+    private int segmentStartTimestamp;
+    private int lastTimestamp;
+    private long segmentBytes;
+    private boolean hasVideo = false;
+    private Data metaData;
+    private Audio audioSequenceHeader;
+    private Video videoSequenceHeader;
+
+    /**
+     * @param filenamePattern String.format() pattern for the segment
+     * filenames, applied to the segment index, e.g. "recording-%05d.flv"
+     * @param maxSegmentDurationMs stream time after which a new segment is started; 0 for no limit
+     * @param maxSegmentBytes size after which a new segment is started; 0 for no limit
+     */
+    public SegmentedFlvWriter(String filenamePattern, long maxSegmentDurationMs, long maxSegmentBytes) {
+        if (String.format(filenamePattern, 0).equals(String.format(filenamePattern, 1))) {
+            throw new IllegalArgumentException("Filename pattern does not include the segment index: " + filenamePattern);
+        }
+        this.filenamePattern = filenamePattern;
+        this.maxSegmentDurationMs = maxSegmentDurationMs;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    public void setSegmentListener(SegmentListener segmentListener) {
+        this.segmentListener = segmentListener;
+    }
+
+    /**
+     * Creates the (opened) writer for a new segment file; override this to
+     * write segments with e.g. <code>FlvWriter.openMapped()</code> or an
+     * AsyncFlvWriter
+     */
+    protected RtmpStreamWriter createSegmentWriter(String filename) throws IOException {
+        FlvWriter flvWriter = new FlvWriter();
+        flvWriter.open(filename);
+        return flvWriter;
+    }
+
+    @Override
+    public void write(Data dataPacket) throws IOException {
+        if ("onMetaData".equals(dataPacket.getType())) {
+            metaData = copyOf(dataPacket);
+        }
+        if (segmentWriter == null) {
+            openSegment(dataPacket.getHeader().getAbsoluteTimestamp());
+        }
+        segmentWriter.write(dataPacket);
+        account(dataPacket.getHeader().getAbsoluteTimestamp(), dataPacket.getHeader().getPacketLength());
+    }
+
+    @Override
+    public void write(ContentData packet) throws IOException {
+        final int timestamp = packet.getHeader().getAbsoluteTimestamp();
+        boolean segmentBoundary = false;
+        if (packet.getDataLength() == 0) {
+            // Nothing to classify
+        } else if (packet instanceof Video) {
+            hasVideo = true;
+            if (isSequenceHeader(packet, (packet.getDataByte(0) & 0x0f) == CODEC_ID_AVC)) {
+                videoSequenceHeader = (Video) copyOf(packet, new Video(new RtmpHeader(packet.getHeader())));
+            } else {
+                segmentBoundary = ((packet.getDataByte(0) >> 4) & 0x0f) == FRAME_TYPE_KEYFRAME;
+            }
+        } else if (packet instanceof Audio) {
+            if (isSequenceHeader(packet, ((packet.getDataByte(0) >> 4) & 0x0f) == SOUND_FORMAT_AAC)) {
+                audioSequenceHeader = (Audio) copyOf(packet, new Audio(new RtmpHeader(packet.getHeader())));
+            } else {
+                segmentBoundary = !hasVideo;
+            }
+        }
+        if (segmentWriter == null) {
+            openSegment(timestamp);
+        } else if (segmentBoundary && isSegmentFull(timestamp)) {
+            closeSegment();
+            openSegment(timestamp);
+            writeCachedHeaders(timestamp);
+        }
+        segmentWriter.write(packet);
+        account(timestamp, packet.getDataLength());
+    }
+
+    private static boolean isSequenceHeader(ContentData packet, boolean codecHasSequenceHeaders) {
+        return codecHasSequenceHeaders && packet.getDataLength() > 1 && packet.getDataByte(1) == PACKET_TYPE_SEQUENCE_HEADER;
+    }
+
+    private boolean isSegmentFull(int timestamp) {
+        return (maxSegmentDurationMs > 0 && timestamp - segmentStartTimestamp >= maxSegmentDurationMs)
+                || (maxSegmentBytes > 0 && segmentBytes >= maxSegmentBytes);
+    }
+
+    private void account(int timestamp, int dataLength) {
+        lastTimestamp = timestamp;
+        segmentBytes += dataLength + TAG_OVERHEAD;
+    }
+
+    private void openSegment(int timestamp) throws IOException {
+        segmentIndex++;
+        segmentFilename = String.format(filenamePattern, segmentIndex);
+        L.d("SegmentedFlvWriter: starting segment " + segmentFilename);
+        segmentWriter = createSegmentWriter(segmentFilename);
+        segmentStartTimestamp = timestamp;
+        lastTimestamp = timestamp;
+        segmentBytes = FlvWriter.FILE_HEADER_SIZE;
+    }
+
+    /** Repeats the stream's metadata and sequence headers at the start of a new segment */
+    private void writeCachedHeaders(int timestamp) throws IOException {
+        if (metaData != null) {
+            metaData.getHeader().setAbsoluteTimestamp(timestamp);
+            segmentWriter.write(metaData);
+            account(timestamp, metaData.getHeader().getPacketLength());
+        }
+        if (videoSequenceHeader != null) {
+            videoSequenceHeader.getHeader().setAbsoluteTimestamp(timestamp);
+            segmentWriter.write(videoSequenceHeader);
+            account(timestamp, videoSequenceHeader.getDataLength());
+        }
+        if (audioSequenceHeader != null) {
+            audioSequenceHeader.getHeader().setAbsoluteTimestamp(timestamp);
+            segmentWriter.write(audioSequenceHeader);
+            account(timestamp, audioSequenceHeader.getDataLength());
+        }
+    }
+
+    private void closeSegment() {
+        segmentWriter.close();
+        segmentWriter = null;
+        if (segmentListener != null) {
+            segmentListener.segmentCompleted(segmentFilename, segmentIndex, segmentStartTimestamp, lastTimestamp - segmentStartTimestamp, segmentBytes);
+        }
+    }
+
+    /** Copies the payload of a (possibly pooled) packet, so that it can be kept */
+    private static ContentData copyOf(ContentData packet, ContentData copy) {
+        final ByteBuffer data = packet.getDataBuffer();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        copy.setData(bytes);
+        return copy;
+    }
+
+    private static Data copyOf(Data dataPacket) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dataPacket.writeBody(baos);
+        Data copy = new Data(new RtmpHeader(dataPacket.getHeader()));
+        copy.getHeader().setPacketLength(baos.size());
+        copy.readBody(new ByteArrayInputStream(baos.toByteArray()));
+        return copy;
+    }
+
+    /** Completes the current segment */
+    @Override
+    public void close() {
+        if (segmentWriter != null) {
+            closeSegment();
+        }
+        super.close();
+    }
+}
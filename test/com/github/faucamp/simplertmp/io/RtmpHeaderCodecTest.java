@@ -0,0 +1,176 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import com.github.faucamp.simplertmp.io.packets.Audio;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+
+/**
+ * Property test of the chunk header codec: random sequences of messages are
+ * encoded (with compressed headers, on random chunk streams and with random
+ * chunk sizes), then decoded from the wire bytes fed in random slices, and
+ * the decoded headers and bodies are compared with the originals.
+ *
+ * Timestamps are chosen to exercise the extended timestamp boundary
+ * (0xFFFFFF), deltas that cross it, and timestamps that wrap around; chunk
+ * stream IDs cover the 1-, 2- and 3-byte basic header forms.
+ *
+ * Run with <code>ant codec-test</code>; exits with status 1 on failure.
+ * The first argument, if any, is the random seed.
+ *
+ * @author francois
+ */
+public class RtmpHeaderCodecTest {
+
+    private static final int ITERATIONS = 500;
+
+    public static void main(String[] args) throws IOException {
+        final long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int failures = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long iterationSeed = seed * ITERATIONS + i;
+            String failure = runIteration(new Random(iterationSeed));
+            if (failure != null) {
+                failures++;
+                System.out.println("FAILED (seed " + iterationSeed + "): " + failure);
+            }
+        }
+        System.out.println("RtmpHeaderCodecTest: " + ITERATIONS + " iterations, " + failures + " failures");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String runIteration(Random random) throws IOException {
+        final int chunkSize = 1 + random.nextInt(random.nextBoolean() ? 16 : 600);
+        final int[] chunkStreamIds = new int[1 + random.nextInt(4)];
+        for (int i = 0; i < chunkStreamIds.length; i++) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    chunkStreamIds[i] = 2 + random.nextInt(62); // 1-byte basic header
+                    break;
+                case 1:
+                    chunkStreamIds[i] = 64 + random.nextInt(256); // 2-byte basic header
+                    break;
+                default:
+                    chunkStreamIds[i] = 320 + random.nextInt(65599 - 320 + 1); // 3-byte basic header
+            }
+        }
+
+        // Encode
+        RtmpSessionInfo txSessionInfo = new RtmpSessionInfo();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        List<RtmpHeader> expectedHeaders = new ArrayList<RtmpHeader>();
+        List<byte[]> expectedBodies = new ArrayList<byte[]>();
+        Map<Integer, Integer> prevTimestamps = new HashMap<Integer, Integer>();
+        final int messageCount = 1 + random.nextInt(40);
+        for (int i = 0; i < messageCount; i++) {
+            final int chunkStreamId = chunkStreamIds[random.nextInt(chunkStreamIds.length)];
+            final int timestamp = nextTimestamp(random, prevTimestamps.get(chunkStreamId));
+            prevTimestamps.put(chunkStreamId, timestamp);
+            byte[] body = new byte[random.nextInt(random.nextBoolean() ? 50 : 2000)];
+            random.nextBytes(body);
+
+            Audio packet = new Audio(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, chunkStreamId,
+                    random.nextBoolean() ? RtmpHeader.MessageType.AUDIO : RtmpHeader.MessageType.VIDEO));
+            packet.getHeader().setMessageStreamId(random.nextInt(3));
+            packet.getHeader().setAbsoluteTimestamp(timestamp);
+            packet.getHeader().setPacketLength(body.length);
+            packet.setData(body);
+            ChunkStreamInfo chunkStreamInfo = txSessionInfo.getChunkStreamInfo(chunkStreamId);
+            chunkStreamInfo.compressHeaderTx(packet.getHeader());
+            packet.writeTo(wire, chunkSize, chunkStreamInfo);
+            chunkStreamInfo.setPrevHeaderTx(packet.getHeader());
+            expectedHeaders.add(new RtmpHeader(packet.getHeader()));
+            expectedBodies.add(body);
+        }
+
+        // Decode, feeding the wire bytes in random slices
+        RtmpSessionInfo rxSessionInfo = new RtmpSessionInfo();
+        rxSessionInfo.setRxChunkSize(chunkSize);
+        if (random.nextBoolean()) {
+            rxSessionInfo.setBufferPool(new BufferPool(false, 8));
+        }
+        RtmpDecoder decoder = new RtmpDecoder(rxSessionInfo);
+        final List<RtmpPacket> decoded = new ArrayList<RtmpPacket>();
+        PacketRxHandler handler = new PacketRxHandler() {
+            @Override
+            public void handleRxPacket(RtmpPacket rtmpPacket) {
+                decoded.add(rtmpPacket);
+            }
+
+            @Override
+            public void notifyWindowAckRequired(int numBytesReadThusFar) {
+            }
+        };
+        final byte[] bytes = wire.toByteArray();
+        ByteBuffer rxBuffer = ByteBuffer.allocate(RtmpDecoder.RX_BUFFER_SIZE);
+        int position = 0;
+        while (position < bytes.length) {
+            final int count = Math.min(bytes.length - position, Math.min(rxBuffer.remaining(), 1 + random.nextInt(random.nextBoolean() ? 7 : 3000)));
+            rxBuffer.put(bytes, position, count);
+            position += count;
+            rxBuffer.flip();
+            decoder.decodePackets(rxBuffer, handler);
+            rxBuffer = RtmpDecoder.compactRxBuffer(rxBuffer);
+        }
+        if (rxBuffer.position() != 0) {
+            return rxBuffer.position() + " bytes left undecoded";
+        }
+
+        // Compare
+        if (decoded.size() != expectedHeaders.size()) {
+            return "decoded " + decoded.size() + " messages; expected " + expectedHeaders.size();
+        }
+        for (int i = 0; i < decoded.size(); i++) {
+            RtmpHeader header = decoded.get(i).getHeader();
+            RtmpHeader expected = expectedHeaders.get(i);
+            if (header.getChunkStreamId() != expected.getChunkStreamId()
+                    || header.getAbsoluteTimestamp() != expected.getAbsoluteTimestamp()
+                    || header.getMessageStreamId() != expected.getMessageStreamId()
+                    || header.getMessageType() != expected.getMessageType()
+                    || header.getPacketLength() != expected.getPacketLength()) {
+                return "message " + i + " (chunk size " + chunkSize + "): decoded " + describe(header) + "; expected " + describe(expected);
+            }
+            ContentData contentData = (ContentData) decoded.get(i);
+            final boolean bodyMatches = Arrays.equals(contentData.getData(), expectedBodies.get(i));
+            contentData.release();
+            if (!bodyMatches) {
+                return "message " + i + " (chunk size " + chunkSize + "): body differs";
+            }
+        }
+        return null;
+    }
+
+    private static int nextTimestamp(Random random, Integer prevTimestamp) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return random.nextInt(1000);
+            case 1:
+                // Around the extended timestamp marker
+                return 0xFFFFFF - 2 + random.nextInt(5);
+            case 2:
+                // A delta around the extended timestamp marker
+                return prevTimestamp == null ? random.nextInt() : prevTimestamp + 0xFFFFFF + random.nextInt(3) - 1;
+            case 3:
+                return prevTimestamp == null ? 0 : prevTimestamp + 40;
+            default:
+                // Wraps around past Integer.MAX_VALUE
+                return prevTimestamp == null ? 0x7FFFFFF0 : prevTimestamp + random.nextInt(100);
+        }
+    }
+
+    private static String describe(RtmpHeader header) {
+        return "[csid " + header.getChunkStreamId() + ", timestamp " + header.getAbsoluteTimestamp() + ", msid " + header.getMessageStreamId()
+                + ", type " + header.getMessageType() + ", length " + header.getPacketLength() + "]";
+    }
+}
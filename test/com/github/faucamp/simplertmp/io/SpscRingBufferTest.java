@@ -0,0 +1,115 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two-thread stress test of SpscRingBuffer: a producer thread puts numbered
+ * elements into a small ring until <code>put()</code> rejects one, while the
+ * consumer thread takes them; after a random number of elements the ring is
+ * closed (by the consumer or by a third thread, as on connection shutdown),
+ * and the consumer drains what is left.
+ *
+ * Each run checks that the elements taken and drained are exactly the
+ * elements put, in order, with none lost or duplicated, and that the only
+ * element left with the producer is the one <code>put()</code> rejected.
+ *
+ * Run with <code>ant ring-buffer-test</code>; exits with status 1 on failure.
+ * The first argument, if any, is the number of runs.
+ *
+ * @author francois
+ */
+public class SpscRingBufferTest {
+
+    private static final int MAX_ELEMENTS = 20000;
+
+    public static void main(String[] args) throws InterruptedException {
+        final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int failures = 0;
+        for (int run = 0; run < runs; run++) {
+            Random random = new Random(run);
+            // Busy-spinning threads make slow progress when they share a core, so keep those runs short and few
+            final boolean busySpin = run % 20 == 0;
+            final SpscRingBuffer.WaitStrategy waitStrategy = busySpin ? SpscRingBuffer.WaitStrategy.BUSY_SPIN : SpscRingBuffer.WaitStrategy.PARK;
+            final int capacity = 1 << random.nextInt(5);
+            final int closeAfter = 1 + random.nextInt(busySpin ? 200 : MAX_ELEMENTS);
+            String failure = runOnce(waitStrategy, capacity, closeAfter, random.nextBoolean());
+            if (failure != null) {
+                failures++;
+                System.out.println("FAILED (run " + run + ", " + waitStrategy + ", capacity " + capacity + ", close after " + closeAfter + "): " + failure);
+            }
+        }
+        System.out.println("SpscRingBufferTest: " + runs + " runs, " + failures + " failures");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String runOnce(SpscRingBuffer.WaitStrategy waitStrategy, int capacity, int closeAfter, boolean closeFromOtherThread) throws InterruptedException {
+        final SpscRingBuffer<Integer> ring = new SpscRingBuffer<Integer>(capacity, waitStrategy);
+        /** The number of the element that put() rejected; -1 if none */
+        final AtomicInteger rejected = new AtomicInteger(-1);
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < MAX_ELEMENTS * 2; i++) {
+                    if (!ring.put(i)) {
+                        rejected.set(i);
+                        return;
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        String failure = null;
+        Thread closer = null;
+        // Take elements until the ring is closed and empty
+        for (Integer element = ring.take(); element != null; element = ring.take()) {
+            if (failure == null && element != expected) {
+                failure = "took " + element + "; expected " + expected;
+            }
+            expected++;
+            if (expected == closeAfter) {
+                if (closeFromOtherThread) {
+                    closer = new Thread(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            ring.close();
+                        }
+                    });
+                    closer.start();
+                } else {
+                    ring.close();
+                }
+            }
+        }
+        // Release whatever is left, as the packet handler thread does on shutdown
+        for (Integer element = ring.drain(); element != null; element = ring.drain()) {
+            if (failure == null && element != expected) {
+                failure = "drained " + element + "; expected " + expected;
+            }
+            expected++;
+        }
+        producer.join(10000);
+        if (closer != null) {
+            closer.join();
+        }
+        if (failure != null) {
+            return failure;
+        }
+        if (producer.isAlive()) {
+            return "producer still blocked in put() after the ring was closed";
+        }
+        if (rejected.get() != expected) {
+            return "took and drained " + expected + " elements, but put() rejected element " + rejected.get();
+        }
+        if (ring.put(-1)) {
+            return "put() accepted an element after the ring was drained";
+        }
+        return null;
+    }
+}
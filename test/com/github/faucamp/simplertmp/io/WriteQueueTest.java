@@ -0,0 +1,201 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import com.github.faucamp.simplertmp.io.packets.Audio;
+import com.github.faucamp.simplertmp.io.packets.Command;
+import com.github.faucamp.simplertmp.io.packets.ContentData;
+import com.github.faucamp.simplertmp.io.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.io.packets.Video;
+
+/**
+ * Stress test of the WriteQueue overflow policies: a producer thread offers
+ * numbered frames to a small queue while a (slower) consumer thread takes
+ * them, and the test checks that frames arrive in order, that only droppable
+ * frames are dropped (and only by DROP_OLDEST_NON_KEYFRAME), and that every
+ * payload that is dropped, rejected or discarded on close is released.
+ *
+ * Run with <code>ant write-queue-test</code>; exits with status 1 on failure.
+ *
+ * @author francois
+ */
+public class WriteQueueTest {
+
+    private static final int CAPACITY = 8;
+    private static final int FRAMES = 20000;
+    /** Every KEYFRAME_INTERVAL-th frame is a (never droppable) video keyframe */
+    private static final int KEYFRAME_INTERVAL = 10;
+    private static final List<String> failures = new ArrayList<String>();
+
+    public static void main(String[] args) throws Exception {
+        testStress(WriteQueue.OverflowPolicy.BLOCK);
+        testStress(WriteQueue.OverflowPolicy.DROP_OLDEST_NON_KEYFRAME);
+        testFail();
+        testClose();
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.out.println("WriteQueueTest: " + failures.size() + " failures");
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            failures.add(failure);
+        }
+    }
+
+    /** Creates a frame with a (tracked) payload; the frame number is its timestamp */
+    private static ContentData frame(int number, List<PooledBuffer> payloads) {
+        PooledBuffer payload = new PooledBuffer(ByteBuffer.allocate(16), null, -1);
+        payloads.add(payload);
+        ContentData frame;
+        if (number % KEYFRAME_INTERVAL == 0) {
+            frame = new Video(1, number);
+            payload.getBuffer().put(0, (byte) 0x17); // keyframe
+        } else if (number % 2 == 0) {
+            frame = new Video(1, number);
+            payload.getBuffer().put(0, (byte) 0x27); // inter frame
+        } else {
+            frame = new Audio(1, number);
+            payload.getBuffer().put(0, (byte) 0x2f); // not AAC, so never a sequence header
+        }
+        frame.setData(payload);
+        return frame;
+    }
+
+    private static boolean isKeyframe(RtmpPacket rtmpPacket) {
+        return rtmpPacket.getHeader().getAbsoluteTimestamp() % KEYFRAME_INTERVAL == 0;
+    }
+
+    /** @return <code>true</code> if the payload's last reference has been released */
+    private static boolean isReleased(PooledBuffer payload) {
+        try {
+            payload.retain();
+            payload.release();
+            return false;
+        } catch (IllegalStateException ex) {
+            return true;
+        }
+    }
+
+    private static int countUnreleased(List<PooledBuffer> payloads) {
+        int unreleased = 0;
+        for (PooledBuffer payload : payloads) {
+            if (!isReleased(payload)) {
+                unreleased++;
+            }
+        }
+        return unreleased;
+    }
+
+    private static void testStress(final WriteQueue.OverflowPolicy overflowPolicy) throws InterruptedException {
+        final WriteQueue writeQueue = new WriteQueue(CAPACITY, overflowPolicy);
+        final List<PooledBuffer> payloads = new ArrayList<PooledBuffer>(FRAMES);
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < FRAMES; i++) {
+                    writeQueue.offer(frame(i, payloads), true);
+                }
+            }
+        });
+        producer.start();
+
+        Random random = new Random(1);
+        int received = 0;
+        int keyframesReceived = 0;
+        int lastNumber = -1;
+        boolean inOrder = true;
+        while (true) {
+            RtmpPacket rtmpPacket = writeQueue.poll();
+            if (rtmpPacket == null) {
+                if (!producer.isAlive() && writeQueue.getDepth() == 0) {
+                    break;
+                }
+                Thread.yield();
+                continue;
+            }
+            final int number = rtmpPacket.getHeader().getAbsoluteTimestamp();
+            inOrder &= number > lastNumber;
+            lastNumber = number;
+            received++;
+            if (isKeyframe(rtmpPacket)) {
+                keyframesReceived++;
+            }
+            ((ContentData) rtmpPacket).release();
+            if (random.nextInt(4) == 0) {
+                // Fall behind now and then, so that the queue fills up
+                Thread.yield();
+            }
+        }
+        producer.join();
+        final String name = overflowPolicy + ": ";
+        check(inOrder, name + "frames were reordered");
+        check(keyframesReceived == FRAMES / KEYFRAME_INTERVAL, name + "received " + keyframesReceived + " keyframes; expected " + FRAMES / KEYFRAME_INTERVAL);
+        check(received + writeQueue.getDroppedPackets() == FRAMES, name + "received " + received + " and dropped " + writeQueue.getDroppedPackets() + " of " + FRAMES + " frames");
+        if (overflowPolicy == WriteQueue.OverflowPolicy.BLOCK) {
+            check(writeQueue.getDroppedPackets() == 0, name + "dropped " + writeQueue.getDroppedPackets() + " frames");
+        }
+        check(countUnreleased(payloads) == 0, name + countUnreleased(payloads) + " payloads were not released");
+    }
+
+    private static void testFail() {
+        WriteQueue writeQueue = new WriteQueue(CAPACITY, WriteQueue.OverflowPolicy.FAIL);
+        List<PooledBuffer> payloads = new ArrayList<PooledBuffer>();
+        for (int i = 0; i < CAPACITY; i++) {
+            writeQueue.offer(frame(KEYFRAME_INTERVAL * i, payloads), true);
+        }
+        boolean failed = false;
+        try {
+            writeQueue.offer(frame(1, payloads), true);
+        } catch (IllegalStateException ex) {
+            failed = true;
+        }
+        check(failed, "FAIL: a frame offered to a full queue was accepted");
+        check(isReleased(payloads.get(CAPACITY)), "FAIL: the rejected frame was not released");
+
+        // Connection-internal packets are never rejected, but queued over capacity
+        writeQueue.offer(new Command("play", 0), false);
+        check(writeQueue.getDepth() == CAPACITY + 1, "FAIL: internal command not queued over capacity; depth " + writeQueue.getDepth());
+        writeQueue.offer(frame(3, payloads), false);
+        check(writeQueue.getDroppedPackets() == 1 && isReleased(payloads.get(CAPACITY + 1)), "FAIL: non-blocking frame offered to a full queue was not dropped and released");
+
+        for (RtmpPacket rtmpPacket = writeQueue.poll(); rtmpPacket != null; rtmpPacket = writeQueue.poll()) {
+            if (rtmpPacket instanceof ContentData) {
+                ((ContentData) rtmpPacket).release();
+            }
+        }
+        check(countUnreleased(payloads) == 0, "FAIL: " + countUnreleased(payloads) + " payloads were not released");
+    }
+
+    private static void testClose() throws InterruptedException {
+        final WriteQueue writeQueue = new WriteQueue(CAPACITY, WriteQueue.OverflowPolicy.BLOCK);
+        final List<PooledBuffer> payloads = new ArrayList<PooledBuffer>();
+        for (int i = 0; i < CAPACITY; i++) {
+            writeQueue.offer(frame(i, payloads), true);
+        }
+        // A producer blocked on the full queue is released by close(), and its frame released
+        final ContentData blockedFrame = frame(CAPACITY, payloads);
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeQueue.offer(blockedFrame, true);
+            }
+        });
+        producer.start();
+        Thread.sleep(100);
+        writeQueue.close();
+        producer.join(5000);
+        check(!producer.isAlive(), "close: producer still blocked after close()");
+        writeQueue.offer(frame(CAPACITY + 1, payloads), true);
+        check(writeQueue.poll() == null, "close: packets left in a closed queue");
+        check(countUnreleased(payloads) == 0, "close: " + countUnreleased(payloads) + " payloads were not released");
+    }
+}